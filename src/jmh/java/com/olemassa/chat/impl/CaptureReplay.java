@@ -0,0 +1,219 @@
+package com.olemassa.chat.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.olemassa.chat.Receiver;
+import com.olemassa.chat.impl.util.SerialNumber;
+
+/**
+ * Plays a {@link DatagramCapture} back into a fresh {@link GoBackNImpl} or
+ * {@link SelectiveRepeat} with no peer and no sockets, so a protocol problem captured in
+ * the field can be profiled offline and repeated as often as needed.
+ * <pre>
+ * mvn -Pjmh compile exec:exec@replay -Dreplay.args="chat.cap --protocol selectiverepeat --speed 10"
+ * </pre>
+ * The connection runs on one end of an {@link InMemoryTransport} pair and this driver on
+ * the other. Captured inbound datagrams, data and acknowledgements alike, are sent to the
+ * connection at their original time divided by the speed, or back to back with speed 0.
+ * The payload of every captured first transmission is sent again through the connection
+ * at its original time as one message, with batching off, so the replayed data packets
+ * get the captured sequence numbers and the captured acknowledgements line up with them.
+ * Retransmissions and acknowledgements are left to the connection, and whatever it sends
+ * is read and dropped.
+ * <p>
+ * The replayed connection only reacts to the same input: with other timing it may
+ * retransmit, or acknowledge, differently from the captured one.
+ */
+public class CaptureReplay {
+
+	static final Logger logger = LoggerFactory.getLogger(CaptureReplay.class);
+
+	//Kauanko uudelleen lähetettyä pakettia odotetaan, millisekunteja
+	private static final long RESEND_WAIT = 10;
+
+	private Path capture;
+	private String protocol = "selectiverepeat";
+	private int window = 10;
+	private int timeout = 1000;
+	private double speed = 1;
+	private int repeat = 1;
+	private long linger = 1000;
+	private boolean recorder = false;
+
+	//Yhden toistokerran tulokset
+	static final class Replay implements Receiver {
+
+		long inbound = 0;
+		long outbound = 0;
+		long resent = 0;
+		long late = 0;
+		volatile long delivered = 0;
+		long discarded = 0;
+		long elapsed;
+
+		//Vain yhteyden serverithread
+		@Override
+		public void receive(byte[] message) {
+			delivered++;
+		}
+
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		CaptureReplay replay = new CaptureReplay();
+		try {
+			replay.parse(args);
+		} catch (RuntimeException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: CaptureReplay capture [--protocol gobackn|selectiverepeat] [--window 10]"
+					+ " [--timeout 1000] [--speed 1] [--repeat 1] [--linger 1000] [--recorder true]");
+			System.exit(1);
+		}
+		for (int i = 0; i < replay.repeat; i++) {
+			replay.run();
+		}
+	}
+
+	private void parse(String[] args) {
+		if (args.length == 0) throw new IllegalArgumentException("Kaappaustiedosto puuttuu");
+		capture = Paths.get(args[0]);
+		for (int i = 1; i < args.length; i++) {
+			String option = args[i];
+			if (++i == args.length) throw new IllegalArgumentException("Arvo puuttuu: " + option);
+			String value = args[i];
+			switch (option) {
+			case "--protocol":
+				if (!value.equals("gobackn") && !value.equals("selectiverepeat"))
+					throw new IllegalArgumentException("Tuntematon protokolla: " + value);
+				protocol = value;
+				break;
+			case "--window":
+				window = Integer.parseInt(value);
+				break;
+			case "--timeout":
+				timeout = Integer.parseInt(value);
+				break;
+			case "--speed":
+				speed = Double.parseDouble(value);
+				if (speed < 0) throw new IllegalArgumentException("Nopeus ei voi olla negatiivinen: " + value);
+				break;
+			case "--repeat":
+				repeat = Integer.parseInt(value);
+				break;
+			case "--linger":
+				linger = Long.parseLong(value);
+				break;
+			case "--recorder":
+				recorder = Boolean.parseBoolean(value);
+				break;
+			default:
+				throw new IllegalArgumentException("Tuntematon valitsin: " + option);
+			}
+		}
+	}
+
+	private void run() throws IOException, InterruptedException {
+		logger.info("run({}, {}, {}, {}, {})", capture, protocol, window, timeout, speed);
+		InMemoryTransport[] pair = InMemoryTransport.pair();
+		InMemoryTransport driver = pair[0];
+		WindowedTransfer connection = protocol.equals("gobackn")
+				? new GoBackNImpl(pair[1], window, timeout)
+				: new SelectiveRepeat(pair[1], window, timeout);
+		connection.setBatchDelay(0);
+		if (recorder) connection.setFlightRecorder(new FlightRecorder(FlightRecorder.DEFAULT_CAPACITY));
+		Replay replay = new Replay();
+		connection.addReceiver(replay);
+		Thread connectionThread = new Thread(connection, "replay-" + protocol);
+		connectionThread.start();
+
+		ByteBuffer datagram = ByteBuffer.allocate(DatagramCapture.MAX_DATAGRAM_LENGTH);
+		WirePacket packet = new WirePacket();
+		//Suurin kaapattu lähtevä järjestysnumero, sitä uudemmat lähtivät ensimmäistä kertaa
+		int highestSent = 0;
+		boolean anySent = false;
+		long start = System.nanoTime();
+		try (DatagramCapture.Reader reader = DatagramCapture.open(capture)) {
+			while (reader.next()) {
+				if (speed > 0) {
+					long due = start + (long) (reader.getTime(TimeUnit.NANOSECONDS) / speed);
+					for (long wait; (wait = due - System.nanoTime()) > 0;) {
+						LockSupport.parkNanos(wait);
+					}
+				}
+				datagram.clear();
+				reader.read(datagram);
+				datagram.flip();
+				if (reader.getDirection() == DatagramCapture.Direction.INBOUND) {
+					replay.inbound++;
+					driver.send(datagram, null);
+				} else {
+					replay.outbound++;
+					try {
+						packet.wrap(datagram, 0, datagram.limit());
+					} catch (IllegalArgumentException e) {
+						continue;
+					}
+					if (!packet.isData() || anySent && SerialNumber.distance(highestSent, packet.getSequence()) <= 0) continue;
+					highestSent = packet.getSequence();
+					anySent = true;
+					if (!resend(connection, packet)) replay.late++;
+					replay.resent++;
+				}
+				replay.discarded += discard(driver, datagram);
+			}
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(linger);
+			while (System.nanoTime() - deadline < 0) {
+				replay.discarded += discard(driver, datagram);
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+			}
+		} finally {
+			replay.elapsed = System.nanoTime() - start;
+			connection.stopListening();
+			connectionThread.join(TimeUnit.SECONDS.toMillis(5));
+			driver.close();
+		}
+		report(replay, connection);
+	}
+
+	//Paketin sisältö yhtenä viestinä. Odottaa, että yhteys lähettää sen ennen seuraavaa kaapattua datagrammia,
+	//jottei sen kuittaus ehdi ensin. false, jos ikkuna ei päästänyt pakettia ajoissa
+	private static boolean resend(WindowedTransfer connection, WirePacket packet) {
+		long sent = connection.getPacketsSent() - connection.getRetransmissions();
+		connection.sendAsync(packet.getStream(), packet.getPayload());
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RESEND_WAIT);
+		while (connection.getPacketsSent() - connection.getRetransmissions() == sent) {
+			if (System.nanoTime() - deadline >= 0) return false;
+			Thread.yield();
+		}
+		return true;
+	}
+
+	//Lukee ja hylkää yhteyden lähettämät datagrammit
+	private static long discard(InMemoryTransport driver, ByteBuffer buffer) throws IOException {
+		long discarded = 0;
+		while (true) {
+			buffer.clear();
+			if (driver.receive(buffer) == null) return discarded;
+			discarded++;
+		}
+	}
+
+	private void report(Replay replay, WindowedTransfer connection) {
+		ConnectionMetrics metrics = connection.getMetrics();
+		System.out.printf(Locale.ROOT, "%s %s window=%d timeout=%d speed=%s%n", capture, protocol, window, timeout, speed);
+		System.out.printf(Locale.ROOT, "  records: inbound=%d outbound=%d, packets sent again=%d (late %d), delivered=%d, elapsed=%d ms%n",
+				replay.inbound, replay.outbound, replay.resent, replay.late, replay.delivered, TimeUnit.NANOSECONDS.toMillis(replay.elapsed));
+		System.out.printf(Locale.ROOT, "  connection: datagrams out=%d, %s%n", replay.discarded, metrics);
+		if (recorder) System.out.print(connection.getFlightRecorder());
+	}
+
+}
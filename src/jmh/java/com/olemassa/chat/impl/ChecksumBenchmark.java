@@ -0,0 +1,86 @@
+package com.olemassa.chat.impl;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.olemassa.chat.impl.util.Crc;
+import com.olemassa.chat.obsolete.CRC8;
+
+import jonelo.jacksum.JacksumAPI;
+import jonelo.jacksum.algorithm.AbstractChecksum;
+
+/**
+ * Packet checksum: table driven {@link Crc} against Jacksum and the bitwise {@link CRC8}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChecksumBenchmark {
+
+	@Param({"16", "128", "1021"})
+	int payloadSize;
+
+	byte sequence = 3;
+	byte[] payload;
+
+	AbstractChecksum jacksum;
+	CRC8 bitwise = new CRC8();
+
+	@Setup
+	public void setup() throws NoSuchAlgorithmException {
+		payload = new byte[payloadSize];
+		new Random(payloadSize).nextBytes(payload);
+		jacksum = JacksumAPI.getChecksumInstance("crc8");
+	}
+
+	//Vanha Packet.getChecksumValue
+	@Benchmark
+	public byte jacksumCrc8() {
+		jacksum.reset();
+		jacksum.update(ArrayUtils.addAll(new byte[] {sequence}, payload));
+		return (byte) jacksum.getValue();
+	}
+
+	@Benchmark
+	public byte bitwiseCrc8() {
+		bitwise.reset();
+		bitwise.update(sequence);
+		bitwise.update(payload);
+		return (byte) bitwise.getValue();
+	}
+
+	@Benchmark
+	public byte tableCrc8() {
+		int crc = Crc.CRC8.update(Crc.CRC8.initial(), sequence);
+		crc = Crc.CRC8.update(crc, payload, 0, payload.length);
+		return (byte) Crc.CRC8.finish(crc);
+	}
+
+	@Benchmark
+	public int tableCrc16() {
+		return Crc.CRC16.compute(payload, 0, payload.length);
+	}
+
+	@Benchmark
+	public int tableCrc32c() {
+		return Crc.CRC32C.compute(payload, 0, payload.length);
+	}
+
+}
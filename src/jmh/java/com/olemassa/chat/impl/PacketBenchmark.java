@@ -0,0 +1,87 @@
+package com.olemassa.chat.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Wire format on both ends: encoding a data packet or an ACK into the send buffer, and
+ * checking a received one and copying its payload out, which is what the old
+ * Packet.getPacketBytes, readPacket and trim did with fresh arrays.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketBenchmark {
+
+	//Suurin on WirePacket.MAX_PAYLOAD_LENGTH
+	@Param({"16", "128", "1003"})
+	int payloadSize;
+
+	Packet packet;
+	ByteBuffer outbound = ByteBuffer.allocate(WirePacket.MAX_PACKET_LENGTH);
+	ByteBuffer inbound = ByteBuffer.allocate(WirePacket.MAX_PACKET_LENGTH);
+	ByteBuffer inboundAck = ByteBuffer.allocate(WirePacket.MAX_PACKET_LENGTH);
+	int inboundLength;
+	int inboundAckLength;
+	WirePacket wire = new WirePacket();
+	PacketPool pool = new PacketPool(PacketPool.MAX_POOLED);
+	byte[] destination = new byte[WirePacket.MAX_PAYLOAD_LENGTH];
+
+	@Setup
+	public void setup() {
+		byte[] payload = new byte[payloadSize];
+		new Random(payloadSize).nextBytes(payload);
+		packet = new Packet(1234, payload);
+		packet.setStream(1);
+		packet.setStreamSequence(77);
+		inboundLength = packet.writeTo(inbound, 0, 4321, 0x5);
+		inboundAckLength = WirePacket.encodeAck(inboundAck, 0, 4321, 0x5);
+	}
+
+	@Benchmark
+	public int encode() {
+		return packet.writeTo(outbound, 0, 4321, 0x5);
+	}
+
+	@Benchmark
+	public int encodeAck() {
+		return WirePacket.encodeAck(outbound, 0, 4321, 0x5);
+	}
+
+	//Tarkastus ja payloadin kopiointi sovelluksen taulukkoon
+	@Benchmark
+	public int decode() {
+		return wire.wrap(inbound, 0, inboundLength).getPayload(destination, 0);
+	}
+
+	@Benchmark
+	public int decodeAck() {
+		return wire.wrap(inboundAck, 0, inboundAckLength).getAck();
+	}
+
+	//Vastaanottobufferiin säilöttävä kopio poolin paketissa, kuten WindowedTransfer.received
+	@Benchmark
+	public int decodeToPooled() {
+		Packet received = pool.acquire().copyFrom(wire.wrap(inbound, 0, inboundLength));
+		int length = received.getPayloadLength();
+		received.release();
+		return length;
+	}
+
+}
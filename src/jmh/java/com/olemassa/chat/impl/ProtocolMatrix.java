@@ -0,0 +1,427 @@
+package com.olemassa.chat.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.olemassa.chat.EpavarmaSocket;
+import com.olemassa.chat.Impairment;
+import com.olemassa.chat.Receiver;
+import com.olemassa.chat.ReliableDataTransfer;
+import com.olemassa.chat.State;
+
+/**
+ * End to end comparison of the protocols: for every combination of protocol, loss,
+ * corruption, delay, window size and timeout, two endpoints on loopback UDP, one sending
+ * a fixed number of messages and the other checking and timing them. Not a JMH
+ * benchmark; it runs headless and writes one CSV row per combination and a summary table.
+ * <pre>
+ * mvn -Pjmh compile exec:exec@matrix -Dmatrix.args="--protocols gobackn,selectiverepeat --loss 0,0.05"
+ * </pre>
+ * Loss, corruption and delay are set for both directions through
+ * {@link EpavarmaSocket#setDefaults(Impairment)}, so data and acknowledgements suffer
+ * alike. The versions 1.0 to 3.0 have no window or timeout to tune and run once per
+ * impairment profile, and only the windowed protocols count retransmissions. They keep
+ * their alternating bit in the {@link State} constants, which two endpoints in one JVM
+ * would share, so each of their endpoints gets its own copy of the classes.
+ * <p>
+ * Latency is from the accepted <code>send</code> to the delivery at the other end, so it
+ * includes the time spent in the send queue behind earlier messages.
+ */
+public class ProtocolMatrix {
+
+	static final Logger logger = LoggerFactory.getLogger(ProtocolMatrix.class);
+
+	private static final String HOST = "127.0.0.1";
+	private static final List<String> LEGACY = Arrays.asList("1.0", "2.0", "2.1", "2.2", "3.0");
+	//Viestin alussa järjestysnumero ja lähetyshetki, loput tunnistettavaa täytettä
+	private static final int HEADER = 12;
+	private static final String[] COLUMNS = {"protocol", "loss", "corrupt", "delay_ms", "window", "timeout_ms",
+			"messages", "delivered", "duplicates", "corrupted", "elapsed_ms", "goodput_Bps", "msgs_per_s",
+			"retransmission_ratio", "p50_us", "p99_us", "p999_us", "max_us"};
+
+	private List<String> protocols = Arrays.asList("1.0", "2.0", "2.1", "2.2", "3.0", "gobackn", "selectiverepeat");
+	private double[] losses = {0, 0.01, 0.05};
+	private double[] corruptions = {0, 0.01};
+	private long[] delays = {0};
+	private int[] windows = {8, 64};
+	private int[] timeouts = {200, 1000};
+	private int messages = 1000;
+	private int size = 64;
+	private long timeLimit = 20;
+	private String csv = "protocol-matrix.csv";
+	private long seed = 1;
+	private int port = 40000;
+
+	//Yhden yhdistelmän tulokset, vastaanottajan säie kirjoittaa ja pääsäie lukee liittymisen jälkeen
+	static final class Run implements Receiver {
+
+		final Histogram latency = new Histogram(TimeUnit.MINUTES.toMicros(10), 3);
+		final BitSet seen = new BitSet();
+		final int messages;
+		final int size;
+		volatile int delivered = 0;
+		int duplicates = 0;
+		int corrupted = 0;
+		long bytes = 0;
+		long lastDelivery = 0;
+		String retransmissionRatio = "";
+		String[] parameters;
+		long elapsed;
+
+		Run(int messages, int size) {
+			this.messages = messages;
+			this.size = size;
+		}
+
+		@Override
+		public void receive(byte[] message) {
+			long now = System.nanoTime();
+			ByteBuffer buffer = ByteBuffer.wrap(message);
+			//1.0 jättää viimeisen tavun toimittamatta, joten lyhentynyt mutta muuten ehjä viesti menee perille
+			int id = message.length >= HEADER && message.length <= size ? buffer.getInt(0) : -1;
+			if (id < 0 || id >= messages || !intact(message, id)) {
+				corrupted++;
+				return;
+			}
+			if (seen.get(id)) {
+				duplicates++;
+				return;
+			}
+			seen.set(id);
+			latency.recordValue(Math.max(0, TimeUnit.NANOSECONDS.toMicros(now - buffer.getLong(4))));
+			lastDelivery = now;
+			bytes += message.length;
+			delivered++;
+		}
+
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		ProtocolMatrix matrix = new ProtocolMatrix();
+		try {
+			matrix.parse(args);
+		} catch (RuntimeException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: ProtocolMatrix [--protocols 1.0,2.0,2.1,2.2,3.0,gobackn,selectiverepeat]"
+					+ " [--loss 0,0.01,0.05] [--corrupt 0,0.01] [--delay 0] [--windows 8,64] [--timeouts 200,1000]"
+					+ " [--messages 1000] [--size 64] [--time-limit 20] [--csv protocol-matrix.csv] [--seed 1] [--port 40000]");
+			System.exit(1);
+		}
+		matrix.run();
+	}
+
+	private void parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (++i == args.length) throw new IllegalArgumentException("Arvo puuttuu: " + option);
+			String value = args[i];
+			switch (option) {
+			case "--protocols":
+				protocols = Arrays.asList(value.split(","));
+				for (String protocol : protocols) {
+					if (!LEGACY.contains(protocol) && !protocol.equals("gobackn") && !protocol.equals("selectiverepeat")) {
+						throw new IllegalArgumentException("Tuntematon protokolla: " + protocol);
+					}
+				}
+				break;
+			case "--loss":
+				losses = doubles(value);
+				break;
+			case "--corrupt":
+				corruptions = doubles(value);
+				break;
+			case "--delay":
+				delays = Arrays.stream(value.split(",")).mapToLong(Long::parseLong).toArray();
+				break;
+			case "--windows":
+				windows = ints(value);
+				break;
+			case "--timeouts":
+				timeouts = ints(value);
+				break;
+			case "--messages":
+				messages = Integer.parseInt(value);
+				break;
+			case "--size":
+				size = Integer.parseInt(value);
+				if (size < HEADER) throw new IllegalArgumentException("Viestin koko vähintään " + HEADER);
+				break;
+			case "--time-limit":
+				timeLimit = Long.parseLong(value);
+				break;
+			case "--csv":
+				csv = value;
+				break;
+			case "--seed":
+				seed = Long.parseLong(value);
+				break;
+			case "--port":
+				port = Integer.parseInt(value);
+				break;
+			default:
+				throw new IllegalArgumentException("Tuntematon valitsin: " + option);
+			}
+		}
+	}
+
+	private static double[] doubles(String value) {
+		return Arrays.stream(value.split(",")).mapToDouble(Double::parseDouble).toArray();
+	}
+
+	private static int[] ints(String value) {
+		return Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+	}
+
+	private void run() throws IOException, InterruptedException {
+		List<Run> runs = new ArrayList<Run>();
+		try (PrintWriter out = new PrintWriter(new FileWriter(csv))) {
+			out.println(String.join(",", COLUMNS));
+			for (String protocol : protocols) {
+				boolean legacy = LEGACY.contains(protocol);
+				for (double loss : losses) {
+					for (double corrupt : corruptions) {
+						for (long delay : delays) {
+							for (int window : legacy ? new int[] {0} : windows) {
+								for (int timeout : legacy ? new int[] {0} : timeouts) {
+									Run run = run(protocol, loss, corrupt, delay, window, timeout);
+									runs.add(run);
+									out.println(String.join(",", row(run)));
+									out.flush();
+									System.out.println(String.join(" ", row(run)));
+								}
+							}
+						}
+					}
+				}
+			}
+		} finally {
+			EpavarmaSocket.setDefaults(null);
+		}
+		summary(runs);
+		System.out.println("CSV: " + csv);
+	}
+
+	private Run run(String protocol, double loss, double corrupt, long delay, int window, int timeout) throws IOException, InterruptedException {
+		logger.info("run({}, {}, {}, {}, {}, {})", protocol, loss, corrupt, delay, window, timeout);
+		Impairment template = new Impairment(seed);
+		template.setLoss(loss);
+		template.setCorrupt(corrupt);
+		template.setDelay(delay, delay / 10, TimeUnit.MILLISECONDS);
+		EpavarmaSocket.setDefaults(template);
+		//Sama siemen joka yhdistelmälle, jotta protokollat kohtaavat samat häiriöt
+		EpavarmaSocket.setSeed(seed);
+
+		Run run = new Run(messages, size);
+		boolean legacy = LEGACY.contains(protocol);
+		run.parameters = new String[] {protocol, Double.toString(loss), Double.toString(corrupt), Long.toString(delay),
+				legacy ? "" : Integer.toString(window), legacy ? "" : Integer.toString(timeout)};
+		int senderPort = port++;
+		int receiverPort = port++;
+		ReliableDataTransfer sender = open(protocol, senderPort, receiverPort, window, timeout);
+		ReliableDataTransfer receiver = open(protocol, receiverPort, senderPort, window, timeout);
+		receiver.addReceiver(run);
+		Thread senderThread = new Thread(sender, "matrix-sender");
+		Thread receiverThread = new Thread(receiver, "matrix-receiver");
+		senderThread.start();
+		receiverThread.start();
+
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.SECONDS.toNanos(timeLimit);
+		try {
+			for (int id = 0; id < messages && System.nanoTime() - deadline < 0; id++) {
+				byte[] message = message(id);
+				while (true) {
+					ByteBuffer.wrap(message).putLong(4, System.nanoTime());
+					try {
+						sender.send(message);
+						break;
+					} catch (IllegalStateException e) {
+						//Lähetysjono täynnä tai pysähdy-ja-odota odottaa kuittausta
+						if (System.nanoTime() - deadline >= 0) break;
+						LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+					}
+				}
+			}
+			while (run.delivered < messages && System.nanoTime() - deadline < 0) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+			}
+		} finally {
+			sender.stopListening();
+			receiver.stopListening();
+			senderThread.join(TimeUnit.SECONDS.toMillis(5));
+			receiverThread.join(TimeUnit.SECONDS.toMillis(5));
+		}
+
+		run.elapsed = (run.delivered == 0 ? System.nanoTime() : run.lastDelivery) - start;
+		if (sender instanceof WindowedTransfer) {
+			WindowedTransfer windowed = (WindowedTransfer) sender;
+			if (windowed.getPacketsSent() > 0) {
+				run.retransmissionRatio = String.format(Locale.ROOT, "%.4f", (double) windowed.getRetransmissions() / windowed.getPacketsSent());
+			}
+		}
+		return run;
+	}
+
+	private static ReliableDataTransfer open(String protocol, int localport, int remoteport, int window, int timeout) throws IOException {
+		switch (protocol) {
+		case "1.0":
+			return isolated(ReliableDataTransfer10Impl.class, localport, remoteport);
+		case "2.0":
+			return isolated(ReliableDataTransfer20Impl.class, localport, remoteport);
+		case "2.1":
+			return isolated(ReliableDataTransfer21Impl.class, localport, remoteport);
+		case "2.2":
+			return isolated(ReliableDataTransfer22Impl.class, localport, remoteport);
+		case "3.0":
+			return isolated(ReliableDataTransfer30Impl.class, localport, remoteport);
+		case "gobackn":
+			return new GoBackNImpl(HOST, localport, HOST, remoteport, window, timeout);
+		default:
+			return new SelectiveRepeat(HOST, localport, HOST, remoteport, window, timeout);
+		}
+	}
+
+	//Versio omassa luokkalataajassaan, jolla on oma State
+	private static ReliableDataTransfer isolated(Class<?> implementation, int localport, int remoteport) throws SocketException {
+		try {
+			Class<?> copy = new Isolating(implementation.getName()).loadClass(implementation.getName());
+			return (ReliableDataTransfer) copy.getConstructor(String.class, int.class, String.class, int.class)
+					.newInstance(HOST, localport, HOST, remoteport);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof SocketException) throw (SocketException) e.getCause();
+			throw new IllegalStateException("Protokollaa ei saatu luotua", e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Protokollaa ei saatu luotua", e);
+		}
+	}
+
+	/**
+	 * Defines its own copy of one implementation, its nested classes and {@link State},
+	 * and leaves everything else, the interfaces included, to the parent.
+	 */
+	private static final class Isolating extends ClassLoader {
+
+		private final String implementation;
+
+		Isolating(String implementation) {
+			super(ProtocolMatrix.class.getClassLoader());
+			this.implementation = implementation;
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if (!name.equals(State.class.getName()) && !name.equals(implementation) && !name.startsWith(implementation + "$")) {
+				return super.loadClass(name, resolve);
+			}
+			synchronized (getClassLoadingLock(name)) {
+				Class<?> loaded = findLoadedClass(name);
+				if (loaded == null) loaded = define(name);
+				if (resolve) resolveClass(loaded);
+				return loaded;
+			}
+		}
+
+		private Class<?> define(String name) throws ClassNotFoundException {
+			try (InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+				if (in == null) throw new ClassNotFoundException(name);
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				for (int read; (read = in.read(buffer)) != -1;) {
+					bytes.write(buffer, 0, read);
+				}
+				return defineClass(name, bytes.toByteArray(), 0, bytes.size());
+			} catch (IOException e) {
+				throw new ClassNotFoundException(name, e);
+			}
+		}
+
+	}
+
+	private byte[] message(int id) {
+		byte[] message = new byte[size];
+		ByteBuffer.wrap(message).putInt(0, id);
+		for (int i = HEADER; i < size; i++) {
+			message[i] = filler(id, i);
+		}
+		return message;
+	}
+
+	private static byte filler(int id, int i) {
+		return (byte) (id * 31 + i);
+	}
+
+	//Korruptio, joka osuu järjestysnumeroon tai täytteeseen, ei mene läpi ehjänä
+	private static boolean intact(byte[] message, int id) {
+		for (int i = HEADER; i < message.length; i++) {
+			if (message[i] != filler(id, i)) return false;
+		}
+		return true;
+	}
+
+	private static String[] row(Run run) {
+		double seconds = run.elapsed / 1e9;
+		boolean any = run.delivered > 0;
+		String[] values = {
+				Integer.toString(run.messages),
+				Integer.toString(run.delivered),
+				Integer.toString(run.duplicates),
+				Integer.toString(run.corrupted),
+				Long.toString(TimeUnit.NANOSECONDS.toMillis(run.elapsed)),
+				any ? String.format(Locale.ROOT, "%.0f", run.bytes / seconds) : "",
+				any ? String.format(Locale.ROOT, "%.1f", run.delivered / seconds) : "",
+				run.retransmissionRatio,
+				any ? Long.toString(run.latency.getValueAtPercentile(50)) : "",
+				any ? Long.toString(run.latency.getValueAtPercentile(99)) : "",
+				any ? Long.toString(run.latency.getValueAtPercentile(99.9)) : "",
+				any ? Long.toString(run.latency.getMaxValue()) : ""};
+		String[] row = Arrays.copyOf(run.parameters, run.parameters.length + values.length);
+		System.arraycopy(values, 0, row, run.parameters.length, values.length);
+		return row;
+	}
+
+	//Sarakkeet levennetään pisimmän arvon mukaan
+	private static void summary(List<Run> runs) {
+		List<String[]> rows = new ArrayList<String[]>();
+		rows.add(COLUMNS);
+		for (Run run : runs) {
+			rows.add(row(run));
+		}
+		int[] widths = new int[COLUMNS.length];
+		for (String[] row : rows) {
+			for (int i = 0; i < row.length; i++) {
+				widths[i] = Math.max(widths[i], row[i].length());
+			}
+		}
+		System.out.println();
+		for (String[] row : rows) {
+			StringBuilder line = new StringBuilder();
+			for (int i = 0; i < row.length; i++) {
+				if (i > 0) line.append("  ");
+				String value = row[i];
+				for (int pad = value.length(); pad < widths[i]; pad++) {
+					line.append(' ');
+				}
+				line.append(value);
+			}
+			System.out.println(line);
+		}
+	}
+
+}
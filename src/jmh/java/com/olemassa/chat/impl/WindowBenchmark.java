@@ -0,0 +1,148 @@
+package com.olemassa.chat.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.olemassa.chat.impl.util.FixedWindow;
+
+/**
+ * The window code of both protocols, one whole window per operation, so divide by
+ * <code>windowSize</code> for the cost per packet. The benchmark thread plays the I/O
+ * thread of a connection on an {@link InMemoryTransport}: no event loop, no kernel.
+ * <ul>
+ * <li>receiveWindow - in-order data packets, the receive window sliding one at a time,
+ * delivery and delayed ACKs</li>
+ * <li>receiveWindowReordered - the first packet of the window last, so Selective Repeat
+ * buffers the rest and SACKs them and then slides the whole window at once. Go-Back-N
+ * drops them and gets them again after the first, as retransmissions would be.</li>
+ * <li>sendWindow - a window of messages through the send queue and into the send
+ * window, then one cumulative ACK for all of it</li>
+ * </ul>
+ * Congestion control is {@link FixedWindow} and batching is off, so the window size
+ * alone limits the sender.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WindowBenchmark {
+
+	@Param({"SelectiveRepeat", "GoBackN"})
+	String protocol;
+
+	@Param({"8", "64", "256"})
+	int windowSize;
+
+	@Param({"16", "1003"})
+	int payloadSize;
+
+	InMemoryTransport[] pair;
+	WindowedTransfer sender;
+	WindowedTransfer receiver;
+	byte[] payload;
+	long delivered = 0;
+
+	//Vastaanottajan seuraava järjestysnumero ja lähettäjän lähettämät
+	int receiveSequence = 0;
+	int sent = 0;
+
+	ByteBuffer inbound = ByteBuffer.allocate(WirePacket.MAX_PACKET_LENGTH);
+	ByteBuffer discarded = ByteBuffer.allocate(WirePacket.MAX_PACKET_LENGTH);
+	WirePacket wire = new WirePacket();
+
+	@Setup
+	public void setup() {
+		pair = InMemoryTransport.pair();
+		sender = connection(pair[0]);
+		receiver = connection(pair[1]);
+		sender.setCongestionController(new FixedWindow());
+		sender.setBatchDelay(0);
+		receiver.addReceiver(message -> delivered += message.length);
+		payload = new byte[payloadSize];
+	}
+
+	@TearDown
+	public void tearDown() {
+		sender.close();
+		receiver.close();
+	}
+
+	private WindowedTransfer connection(Transport transport) {
+		if (protocol.equals("GoBackN")) return new GoBackNImpl(transport, windowSize, 1000);
+		return new SelectiveRepeat(transport, windowSize, 1000);
+	}
+
+	@Benchmark
+	public long receiveWindow() {
+		for (int i = 0; i < windowSize; i++) {
+			receive(receiveSequence + i);
+		}
+		receiveSequence += windowSize;
+		return finishReceive();
+	}
+
+	@Benchmark
+	public long receiveWindowReordered() {
+		for (int i = 1; i < windowSize; i++) {
+			receive(receiveSequence + i);
+		}
+		receive(receiveSequence);
+		if (protocol.equals("GoBackN")) for (int i = 1; i < windowSize; i++) {
+			receive(receiveSequence + i);
+		}
+		receiveSequence += windowSize;
+		return finishReceive();
+	}
+
+	@Benchmark
+	public int sendWindow() {
+		for (int i = 0; i < windowSize; i++) {
+			sender.send(payload);
+		}
+		sender.poll();
+		drain(pair[1]);
+		sent += windowSize;
+		sender.handle(wire.wrap(inbound, 0, WirePacket.encodeAck(inbound, 0, sent, 0)));
+		return sender.getPacketsInFlight();
+	}
+
+	private void receive(int sequence) {
+		int length = WirePacket.encode(inbound, 0, WirePacket.FLAG_DATA, sequence, 0, 0,
+				WindowedTransfer.DEFAULT_STREAM, sequence & 0xFFFF, payload, 0, payloadSize);
+		receiver.handle(wire.wrap(inbound, 0, length));
+	}
+
+	//Viivästetty kuittaus lähtee pollissa, lähettäjän päähän tulleet kuittaukset heitetään pois
+	private long finishReceive() {
+		receiver.poll();
+		drain(pair[0]);
+		return delivered;
+	}
+
+	private void drain(InMemoryTransport transport) {
+		try {
+			do {
+				discarded.clear();
+			} while (transport.receive(discarded) != null);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
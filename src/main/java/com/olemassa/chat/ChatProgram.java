@@ -5,6 +5,7 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.List;
 import java.util.Scanner;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -13,6 +14,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
+import com.olemassa.chat.impl.AsyncReceiver;
+import com.olemassa.chat.impl.FlightRecorder;
 import com.olemassa.chat.impl.GoBackNImpl;
 import com.olemassa.chat.impl.ReliableDataTransfer10Impl;
 import com.olemassa.chat.impl.ReliableDataTransfer20Impl;
@@ -34,6 +37,13 @@ public class ChatProgram implements Runnable, Receiver {
 
 	private Scanner scanner = new  Scanner(inputStream);
 	private PrintWriter printWriter = new PrintWriter(outputStream);
+	//Tulostusjonoon mahtuvat viestit. Chatin tahdissa jono ei täyty, ja jos täyttyy, siitä kerrotaan
+	private static final int DELIVERY_CAPACITY = 65536;
+
+	//Tulostus ei saa hidastaa protokollan säiettä, joten viestit tulostetaan omassa säikeessään
+	private final AsyncReceiver delivery = new AsyncReceiver(this, DELIVERY_CAPACITY, AsyncReceiver.OverflowPolicy.DROP_NEWEST);
+	//Käyttäjälle jo kerrotut hylätyt viestit, vain tulostussäie
+	private long reportedDrops = 0;
 
 	private Thread serverThread = null;
 	private ReliableDataTransfer rdt = null;
@@ -173,8 +183,10 @@ public class ChatProgram implements Runnable, Receiver {
 						throw new UnsupportedOperationException("Komentoa " + command + " ei ole toteutettu :(");
 					}
 				} else {
-					// Muuten vain lähetetään
-					rdt.send(input.getBytes());
+					// Muuten vain lähetetään, ikkunaan mahtumattomat jonotetaan
+					rdt.sendAsync(input.getBytes()).whenComplete((ignore, error) -> {
+						if (error != null) logger.error("Viestiä ei saatu perille", error);
+					});
 				}
 
 			} catch (UnsupportedOperationException e) {
@@ -183,6 +195,9 @@ public class ChatProgram implements Runnable, Receiver {
 			} catch (IllegalStateException e) {
 				logger.error("Tilavirhe", e);
 				continue;
+			} catch (IllegalArgumentException e) {
+				logger.error("Viestiä ei voida lähettää", e);
+				continue;
 			} catch (SocketException e) {
 				logger.error("Ei onnistunu protokollan vaihto", e);
 				continue;
@@ -210,7 +225,7 @@ public class ChatProgram implements Runnable, Receiver {
 			if (rdt != null) rdt.stopListening();
 			if (serverThread != null) serverThread.join();
 			rdt = new ReliableDataTransfer10Impl(localhost, localport, remotehost, remoteport);
-			rdt.addReceiver(this);
+			rdt.addReceiver(delivery);
 			serverThread = new Thread(rdt);
 			serverThread.start();
 			break;
@@ -218,7 +233,7 @@ public class ChatProgram implements Runnable, Receiver {
 			if (rdt != null) rdt.stopListening();
 			if (serverThread != null) serverThread.join();
 			rdt = new ReliableDataTransfer20Impl(localhost, localport, remotehost, remoteport);
-			rdt.addReceiver(this);
+			rdt.addReceiver(delivery);
 			serverThread = new Thread(rdt);
 			serverThread.start();
 			break;
@@ -226,7 +241,7 @@ public class ChatProgram implements Runnable, Receiver {
 			if (rdt != null) rdt.stopListening();
 			if (serverThread != null) serverThread.join();
 			rdt = new ReliableDataTransfer21Impl(localhost, localport, remotehost, remoteport);
-			rdt.addReceiver(this);
+			rdt.addReceiver(delivery);
 			serverThread = new Thread(rdt);
 			serverThread.start();
 			break;
@@ -234,7 +249,7 @@ public class ChatProgram implements Runnable, Receiver {
 			if (rdt != null) rdt.stopListening();
 			if (serverThread != null) serverThread.join();
 			rdt = new ReliableDataTransfer22Impl(localhost, localport, remotehost, remoteport);
-			rdt.addReceiver(this);
+			rdt.addReceiver(delivery);
 			serverThread = new Thread(rdt);
 			serverThread.start();
 			break;
@@ -242,23 +257,29 @@ public class ChatProgram implements Runnable, Receiver {
 			if (rdt != null) rdt.stopListening();
 			if (serverThread != null) serverThread.join();
 			rdt = new ReliableDataTransfer30Impl(localhost, localport, remotehost, remoteport);
-			rdt.addReceiver(this);
+			rdt.addReceiver(delivery);
 			serverThread = new Thread(rdt);
 			serverThread.start();
 			break;
 		case "gobackn":
 			if (rdt != null) rdt.stopListening();
 			if (serverThread != null) serverThread.join();
-			rdt = new GoBackNImpl(localhost, localport, remotehost, remoteport, 10, 10000);
-			rdt.addReceiver(this);
+			GoBackNImpl goBackN = new GoBackNImpl(localhost, localport, remotehost, remoteport, 10, 1000);
+			goBackN.getMetrics().register(protocol + "-" + localport);
+			goBackN.setFlightRecorder(new FlightRecorder(FlightRecorder.DEFAULT_CAPACITY));
+			rdt = goBackN;
+			rdt.addReceiver(delivery);
 			serverThread = new Thread(rdt);
 			serverThread.start();
 			break;
 		case "selectiverepeat":
 			if (rdt != null) rdt.stopListening();
 			if (serverThread != null) serverThread.join();
-			rdt = new SelectiveRepeat(localhost, localport, remotehost, remoteport, 10, 10000);
-			rdt.addReceiver(this);
+			SelectiveRepeat selectiveRepeat = new SelectiveRepeat(localhost, localport, remotehost, remoteport, 10, 1000);
+			selectiveRepeat.getMetrics().register(protocol + "-" + localport);
+			selectiveRepeat.setFlightRecorder(new FlightRecorder(FlightRecorder.DEFAULT_CAPACITY));
+			rdt = selectiveRepeat;
+			rdt.addReceiver(delivery);
 			serverThread = new Thread(rdt);
 			serverThread.start();
 			break;
@@ -295,10 +316,33 @@ public class ChatProgram implements Runnable, Receiver {
 	public void receive(byte[] request) {
 		logger.debug("receive({})", request);
 		try{
+			reportDrops();
 			printWriter.println(new String(request));
 		} finally {
 			printWriter.flush();
 		}
 	}
 
-}
\ No newline at end of file
+	//Koko kooste tulostetaan yhdellä flushilla
+	@Override
+	public void receiveBatch(List<byte[]> requests) {
+		logger.debug("receiveBatch({})", requests.size());
+		try {
+			reportDrops();
+			for (byte[] request : requests) {
+				printWriter.println(new String(request));
+			}
+		} finally {
+			printWriter.flush();
+		}
+	}
+
+	//Täyden tulostusjonon takia hylätyt viestit eivät katoa huomaamatta
+	private void reportDrops() {
+		long dropped = delivery.getDroppedMessages();
+		if (dropped == reportedDrops) return;
+		printWriter.println("(" + (dropped - reportedDrops) + " viestiä jäi tulostamatta)");
+		reportedDrops = dropped;
+	}
+
+}
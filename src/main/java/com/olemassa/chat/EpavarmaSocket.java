@@ -7,7 +7,11 @@ import java.net.DatagramSocketImpl;
 import java.net.InetAddress;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,13 +25,17 @@ import org.slf4j.LoggerFactory;
  */
 public class EpavarmaSocket extends DatagramSocket {
 	
-	final Logger logger = LoggerFactory.getLogger(EpavarmaSocket.class);
+	static final Logger logger = LoggerFactory.getLogger(EpavarmaSocket.class);
 
-	private static Random random = new Random();
+	//Jokainen newImpairment() saa oman siemenen
+	private static final AtomicLong seed = new AtomicLong(new Random().nextLong());
 	private static double success_probability = 1.0d;
 	private static double in_time_probability = 1.0d;
 	private static double correct_probability = 0.5d;
 	private static double max_delay_millis = 1000d;
+	private static volatile Impairment defaults = null;
+
+	private final Impairment impairment = newImpairment();
 
 	public EpavarmaSocket() throws SocketException {
 		super();
@@ -49,46 +57,83 @@ public class EpavarmaSocket extends DatagramSocket {
 		super(bindaddr);
 	}
 
+	/**
+	 * Oletusasetukset luokan todennäköisyyksistä: häviö, myöhästyminen enintään
+	 * max_delay_millis (jolloin myöhemmät ohittavat paketin) ja yhden bitin vaihtuminen.
+	 * Siemen kasvaa jokaisella kutsulla, joten saman perussiemenen ajot toistuvat samoin.
+	 */
+	public static Impairment newImpairment() {
+		Impairment impairment = new Impairment(seed.getAndIncrement());
+		Impairment template = defaults;
+		if (template != null) {
+			impairment.copySettings(template);
+			return impairment;
+		}
+		impairment.setLoss(1 - success_probability);
+		impairment.setReorder(1 - in_time_probability, (long) max_delay_millis, TimeUnit.MILLISECONDS);
+		impairment.setCorrupt(1 - correct_probability);
+		return impairment;
+	}
+
+	/**
+	 * Asetukset, jotka kaikki tämän jälkeen luodut socketit ja yhteydet saavat luokan
+	 * todennäköisyyksien sijaan, tai null palauttaa ne. Vaikuttaa vain uusiin.
+	 */
+	public static void setDefaults(Impairment template) {
+		logger.debug("setDefaults({})", template);
+		defaults = template;
+	}
+
+	//Seuraavat newImpairment()-kutsut saavat siemenet seed, seed + 1, ...
+	public static void setSeed(long seed) {
+		logger.debug("setSeed({})", seed);
+		EpavarmaSocket.seed.set(seed);
+	}
+
+	//Tämän socketin asetuksia voi muuttaa kesken ajon
+	public Impairment getImpairment() {
+		return impairment;
+	}
+
+	/**
+	 * Saapuneet datagrammit kulkevat viivejonon kautta. Myöhästynyt paketti ei pysäytä
+	 * socketia: odotetaan vain seuraavaan erääntyvään tai uuteen datagrammiin, kuitenkin
+	 * enintään SO_TIMEOUTin verran.
+	 */
 	@Override
-	public synchronized void receive(DatagramPacket packet) throws IOException {
-		while (true) {
-			super.receive(packet);
-			//Kurkkaa hävisikö paketti
-			if (success_probability <= random.nextDouble()) {
-				logger.warn("Paketti hävisi kokonaan :O");
-			} else {
-				//Vilase sattuko se viivästymään
-				if (in_time_probability <= random.nextDouble())
-					try {
-						long delay_millis = (long) (random.nextDouble() * max_delay_millis);
-						Thread.sleep(delay_millis);
-						logger.warn(String.format("Paketti myöhästy {} millisekuntia", delay_millis));
-					} catch (InterruptedException ignoreThis) {}
-				//Ihmettele muuttoko sielä joku tavu
-				if (correct_probability <= random.nextDouble()) {
-					int messed_byte_index = random.nextInt(packet.getLength());
-					int flippedBitLeftOffset = random.nextInt(8);
-					byte[] packetData = packet.getData();
-					byte originalByte = packetData[messed_byte_index];
-					byte messedByte = (byte) (originalByte ^ (1 << flippedBitLeftOffset));
-					packetData[messed_byte_index] = messedByte;
-					packet.setData(packetData);
-					logger.warn(String.format(
-							"Paketin %s tavun %s bitti vaihtu (%s -> %s)",
-							new Object[] {
-									messed_byte_index + 1,
-									8 - flippedBitLeftOffset,
-									byteToString(originalByte),
-									byteToString(messedByte)}));
+	public synchronized void receive(final DatagramPacket packet) throws IOException {
+		int timeout = getSoTimeout();
+		int capacity = packet.getLength();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		try {
+			while (true) {
+				long now = System.nanoTime();
+				if (impairment.release(now, 1, (datagram, length, address) -> {
+					System.arraycopy(datagram.array(), 0, packet.getData(), packet.getOffset(), Math.min(length, capacity));
+					packet.setLength(Math.min(length, capacity));
+					packet.setSocketAddress(address);
+				}) > 0) return;
+
+				long wait = impairment.nanosUntilNext(now);
+				if (timeout > 0) {
+					if (deadline - now <= 0) throw new SocketTimeoutException("Receive timed out");
+					wait = Math.min(wait, deadline - now);
 				}
-				return;
+				//0 odottaa ikuisesti, joten lyhin odotus on millisekunti
+				super.setSoTimeout(wait == Impairment.NO_DATAGRAM ? 0
+						: (int) Math.max(1, Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(wait))));
+				packet.setLength(capacity);
+				try {
+					super.receive(packet);
+				} catch (SocketTimeoutException e) {
+					continue;
+				}
+				impairment.offer(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()).slice(),
+						packet.getLength(), packet.getSocketAddress(), System.nanoTime());
 			}
+		} finally {
+			if (!isClosed()) super.setSoTimeout(timeout);
 		}
 	}
 
-	//Apumetodi tavujen ihmettelyyn
-	private static String byteToString(byte byte_to_string) {
-		return "0b" + ("0000000" + Integer.toBinaryString(0xFF & byte_to_string)).replaceAll(".*(.{8})$", "$1");
-	}
-
 }
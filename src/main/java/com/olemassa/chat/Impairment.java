@@ -0,0 +1,317 @@
+package com.olemassa.chat;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Emulated network path for one direction of one connection: random or bursty loss,
+ * delay with jitter, reordering, duplication, corruption and a bandwidth cap.
+ * <p>
+ * A datagram goes in with {@link #offer(ByteBuffer, int, SocketAddress, long)}, which
+ * decides its fate and copies it to a delay queue, and comes out of
+ * {@link #release(long, int, Sink)} once it is due. Nothing sleeps: the owner asks
+ * {@link #nanosUntilNext(long)} and polls again then, so a delayed datagram holds up
+ * nothing behind it and later datagrams really do overtake it.
+ * <p>
+ * Every random decision comes from one {@link Random} with the given seed, so the same
+ * seed and the same traffic give the same losses, corruptions and delays. Settings may
+ * be changed from any thread at any time; offer and release only from the one thread
+ * that owns the path.
+ */
+public class Impairment {
+
+	static final Logger logger = LoggerFactory.getLogger(Impairment.class);
+
+	//Jonossa ei ole mitään
+	public static final long NO_DATAGRAM = Long.MAX_VALUE;
+	//Tätä useampaa vapaata jonon alkiota ei säilötä uudelleenkäyttöön
+	static final int MAX_POOLED = 1024;
+
+	/**
+	 * Receives the datagrams that are due. The buffer holds the datagram from 0 to
+	 * <code>length</code> and is valid only during the call.
+	 */
+	public interface Sink {
+		void datagram(ByteBuffer datagram, int length, SocketAddress address) throws IOException;
+	}
+
+	private static final class Datagram {
+
+		private byte[] data = new byte[0];
+		private ByteBuffer view = ByteBuffer.wrap(data);
+		private int length;
+		private SocketAddress address;
+		private long due;
+		private long order;
+
+	}
+
+	//Erääntymisjärjestys, samaan aikaan erääntyvät tarjoamisjärjestyksessä
+	private static final Comparator<Datagram> DUE_ORDER = new Comparator<Datagram>() {
+		@Override
+		public int compare(Datagram a, Datagram b) {
+			if (a.due != b.due) return a.due - b.due < 0 ? -1 : 1;
+			return Long.compare(a.order, b.order);
+		}
+	};
+
+	private final Random random;
+
+	//Gilbert-Elliott: tila vaihtuu ennen jokaista datagrammia, häviötodennäköisyys riippuu tilasta
+	private volatile double goodToBad = 0;
+	private volatile double badToGood = 1;
+	private volatile double lossGood = 0;
+	private volatile double lossBad = 0;
+	private volatile long delayNanos = 0;
+	private volatile long jitterNanos = 0;
+	private volatile double reorderProbability = 0;
+	private volatile long reorderNanos = 0;
+	private volatile double duplicateProbability = 0;
+	private volatile double corruptProbability = 0;
+	private volatile long bytesPerSecond = 0;
+	private volatile int queueLimit = 0;
+
+	//Vain omistajasäie
+	private boolean bad = false;
+	private long linkFree = Long.MIN_VALUE;
+	private long order = 0;
+	private final PriorityQueue<Datagram> queue = new PriorityQueue<Datagram>(64, DUE_ORDER);
+	private final ArrayDeque<Datagram> free = new ArrayDeque<Datagram>();
+
+	private volatile long offered = 0;
+	private volatile long lost = 0;
+	private volatile long overflowed = 0;
+	private volatile long corrupted = 0;
+	private volatile long duplicated = 0;
+	private volatile long reordered = 0;
+
+	public Impairment(long seed) {
+		logger.debug("Impairment({})", seed);
+		this.random = new Random(seed);
+	}
+
+	//Toisistaan riippumaton häviö jokaiselle datagrammille
+	public void setLoss(double probability) {
+		setBurstLoss(0, 1, probability, probability);
+	}
+
+	/**
+	 * Bursty loss with the two-state Gilbert-Elliott model: before every datagram the path
+	 * moves from the good to the bad state with probability <code>goodToBad</code> and
+	 * back with <code>badToGood</code>, and the datagram is lost with the loss probability
+	 * of the current state. The mean burst length is <code>1 / badToGood</code> datagrams.
+	 */
+	public void setBurstLoss(double goodToBad, double badToGood, double lossGood, double lossBad) {
+		logger.debug("setBurstLoss({}, {}, {}, {})", goodToBad, badToGood, lossGood, lossBad);
+		this.goodToBad = goodToBad;
+		this.badToGood = badToGood;
+		this.lossGood = lossGood;
+		this.lossBad = lossBad;
+	}
+
+	//Jokainen datagrammi viivästyy delay ± jitter, tasajakaumasta
+	public void setDelay(long delay, long jitter, TimeUnit unit) {
+		logger.debug("setDelay({}, {}, {})", delay, jitter, unit);
+		this.delayNanos = unit.toNanos(delay);
+		this.jitterNanos = unit.toNanos(jitter);
+	}
+
+	//Valittu datagrammi viivästyy lisäksi 0..extraDelay, jolloin sitä myöhemmät ohittavat sen
+	public void setReorder(double probability, long extraDelay, TimeUnit unit) {
+		logger.debug("setReorder({}, {}, {})", probability, extraDelay, unit);
+		this.reorderProbability = probability;
+		this.reorderNanos = unit.toNanos(extraDelay);
+	}
+
+	public void setDuplicate(double probability) {
+		logger.debug("setDuplicate({})", probability);
+		this.duplicateProbability = probability;
+	}
+
+	//Yksi satunnainen bitti kääntyy
+	public void setCorrupt(double probability) {
+		logger.debug("setCorrupt({})", probability);
+		this.corruptProbability = probability;
+	}
+
+	/**
+	 * Caps the rate at which datagrams leave: each one, a duplicate too, occupies the path
+	 * for <code>length / bytesPerSecond</code> before its delay starts. With a queue limit,
+	 * datagrams that would make the bytes still waiting for the path exceed
+	 * <code>queueLimit</code> are dropped at the tail; datagrams already through it and
+	 * only delayed do not count. 0 means no cap and no limit.
+	 */
+	public void setBandwidth(long bytesPerSecond, int queueLimit) {
+		logger.debug("setBandwidth({}, {})", bytesPerSecond, queueLimit);
+		this.bytesPerSecond = bytesPerSecond;
+		this.queueLimit = queueLimit;
+	}
+
+	//Kaikki asetukset toisesta, satunnaislukujen siemen ja tila pysyvät omina
+	public void copySettings(Impairment other) {
+		logger.debug("copySettings({})", other);
+		setBurstLoss(other.goodToBad, other.badToGood, other.lossGood, other.lossBad);
+		setDelay(other.delayNanos, other.jitterNanos, TimeUnit.NANOSECONDS);
+		setReorder(other.reorderProbability, other.reorderNanos, TimeUnit.NANOSECONDS);
+		setDuplicate(other.duplicateProbability);
+		setCorrupt(other.corruptProbability);
+		setBandwidth(other.bytesPerSecond, other.queueLimit);
+	}
+
+	/**
+	 * Decides the fate of one datagram, the bytes from 0 to <code>length</code> of
+	 * <code>datagram</code>, and queues a copy unless it is lost. The buffer is not
+	 * modified. Returns false if the datagram was dropped.
+	 */
+	public boolean offer(ByteBuffer datagram, int length, SocketAddress address, long now) {
+		offered++;
+		if (bad ? random.nextDouble() < badToGood : random.nextDouble() < goodToBad) bad = !bad;
+		if (random.nextDouble() < (bad ? lossBad : lossGood)) {
+			lost++;
+			logger.debug("Datagrammi hävisi");
+			return false;
+		}
+		long rate = bytesPerSecond;
+		if (!fitsBacklog(length, now, rate)) {
+			overflowed++;
+			logger.debug("Jono täynnä, datagrammi hylättiin");
+			return false;
+		}
+		enqueue(datagram, length, address, depart(length, now, rate));
+		if (random.nextDouble() < duplicateProbability) {
+			//Kaksoiskappale kulkee linkin läpi siinä missä alkuperäinenkin
+			if (fitsBacklog(length, now, rate)) {
+				duplicated++;
+				enqueue(datagram, length, address, depart(length, now, rate));
+			} else {
+				overflowed++;
+			}
+		}
+		return true;
+	}
+
+	//Kaistarajoituksen jonossa ovat vain linkille pääsyä vielä odottavat tavut
+	private boolean fitsBacklog(int length, long now, long rate) {
+		int limit = queueLimit;
+		if (limit <= 0 || rate <= 0) return true;
+		double backlog = (double) (Math.max(now, linkFree) - now) * rate / 1000000000L;
+		return backlog + length <= limit;
+	}
+
+	//Varaa linkin datagrammin ajaksi ja palauttaa hetken, jolloin se on lähtenyt
+	private long depart(int length, long now, long rate) {
+		if (rate <= 0) return now;
+		linkFree = Math.max(now, linkFree) + length * 1000000000L / rate;
+		return linkFree;
+	}
+
+	/**
+	 * Hands at most <code>max</code> datagrams that are due at <code>now</code> to the
+	 * sink, earliest first, and returns how many there were.
+	 */
+	public int release(long now, int max, Sink sink) throws IOException {
+		int released = 0;
+		Datagram head;
+		while (released < max && (head = queue.peek()) != null && head.due - now <= 0) {
+			queue.poll();
+			released++;
+			try {
+				sink.datagram(head.view, head.length, head.address);
+			} finally {
+				head.address = null;
+				if (free.size() < MAX_POOLED) free.addFirst(head);
+			}
+		}
+		return released;
+	}
+
+	//Nanosekunnit seuraavaan erääntyvään, tai NO_DATAGRAM
+	public long nanosUntilNext(long now) {
+		Datagram head = queue.peek();
+		if (head == null) return NO_DATAGRAM;
+		return Math.max(0, head.due - now);
+	}
+
+	public int getQueuedDatagrams() {
+		return queue.size();
+	}
+
+	public long getOfferedDatagrams() {
+		return offered;
+	}
+
+	public long getLostDatagrams() {
+		return lost;
+	}
+
+	//Kaistarajoituksen jonosta hylätyt
+	public long getOverflowedDatagrams() {
+		return overflowed;
+	}
+
+	public long getCorruptedDatagrams() {
+		return corrupted;
+	}
+
+	public long getDuplicatedDatagrams() {
+		return duplicated;
+	}
+
+	public long getReorderedDatagrams() {
+		return reordered;
+	}
+
+	private void enqueue(ByteBuffer source, int length, SocketAddress address, long departure) {
+		Datagram datagram = free.pollFirst();
+		if (datagram == null) datagram = new Datagram();
+		if (datagram.data.length < length) {
+			datagram.data = new byte[length];
+			datagram.view = ByteBuffer.wrap(datagram.data);
+		}
+		if (source.hasArray()) {
+			System.arraycopy(source.array(), source.arrayOffset(), datagram.data, 0, length);
+		} else for (int i = 0; i < length; i++) {
+			datagram.data[i] = source.get(i);
+		}
+		datagram.view.clear();
+		datagram.length = length;
+		datagram.address = address;
+		datagram.order = order++;
+
+		long due = departure + delayNanos;
+		long jitter = jitterNanos;
+		if (jitter > 0) due += (long) ((random.nextDouble() * 2 - 1) * jitter);
+		if (random.nextDouble() < reorderProbability) {
+			reordered++;
+			due += (long) (random.nextDouble() * reorderNanos);
+		}
+		datagram.due = Math.max(due, departure);
+
+		if (length > 0 && random.nextDouble() < corruptProbability) {
+			corrupted++;
+			int index = random.nextInt(length);
+			datagram.data[index] ^= 1 << random.nextInt(8);
+			if (logger.isDebugEnabled()) logger.debug("Datagrammin tavun {} bitti kääntyi", index);
+		}
+
+		queue.add(datagram);
+	}
+
+	@Override
+	public String toString() {
+		return "Loss: " + lossGood + "/" + lossBad + " (" + goodToBad + ", " + badToGood + ")"
+				+ " Delay: " + TimeUnit.NANOSECONDS.toMillis(delayNanos) + "±" + TimeUnit.NANOSECONDS.toMillis(jitterNanos) + "ms"
+				+ " Reorder: " + reorderProbability + " Duplicate: " + duplicateProbability + " Corrupt: " + corruptProbability
+				+ " Bandwidth: " + bytesPerSecond + "B/s Queued: " + queue.size();
+	}
+
+}
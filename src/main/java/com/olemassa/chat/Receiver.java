@@ -1,5 +1,18 @@
 package com.olemassa.chat;
 
+import java.util.List;
+
 public interface Receiver {
 	void receive(byte[] request);
+
+	/**
+	 * Several messages at once, in order. Called by {@link com.olemassa.chat.impl.AsyncReceiver}
+	 * with whatever has queued up since the previous call, so a receiver with a per call
+	 * cost, such as flushing a writer, pays it once per batch.
+	 */
+	default void receiveBatch(List<byte[]> requests) {
+		for (byte[] request : requests) {
+			receive(request);
+		}
+	}
 }
@@ -1,8 +1,50 @@
 package com.olemassa.chat;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 //Just an interface for RDT protocol implementations
 public interface ReliableDataTransfer extends Runnable {
 	void send(byte[] outbound) throws IllegalStateException;
 	void addReceiver(Receiver receiver);
 	void stopListening();
+
+	/**
+	 * Sends without throwing. The future completes when {@link #send(byte[])} has handed
+	 * the message over, or exceptionally if it cannot be sent; the stop-and-wait
+	 * protocols 1.0-3.0 keep this. The windowed protocols override it to complete only
+	 * once the message is acknowledged.
+	 */
+	default CompletableFuture<Void> sendAsync(byte[] outbound) {
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		try {
+			send(outbound);
+			future.complete(null);
+		} catch (RuntimeException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Blocks until the future of {@link #sendAsync(byte[])} completes or the timeout
+	 * passes: until the message is acknowledged for protocols that track
+	 * acknowledgements, only until it is handed over for the others. On timeout a
+	 * protocol that queues messages withdraws the message if it has not been sent yet,
+	 * nor packed into one packet with other messages.
+	 */
+	default void send(byte[] outbound, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+		CompletableFuture<Void> future = sendAsync(outbound);
+		try {
+			future.get(timeout, unit);
+		} catch (TimeoutException e) {
+			future.cancel(false);
+			throw e;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IllegalStateException("Viestiä ei saatu lähetettyä", e.getCause());
+		}
+	}
 }
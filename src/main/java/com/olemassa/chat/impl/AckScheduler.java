@@ -0,0 +1,85 @@
+package com.olemassa.chat.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import com.olemassa.chat.impl.util.TimingWheel;
+
+/**
+ * Delayed acknowledgement of one {@link WindowedTransfer} connection: the cumulative
+ * ACK (next expected sequence) and SACK bits the receiving side has to report, and
+ * when they have to go out on their own. Every data packet sent carries them anyway, so
+ * a pending ACK is cleared by any send. The ACK goes out on its own once
+ * {@link #getAckEvery()} packets are unacknowledged or {@link #getAckDelay()} has passed.
+ * <p>
+ * Apart from the settings, used only from the I/O thread.
+ */
+final class AckScheduler {
+
+	//Viivästetty kuittaus: korkeintaan ACK_DELAY millisekuntia tai joka ACK_EVERY:s paketti
+	static final long ACK_DELAY = 40;
+	static final int ACK_EVERY = 2;
+
+	private int ack = 0;
+	private int sack = 0;
+	private int unacknowledged = 0;
+	private long deadline = WindowedTransfer.NO_DEADLINE;
+	private volatile long ackDelay = ACK_DELAY;
+	private volatile int ackEvery = ACK_EVERY;
+
+	void setAckDelay(long ackDelay) {
+		this.ackDelay = ackDelay;
+	}
+
+	long getAckDelay() {
+		return ackDelay;
+	}
+
+	void setAckEvery(int ackEvery) {
+		if (ackEvery < 1)
+			throw new IllegalArgumentException("Kuittausväli pitää olla vähintään 1: " + ackEvery);
+		this.ackEvery = ackEvery;
+	}
+
+	int getAckEvery() {
+		return ackEvery;
+	}
+
+	int getAck() {
+		return ack;
+	}
+
+	int getSack() {
+		return sack;
+	}
+
+	/**
+	 * Records the ACK and SACK after a data packet was received. Returns true if the ACK
+	 * has to be sent right away: <code>immediate</code>, e.g. for out of order packets,
+	 * or enough packets unacknowledged.
+	 */
+	boolean received(int ack, int sack, boolean immediate) {
+		this.ack = ack;
+		this.sack = sack;
+		unacknowledged++;
+		if (immediate || unacknowledged >= ackEvery || ackDelay <= 0) return true;
+		if (deadline == WindowedTransfer.NO_DEADLINE) {
+			deadline = TimingWheel.now() + TimeUnit.MILLISECONDS.toNanos(ackDelay);
+		}
+		return false;
+	}
+
+	//Kuittaus lähti, omana pakettinaan tai datapaketin mukana
+	void sent() {
+		unacknowledged = 0;
+		deadline = WindowedTransfer.NO_DEADLINE;
+	}
+
+	//Millisekunnit viivästetyn kuittauksen erääntymiseen, 0 jos se on jo erääntynyt, tai NO_DEADLINE
+	long millisUntilDue(long now) {
+		if (deadline == WindowedTransfer.NO_DEADLINE) return WindowedTransfer.NO_DEADLINE;
+		long nanos = deadline - now;
+		if (nanos <= 0) return 0;
+		return (nanos + 999999) / 1000000;
+	}
+
+}
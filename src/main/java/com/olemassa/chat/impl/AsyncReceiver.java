@@ -0,0 +1,165 @@
+package com.olemassa.chat.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.olemassa.chat.Receiver;
+
+/**
+ * Delivers messages to another {@link Receiver} from a thread of its own, so that a slow
+ * receiver does not hold up the I/O thread, its ACKs or its retransmissions.
+ * <p>
+ * {@link #receive(byte[])} only puts the message on a bounded queue. The dispatcher
+ * thread hands everything that has queued up to {@link Receiver#receiveBatch(List)}, at
+ * most {@link #getMaxBatchSize()} messages at a time. When the queue is full the
+ * {@link OverflowPolicy} decides which message is dropped; the caller never waits.
+ * <pre>
+ * connection.addReceiver(new AsyncReceiver(receiver, 1024, OverflowPolicy.DROP_OLDEST));
+ * </pre>
+ */
+public class AsyncReceiver implements Receiver {
+
+	static final Logger logger = LoggerFactory.getLogger(AsyncReceiver.class);
+
+	static final int QUEUE_CAPACITY = 1024;
+	static final int MAX_BATCH_SIZE = 64;
+	//Sulkeminen herättää jonoa odottavan dispatcherin tällä, sitä ei toimiteta
+	private static final byte[] CLOSED = new byte[0];
+
+	public enum OverflowPolicy {
+		//Uusi viesti hylätään, jonossa jo olevat toimitetaan
+		DROP_NEWEST,
+		//Vanhin jonossa oleva viesti hylätään uuden tieltä
+		DROP_OLDEST
+	}
+
+	private final Receiver target;
+	private final OverflowPolicy policy;
+	private final ArrayBlockingQueue<byte[]> queue;
+	private final Thread dispatcher;
+	private volatile int maxBatchSize = MAX_BATCH_SIZE;
+	private volatile boolean running = true;
+	//Vastaanottaja voi olla usean yhteyden, siis usean säikeen, käytössä
+	private final AtomicLong dropped = new AtomicLong();
+
+	public AsyncReceiver(Receiver target) {
+		this(target, QUEUE_CAPACITY, OverflowPolicy.DROP_NEWEST);
+	}
+
+	public AsyncReceiver(Receiver target, int capacity, OverflowPolicy policy) {
+		logger.debug("AsyncReceiver({}, {}, {})", target, capacity, policy);
+		this.target = target;
+		this.policy = policy;
+		this.queue = new ArrayBlockingQueue<byte[]>(capacity);
+		this.dispatcher = new Thread(this::dispatch, "rdt-receiver");
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+	}
+
+	@Override
+	public void receive(byte[] request) {
+		if (!running) {
+			dropped.incrementAndGet();
+			return;
+		}
+		switch (policy) {
+		case DROP_NEWEST:
+			if (!queue.offer(request)) overflow();
+			break;
+		case DROP_OLDEST:
+			while (!queue.offer(request)) {
+				if (queue.poll() != null) overflow();
+			}
+			break;
+		}
+		//close() ehti väliin: dispatcher on voinut jo lopettaa, joten viesti joko toimitetaan tai lasketaan hylätyksi
+		if (!running && queue.remove(request)) dropped.incrementAndGet();
+	}
+
+	@Override
+	public void receiveBatch(List<byte[]> requests) {
+		for (byte[] request : requests) {
+			receive(request);
+		}
+	}
+
+	/**
+	 * Stops accepting messages. Messages already queued are still delivered, after which
+	 * the dispatcher thread exits; {@link #awaitTermination(long, TimeUnit)} waits for that.
+	 */
+	public void close() {
+		logger.debug("close()");
+		running = false;
+		//Täysi jono ei tarvitse herätystä, dispatcher huomaa sulkemisen tyhjennettyään sen
+		queue.offer(CLOSED);
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		dispatcher.join(unit.toMillis(timeout));
+		return !dispatcher.isAlive();
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		logger.debug("setMaxBatchSize({})", maxBatchSize);
+		if (maxBatchSize < 1) throw new IllegalArgumentException("Koosteen koko pitää olla positiivinen: " + maxBatchSize);
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return policy;
+	}
+
+	//Toimitusta odottavat viestit
+	public int getQueueLength() {
+		return queue.size();
+	}
+
+	//Täyden jonon tai sulkemisen takia hylätyt viestit
+	public long getDroppedMessages() {
+		return dropped.get();
+	}
+
+	private void overflow() {
+		long count = dropped.incrementAndGet();
+		logger.debug("Vastaanottaja ei ehdi mukaan, viestejä hylätty {}", count);
+	}
+
+	private void dispatch() {
+		List<byte[]> batch = new ArrayList<byte[]>();
+		try {
+			while (running || !queue.isEmpty()) {
+				byte[] first = queue.take();
+				if (first == CLOSED) continue;
+				batch.add(first);
+				queue.drainTo(batch, maxBatchSize - 1);
+				//Taulukon equals on identiteetti
+				if (!running) batch.remove(CLOSED);
+				try {
+					target.receiveBatch(batch);
+				} catch (RuntimeException e) {
+					logger.error("Vastaanottaja {} epäonnistui", target, e);
+				}
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			logger.debug("Dispatcher keskeytettiin");
+		}
+		logger.debug("Dispatcher stopped");
+	}
+
+	@Override
+	public String toString() {
+		return "AsyncReceiver(" + target + ")";
+	}
+
+}
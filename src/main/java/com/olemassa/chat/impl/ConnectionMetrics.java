@@ -0,0 +1,267 @@
+package com.olemassa.chat.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.olemassa.chat.impl.util.LatencyHistogram;
+
+/**
+ * Counters and the RTT histogram of one windowed connection. They are always kept, and
+ * cost a striped {@link LongAdder} increment or a histogram store per event, so they can
+ * stay on under load. {@link #register(String)} publishes them as the MBean
+ * <code>com.olemassa.chat:type=Connection,name=...</code> until the connection closes.
+ * <pre>
+ * SelectiveRepeat connection = new SelectiveRepeat(...);
+ * connection.getMetrics().register("chat-" + localport);
+ * </pre>
+ */
+public final class ConnectionMetrics implements ConnectionMetricsMBean {
+
+	static final Logger logger = LoggerFactory.getLogger(ConnectionMetrics.class);
+
+	static final String DOMAIN = "com.olemassa.chat";
+
+	private final WindowedTransfer connection;
+	private final LongAdder packetsSent = new LongAdder();
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder acksSent = new LongAdder();
+	private final LongAdder packetsReceived = new LongAdder();
+	private final LongAdder bytesReceived = new LongAdder();
+	private final LongAdder retransmissions = new LongAdder();
+	private final LongAdder fastRetransmissions = new LongAdder();
+	private final LongAdder duplicatePackets = new LongAdder();
+	private final LongAdder outOfOrderPackets = new LongAdder();
+	private final LongAdder checksumFailures = new LongAdder();
+	private final LongAdder rejectedMessages = new LongAdder();
+	//Vain serverithread kirjaa mittauksia
+	private final LatencyHistogram rtt = new LatencyHistogram();
+	private volatile ObjectName name = null;
+
+	ConnectionMetrics(WindowedTransfer connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server under the given name,
+	 * replacing an earlier registration of this connection. Throws
+	 * {@link IllegalArgumentException} if another MBean already has the name.
+	 */
+	public synchronized void register(String name) {
+		logger.debug("register({})", name);
+		unregister();
+		try {
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=Connection,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			this.name = objectName;
+		} catch (JMException e) {
+			throw new IllegalArgumentException("MBeania ei voitu rekisteröidä nimellä " + name, e);
+		}
+	}
+
+	//Yhteyden sulkeminen kutsuu, rekisteröimättömälle ei tehdä mitään
+	public synchronized void unregister() {
+		ObjectName current = name;
+		if (current == null) return;
+		name = null;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(current)) server.unregisterMBean(current);
+		} catch (JMException e) {
+			logger.warn("MBeania {} ei voitu poistaa", current, e);
+		}
+	}
+
+	public ObjectName getObjectName() {
+		return name;
+	}
+
+	public LatencyHistogram getRttHistogram() {
+		return rtt;
+	}
+
+	void packetSent(int bytes) {
+		packetsSent.increment();
+		bytesSent.add(bytes);
+	}
+
+	void ackSent(int bytes) {
+		acksSent.increment();
+		bytesSent.add(bytes);
+	}
+
+	void packetReceived(int bytes) {
+		packetsReceived.increment();
+		bytesReceived.add(bytes);
+	}
+
+	void retransmission() {
+		retransmissions.increment();
+	}
+
+	void fastRetransmission() {
+		fastRetransmissions.increment();
+	}
+
+	void duplicatePacket() {
+		duplicatePackets.increment();
+	}
+
+	void outOfOrderPacket() {
+		outOfOrderPackets.increment();
+	}
+
+	void checksumFailure() {
+		checksumFailures.increment();
+	}
+
+	void rejectedMessage() {
+		rejectedMessages.increment();
+	}
+
+	void rtt(long nanos) {
+		rtt.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public long getPacketsSent() {
+		return packetsSent.sum();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	@Override
+	public long getAcksSent() {
+		return acksSent.sum();
+	}
+
+	@Override
+	public long getPacketsReceived() {
+		return packetsReceived.sum();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	@Override
+	public long getRetransmissions() {
+		return retransmissions.sum();
+	}
+
+	@Override
+	public long getFastRetransmissions() {
+		return fastRetransmissions.sum();
+	}
+
+	@Override
+	public long getDuplicatePackets() {
+		return duplicatePackets.sum();
+	}
+
+	@Override
+	public long getOutOfOrderPackets() {
+		return outOfOrderPackets.sum();
+	}
+
+	@Override
+	public long getChecksumFailures() {
+		return checksumFailures.sum();
+	}
+
+	@Override
+	public long getRejectedMessages() {
+		return rejectedMessages.sum();
+	}
+
+	@Override
+	public int getWindowSize() {
+		return connection.getWindowSize();
+	}
+
+	@Override
+	public int getPacketsInFlight() {
+		return connection.getPacketsInFlight();
+	}
+
+	@Override
+	public double getWindowFill() {
+		return (double) connection.getPacketsInFlight() / Math.max(1, connection.getWindowSize());
+	}
+
+	@Override
+	public int getCongestionWindow() {
+		return connection.getCongestionWindow();
+	}
+
+	@Override
+	public int getSendQueueLength() {
+		return connection.getSendQueueLength();
+	}
+
+	@Override
+	public long getSmoothedRtt() {
+		return connection.getSmoothedRtt(TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public long getRetransmissionTimeout() {
+		return connection.getRetransmissionTimeout(TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public long getRttSamples() {
+		return rtt.getCount();
+	}
+
+	@Override
+	public double getRttMeanMicros() {
+		return rtt.getMeanMicros();
+	}
+
+	@Override
+	public long getRttP50Micros() {
+		return rtt.getValueAtPercentile(50, TimeUnit.MICROSECONDS);
+	}
+
+	@Override
+	public long getRttP99Micros() {
+		return rtt.getValueAtPercentile(99, TimeUnit.MICROSECONDS);
+	}
+
+	@Override
+	public long getRttP999Micros() {
+		return rtt.getValueAtPercentile(99.9, TimeUnit.MICROSECONDS);
+	}
+
+	@Override
+	public long getRttMaxMicros() {
+		return rtt.getMax(TimeUnit.MICROSECONDS);
+	}
+
+	@Override
+	public String dumpFlightRecorder() {
+		FlightRecorder recorder = connection.getFlightRecorder();
+		return recorder == null ? "" : recorder.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "ConnectionMetrics [sent=" + getPacketsSent() + ", received=" + getPacketsReceived()
+				+ ", retransmissions=" + getRetransmissions() + ", duplicates=" + getDuplicatePackets()
+				+ ", outOfOrder=" + getOutOfOrderPackets() + ", checksumFailures=" + getChecksumFailures()
+				+ ", rejected=" + getRejectedMessages() + ", " + rtt + "]";
+	}
+
+}
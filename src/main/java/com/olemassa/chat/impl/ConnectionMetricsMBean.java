@@ -0,0 +1,69 @@
+package com.olemassa.chat.impl;
+
+/**
+ * What a windowed connection publishes over JMX, see {@link ConnectionMetrics}.
+ * Counters run from the creation of the connection, durations are in milliseconds
+ * unless the name says otherwise.
+ */
+public interface ConnectionMetricsMBean {
+
+	//Datapaketit ja niiden tavut uudelleenlähetykset mukaan lukien
+	long getPacketsSent();
+
+	long getBytesSent();
+
+	//Erilliset kuittaukset, datapakettien mukana kulkevat eivät ole mukana
+	long getAcksSent();
+
+	//Kaikki luettavat datagrammit, data ja kuittaukset
+	long getPacketsReceived();
+
+	long getBytesReceived();
+
+	long getRetransmissions();
+
+	long getFastRetransmissions();
+
+	//Jo saadut tai vastaanottoikkunan ulkopuoliset datapaketit
+	long getDuplicatePackets();
+
+	//Aukon jälkeen saapuneet datapaketit
+	long getOutOfOrderPackets();
+
+	//Datagrammit, joiden tarkistussumma tai otsikko ei kelvannut
+	long getChecksumFailures();
+
+	//send() hylkäsi viestin täyden jonon takia
+	long getRejectedMessages();
+
+	int getWindowSize();
+
+	int getPacketsInFlight();
+
+	//Matkalla olevien osuus lähetysikkunasta, 0 - 1
+	double getWindowFill();
+
+	int getCongestionWindow();
+
+	int getSendQueueLength();
+
+	long getSmoothedRtt();
+
+	long getRetransmissionTimeout();
+
+	long getRttSamples();
+
+	double getRttMeanMicros();
+
+	long getRttP50Micros();
+
+	long getRttP99Micros();
+
+	long getRttP999Micros();
+
+	long getRttMaxMicros();
+
+	//Yhteyden FlightRecorderin tapahtumat tekstinä, tyhjä jos nauhuria ei ole
+	String dumpFlightRecorder();
+
+}
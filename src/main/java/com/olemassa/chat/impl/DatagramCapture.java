@@ -0,0 +1,310 @@
+package com.olemassa.chat.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.olemassa.chat.impl.util.TimingWheel;
+
+/**
+ * Every datagram a connection reads from or writes to its transport, appended to a
+ * memory-mapped file with its time and direction, so that a problem seen in the field
+ * can be replayed and profiled offline without the peer. The file is mapped a region at
+ * a time and a record is a copy into the mapping, no system call.
+ * <pre>
+ * DatagramCapture capture = DatagramCapture.create(Paths.get("chat.cap"));
+ * connection.setCapture(capture);
+ * ...
+ * capture.close();
+ * </pre>
+ * Inbound datagrams are captured before the inbound impairment, outbound ones as they
+ * are handed to the transport. The file starts with a header
+ * <pre>
+ * 0  magic       8 bytes  "RDTCAP01"
+ * 8  start time  8 bytes  wall clock at creation, milliseconds since the epoch
+ * </pre>
+ * followed by records
+ * <pre>
+ * 0  time        8 bytes  nanoseconds since creation
+ * 8  direction   1 byte   1 inbound, 2 outbound
+ * 9  reserved    1 byte
+ * 10 length      2 bytes  unsigned
+ * 12 datagram    length bytes
+ * </pre>
+ * A direction of 0 ends the records, so a file left at a region's size by a crash
+ * still reads up to its last complete record. See {@link Reader}.
+ * <p>
+ * Connections may share a capture, recording is synchronized. The capture belongs to
+ * whoever created it: closing a connection does not close its capture.
+ */
+public final class DatagramCapture implements Closeable {
+
+	static final Logger logger = LoggerFactory.getLogger(DatagramCapture.class);
+
+	//Tiedostosta kerrallaan kuvattava alue
+	public static final int DEFAULT_REGION_SIZE = 16 * 1024 * 1024;
+
+	static final long MAGIC = 0x5244544341503031L;
+	static final int FILE_HEADER_LENGTH = 16;
+	static final int RECORD_HEADER_LENGTH = 12;
+	static final int MAX_DATAGRAM_LENGTH = 0xFFFF;
+
+	public enum Direction {
+		INBOUND,
+		OUTBOUND;
+
+		private static final Direction[] CODES = {null, INBOUND, OUTBOUND};
+
+		//Tiedostossa 0 on tietueiden loppu
+		byte code() {
+			return (byte) (ordinal() + 1);
+		}
+
+		static Direction of(byte code) {
+			return code > 0 && code < CODES.length ? CODES[code] : null;
+		}
+	}
+
+	private final Path file;
+	private final FileChannel channel;
+	private final int regionSize;
+	private final long startNanos = TimingWheel.now();
+	//Nykyinen alue alkaa tiedostossa kohdasta regionStart, vain lukon alla
+	private MappedByteBuffer region;
+	private long regionStart = 0;
+	private long records = 0;
+	private boolean closed = false;
+
+	public static DatagramCapture create(Path file) throws IOException {
+		return new DatagramCapture(file, DEFAULT_REGION_SIZE);
+	}
+
+	//Olemassa oleva tiedosto korvataan. Alueeseen pitää mahtua ainakin yksi suurin datagrammi
+	public DatagramCapture(Path file, int regionSize) throws IOException {
+		logger.debug("DatagramCapture({}, {})", file, regionSize);
+		if (regionSize < FILE_HEADER_LENGTH + RECORD_HEADER_LENGTH + MAX_DATAGRAM_LENGTH)
+			throw new IllegalArgumentException("Alue on liian pieni: " + regionSize);
+		this.file = file;
+		this.regionSize = regionSize;
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			region = channel.map(FileChannel.MapMode.READ_WRITE, 0, regionSize);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		region.putLong(MAGIC);
+		region.putLong(System.currentTimeMillis());
+	}
+
+	/**
+	 * Appends the bytes from <code>offset</code> to <code>offset + length</code> of the
+	 * datagram, regardless of its position and limit. A capture that cannot grow its file
+	 * logs the error and stops recording, the connection carries on.
+	 */
+	synchronized void record(Direction direction, ByteBuffer datagram, int offset, int length) {
+		if (closed) return;
+		long time = TimingWheel.now() - startNanos;
+		length = Math.min(length, MAX_DATAGRAM_LENGTH);
+		//Tietue ei jatku alueelta toiselle, uusi alue alkaa siitä mihin edellinen jäi
+		if (region.remaining() < RECORD_HEADER_LENGTH + length) {
+			try {
+				nextRegion();
+			} catch (IOException e) {
+				logger.error("Kaappausta {} ei voitu jatkaa", file, e);
+				closeQuietly();
+				return;
+			}
+		}
+		region.putLong(time);
+		region.put(direction.code());
+		region.put((byte) 0);
+		region.putShort((short) length);
+		if (datagram.hasArray()) {
+			region.put(datagram.array(), datagram.arrayOffset() + offset, length);
+		} else {
+			for (int i = 0; i < length; i++) {
+				region.put(datagram.get(offset + i));
+			}
+		}
+		records++;
+	}
+
+	private void nextRegion() throws IOException {
+		regionStart += region.position();
+		region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, regionSize);
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	public synchronized long getRecords() {
+		return records;
+	}
+
+	//Tiedoston käytetty osa tavuina
+	public synchronized long getLength() {
+		return regionStart + region.position();
+	}
+
+	/**
+	 * Flushes the records to the file and cuts it at the last one. Recording into a
+	 * closed capture does nothing.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		logger.debug("close() {} records", records);
+		if (closed) return;
+		closed = true;
+		long length = getLength();
+		try {
+			region.force();
+			//Kuvattua tiedostoa ei kaikkialla voi lyhentää, silloin loppumerkki riittää
+			try {
+				channel.truncate(length);
+			} catch (IOException e) {
+				logger.warn("Kaappausta {} ei voitu lyhentää", file, e);
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void closeQuietly() {
+		try {
+			close();
+		} catch (IOException e) {
+			logger.warn("Kaappauksen {} sulkeminen ei onnistu", file, e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "DatagramCapture(" + file + ")";
+	}
+
+	/**
+	 * Reads a capture record by record, mapping the file a region at a time. The reader
+	 * is a cursor: {@link #next()} moves to the next record and the getters describe it.
+	 * <pre>
+	 * try (DatagramCapture.Reader reader = DatagramCapture.open(path)) {
+	 *     while (reader.next()) {
+	 *         buffer.clear();
+	 *         reader.read(buffer);
+	 *         ...
+	 *     }
+	 * }
+	 * </pre>
+	 */
+	public static final class Reader implements Closeable {
+
+		private final FileChannel channel;
+		private final long size;
+		private final long startTime;
+		private MappedByteBuffer region;
+		private long regionStart = 0;
+		//Seuraavan tietueen kohta tiedostossa, -1 lopun jälkeen
+		private long position = FILE_HEADER_LENGTH;
+		//Nykyinen tietue alueen sisällä
+		private int recordOffset;
+		private long time;
+		private Direction direction;
+		private int length;
+
+		private Reader(Path file) throws IOException {
+			channel = FileChannel.open(file, StandardOpenOption.READ);
+			try {
+				size = channel.size();
+				if (size < FILE_HEADER_LENGTH) throw new IOException("Tiedosto ei ole kaappaus: " + file);
+				map(0);
+				if (region.getLong(0) != MAGIC) throw new IOException("Tiedosto ei ole kaappaus: " + file);
+				startTime = region.getLong(8);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		//Palauttaa kohdan alueen sisällä, kuvaa uuden alueen jos bytes tavua eivät mahdu nykyiseen
+		private int mapped(long position, int bytes) throws IOException {
+			if (position + bytes > regionStart + region.limit()) map(position);
+			return (int) (position - regionStart);
+		}
+
+		private void map(long start) throws IOException {
+			regionStart = start;
+			region = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(DEFAULT_REGION_SIZE, size - start));
+		}
+
+		/**
+		 * Moves to the next record, false at the end of the capture or at a record cut
+		 * short by a crash.
+		 */
+		public boolean next() throws IOException {
+			if (position < 0 || position + RECORD_HEADER_LENGTH > size) return end();
+			int offset = mapped(position, RECORD_HEADER_LENGTH);
+			Direction next = Direction.of(region.get(offset + 8));
+			int nextLength = region.getShort(offset + 10) & 0xFFFF;
+			if (next == null || position + RECORD_HEADER_LENGTH + nextLength > size) return end();
+			recordOffset = mapped(position, RECORD_HEADER_LENGTH + nextLength);
+			time = region.getLong(recordOffset);
+			direction = next;
+			length = nextLength;
+			position += RECORD_HEADER_LENGTH + nextLength;
+			return true;
+		}
+
+		private boolean end() {
+			position = -1;
+			direction = null;
+			length = 0;
+			return false;
+		}
+
+		//Kaappauksen aloitushetki, millisekunteja epochista
+		public long getStartTime() {
+			return startTime;
+		}
+
+		public long getTime(TimeUnit unit) {
+			return unit.convert(time, TimeUnit.NANOSECONDS);
+		}
+
+		public Direction getDirection() {
+			return direction;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		//Kopioi datagrammin puskuriin sen positionista alkaen
+		public void read(ByteBuffer destination) {
+			for (int i = 0; i < length; i++) {
+				destination.put(region.get(recordOffset + RECORD_HEADER_LENGTH + i));
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+
+	}
+
+	public static Reader open(Path file) throws IOException {
+		logger.debug("open({})", file);
+		return new Reader(file);
+	}
+
+}
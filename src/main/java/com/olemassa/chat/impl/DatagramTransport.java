@@ -0,0 +1,109 @@
+package com.olemassa.chat.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * UDP through a non-blocking {@link DatagramChannel}, selected by the event loop.
+ */
+public final class DatagramTransport extends Transport {
+
+	static final Logger logger = LoggerFactory.getLogger(DatagramTransport.class);
+
+	private final DatagramChannel channel;
+
+	private DatagramTransport(DatagramChannel channel) {
+		this.channel = channel;
+	}
+
+	//Yhden vastapuolen yhteydelle, kanava kytketään vastapuoleen
+	public static DatagramTransport connect(String localhost, int localport, String remotehost, int remoteport) throws SocketException {
+		logger.debug("connect({}, {}, {}, {})", localhost, localport, remotehost, remoteport);
+		return open(localhost, localport, new InetSocketAddress(remotehost, remoteport));
+	}
+
+	//Palvelimelle, joka vastaanottaa kaikilta
+	public static DatagramTransport bind(String localhost, int localport) throws SocketException {
+		logger.debug("bind({}, {})", localhost, localport);
+		return open(localhost, localport, null);
+	}
+
+	private static DatagramTransport open(String localhost, int localport, SocketAddress remote) throws SocketException {
+		DatagramChannel channel = null;
+		try {
+			channel = DatagramChannel.open();
+			channel.bind(new InetSocketAddress(localhost, localport));
+			if (remote != null) channel.connect(remote);
+			channel.configureBlocking(false);
+			return new DatagramTransport(channel);
+		} catch (IOException e) {
+			if (channel != null) try {
+				channel.close();
+			} catch (IOException ignore) {}
+			if (e instanceof SocketException) throw (SocketException) e;
+			SocketException socketException = new SocketException("Kanavaa ei saatu auki: " + e.getMessage());
+			socketException.initCause(e);
+			throw socketException;
+		}
+	}
+
+	@Override
+	SocketAddress receive(ByteBuffer buffer) throws IOException {
+		return channel.receive(buffer);
+	}
+
+	@Override
+	void send(ByteBuffer datagram, SocketAddress target) throws IOException {
+		if (target == null) {
+			channel.write(datagram);
+		} else {
+			channel.send(datagram, target);
+		}
+	}
+
+	@Override
+	void register(Selector selector, Session session) throws IOException {
+		channel.register(selector, SelectionKey.OP_READ, session);
+	}
+
+	@Override
+	void deregister(Selector selector) {
+		SelectionKey key = channel.keyFor(selector);
+		if (key != null) key.cancel();
+	}
+
+	//Käyttöjärjestelmän vastaanottopuskuriin pitää mahtua koko ikkunallinen, muuten iso ikkuna hukkaa paketteja
+	@Override
+	void reserveReceiveBuffer(int bytes) throws IOException {
+		if (channel.getOption(StandardSocketOptions.SO_RCVBUF) < bytes) {
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, bytes);
+		}
+		logger.debug("SO_RCVBUF {}", channel.getOption(StandardSocketOptions.SO_RCVBUF));
+	}
+
+	@Override
+	public SocketAddress getLocalAddress() throws IOException {
+		return channel.getLocalAddress();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	@Override
+	public String toString() {
+		return channel.toString();
+	}
+
+}
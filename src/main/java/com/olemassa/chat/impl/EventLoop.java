@@ -0,0 +1,190 @@
+package com.olemassa.chat.impl;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.olemassa.chat.impl.util.TimingWheel;
+
+/**
+ * One I/O thread with one {@link Selector} driving any number of {@link Session}s.
+ * Sessions are registered and deregistered through a task queue, so only the loop
+ * thread ever touches the selector keys and the sessions' protocol state. A transport
+ * without a selectable channel, such as {@link InMemoryTransport}, reports arrivals
+ * with {@link #ready(Session)} instead.
+ * <p>
+ * After each round only the sessions that read datagrams, asked for it with
+ * {@link #requestPoll(Session)} or have a deadline due are polled, so an idle session
+ * costs nothing however many share the loop.
+ * <p>
+ * Other threads wake the loop with {@link #wakeup()}. It raises a flag and calls
+ * {@link Selector#wakeup()} only if the loop has announced that it is about to block;
+ * the loop raises that announcement before it checks the flag, so no wakeup is lost.
+ */
+final class EventLoop implements Runnable {
+
+	static final Logger logger = LoggerFactory.getLogger(EventLoop.class);
+
+	private final Selector selector;
+	//Loppuuko silmukka, kun viimeinen istunto poistuu. Yhden istunnon omalle silmukalle
+	private final boolean exitWhenEmpty;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	//Istunnot, joiden kuljetus ilmoitti saapuneista datagrammeista selectorin ohi
+	private final Queue<Session> readySessions = new ConcurrentLinkedQueue<Session>();
+	//Vain silmukan säie
+	private final List<Session> sessions = new ArrayList<Session>();
+	private final SessionScheduler scheduler = new SessionScheduler();
+	private final AtomicInteger sessionCount = new AtomicInteger();
+	private final AtomicBoolean signalled = new AtomicBoolean();
+	private volatile boolean sleeping = false;
+	private volatile boolean running = true;
+
+	EventLoop(boolean exitWhenEmpty) throws IOException {
+		this.selector = Selector.open();
+		this.exitWhenEmpty = exitWhenEmpty;
+	}
+
+	void register(final Session session) {
+		logger.debug("register({})", session);
+		session.loop = this;
+		sessionCount.incrementAndGet();
+		execute(() -> {
+			try {
+				session.transport().register(selector, session);
+				sessions.add(session);
+				scheduler.mark(session);
+				//stopListening ennen rekisteröintiä ei nähnyt silmukkaa
+				if (!session.isListening() && sessions.remove(session)) terminate(session);
+			} catch (IOException e) {
+				logger.error("Kuljetusta ei voi rekisteröidä", e);
+				terminate(session);
+			}
+		});
+	}
+
+	//Sulkee istunnon silmukan säikeessä, kahdesti kutsuminen ei haittaa
+	void deregister(final Session session) {
+		logger.debug("deregister({})", session);
+		execute(() -> {
+			if (sessions.remove(session)) terminate(session);
+		});
+	}
+
+	//Istuntoja, mukaan lukien rekisteröinnit joita silmukka ei ole vielä käsitellyt
+	int getSessionCount() {
+		return sessionCount.get();
+	}
+
+	void shutdown() {
+		logger.debug("shutdown()");
+		running = false;
+		wakeup();
+	}
+
+	void execute(Runnable task) {
+		tasks.add(task);
+		wakeup();
+	}
+
+	//Kuljetuksen datagrammeja voi lukea, mistä tahansa säikeestä
+	void ready(Session session) {
+		readySessions.add(session);
+		wakeup();
+	}
+
+	//Istunnolla on uutta työtä, mistä tahansa säikeestä
+	void requestPoll(Session session) {
+		if (scheduler.request(session)) wakeup();
+	}
+
+	void wakeup() {
+		if (!signalled.getAndSet(true) && sleeping) selector.wakeup();
+	}
+
+	private void terminate(Session session) {
+		session.transport().deregister(selector);
+		scheduler.remove(session);
+		try {
+			session.close();
+		} catch (RuntimeException e) {
+			logger.error("Istunnon sulkeminen ei onnistu", e);
+		}
+		session.terminated.complete(null);
+		if (sessionCount.decrementAndGet() == 0 && exitWhenEmpty) running = false;
+	}
+
+	//Yhden istunnon virhe ei saa estää muiden lukemista
+	private void readable(Session session) {
+		scheduler.mark(session);
+		try {
+			session.readable();
+		} catch (IOException e) {
+			logger.error("Istunnon {} lukeminen ei onnistu", session, e);
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	@Override
+	public void run() {
+		logger.debug("run()");
+		try {
+			long waitMillis = 0;
+			while (running) try {
+
+				sleeping = true;
+				if (signalled.getAndSet(false)) waitMillis = 0;
+				if (waitMillis == WindowedTransfer.NO_DEADLINE) {
+					selector.select();
+				} else if (waitMillis > 0) {
+					selector.select(waitMillis);
+				} else {
+					selector.selectNow();
+				}
+				sleeping = false;
+
+				for (SelectionKey key : selector.selectedKeys()) {
+					if (key.isValid()) readable((Session) key.attachment());
+				}
+				selector.selectedKeys().clear();
+				Session ready;
+				while ((ready = readySessions.poll()) != null) {
+					if (ready.isListening()) readable(ready);
+				}
+				runTasks();
+
+			} catch (IOException e) {
+				logger.error("Selector ei toimi", e);
+			} finally {
+				waitMillis = scheduler.poll(TimingWheel.now());
+			}
+		} finally {
+			runTasks();
+			for (Session session : new ArrayList<Session>(sessions)) {
+				sessions.remove(session);
+				terminate(session);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				logger.error("Selectorin sulkeminen ei onnistu", e);
+			}
+			logger.debug("Event loop stopped");
+		}
+	}
+
+}
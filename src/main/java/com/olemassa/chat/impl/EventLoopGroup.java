@@ -0,0 +1,138 @@
+package com.olemassa.chat.impl;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.olemassa.chat.ReliableDataTransfer;
+
+/**
+ * A fixed number of I/O threads shared by any number of connections and servers, so
+ * that a thousand sessions do not need a thousand threads. A new session goes to the
+ * loop with the fewest sessions, and stays there until it is deregistered.
+ * <p>
+ * Usage:
+ * <pre>
+ * EventLoopGroup group = new EventLoopGroup();
+ * SelectiveRepeat connection = new SelectiveRepeat("localhost", 7777, "localhost", 7778, 10, 1000);
+ * group.register(connection);
+ * ...
+ * group.deregister(connection).join();
+ * </pre>
+ * The threads are daemons and started on the first registration.
+ */
+public class EventLoopGroup {
+
+	static final Logger logger = LoggerFactory.getLogger(EventLoopGroup.class);
+
+	private final EventLoop[] loops;
+	private final Thread[] threads;
+	private boolean started = false;
+	private boolean shutdown = false;
+
+	//Yksi silmukka jokaista prosessoria kohti
+	public EventLoopGroup() throws IOException {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public EventLoopGroup(int threadCount) throws IOException {
+		logger.info("EventLoopGroup({})", threadCount);
+		if (threadCount < 1) throw new IllegalArgumentException("Säikeitä pitää olla ainakin yksi: " + threadCount);
+		loops = new EventLoop[threadCount];
+		threads = new Thread[threadCount];
+		try {
+			for (int i = 0; i < threadCount; i++) {
+				loops[i] = new EventLoop(false);
+				threads[i] = new Thread(loops[i], "rdt-io-" + i);
+				threads[i].setDaemon(true);
+			}
+		} catch (IOException e) {
+			//Jo avatut silmukat ajetaan loppuun, jotta niiden selectorit suljetaan
+			for (int i = 0; i < threadCount && threads[i] != null; i++) {
+				loops[i].shutdown();
+				threads[i].start();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Starts driving a connection built with its own local port. The connection must not
+	 * be running elsewhere, e.g. in a thread of its own with {@link Runnable#run()}. The
+	 * returned future completes once the connection has been closed after
+	 * {@link #deregister(ReliableDataTransfer)} or {@link #shutdown()}.
+	 */
+	public CompletableFuture<Void> register(ReliableDataTransfer connection) {
+		logger.debug("register({})", connection);
+		if (!(connection instanceof WindowedTransfer) || ((WindowedTransfer) connection).getRemoteAddress() != null)
+			throw new IllegalArgumentException("Protokollaa ei voi ajaa silmukassa: " + connection);
+		return register((Session) connection);
+	}
+
+	//Palvelimen yhteydet ajetaan palvelimen mukana samassa silmukassa
+	public CompletableFuture<Void> register(PeerServer server) {
+		logger.debug("register({})", server);
+		return register((Session) server);
+	}
+
+	//Kutsuu stopListening(), paluuarvo valmistuu kun yhteys on suljettu
+	public CompletableFuture<Void> deregister(ReliableDataTransfer connection) {
+		logger.debug("deregister({})", connection);
+		connection.stopListening();
+		if (!(connection instanceof Session)) return CompletableFuture.completedFuture(null);
+		return ((Session) connection).terminated;
+	}
+
+	public CompletableFuture<Void> deregister(PeerServer server) {
+		logger.debug("deregister({})", server);
+		server.stopListening();
+		return server.terminated;
+	}
+
+	public int getThreadCount() {
+		return loops.length;
+	}
+
+	//Istuntoja kaikissa silmukoissa yhteensä
+	public int getSessionCount() {
+		int count = 0;
+		for (EventLoop loop : loops) {
+			count += loop.getSessionCount();
+		}
+		return count;
+	}
+
+	//Sulkee kaikki istunnot ja pysäyttää säikeet
+	public synchronized void shutdown() {
+		logger.debug("shutdown()");
+		shutdown = true;
+		for (EventLoop loop : loops) {
+			loop.shutdown();
+		}
+		//Käynnistämätön silmukka pysähtyy heti ja sulkee selectorinsa
+		start();
+	}
+
+	private synchronized CompletableFuture<Void> register(Session session) {
+		if (shutdown) throw new IllegalStateException("Silmukat on jo pysäytetty");
+		if (session.loop != null) throw new IllegalStateException("Istunto on jo rekisteröity");
+		start();
+		EventLoop least = loops[0];
+		for (EventLoop loop : loops) {
+			if (loop.getSessionCount() < least.getSessionCount()) least = loop;
+		}
+		least.register(session);
+		return session.terminated;
+	}
+
+	private synchronized void start() {
+		if (started) return;
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		started = true;
+	}
+
+}
@@ -0,0 +1,115 @@
+package com.olemassa.chat.impl;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import com.olemassa.chat.impl.util.SerialNumber;
+import com.olemassa.chat.impl.util.TimingWheel;
+
+/**
+ * The last packet lifecycle events of one connection in a preallocated ring of longs:
+ * what was sent, received, acknowledged, retransmitted, dropped and delivered, with the
+ * time, sequence and acknowledgement numbers and the length. Recording writes four
+ * longs and allocates nothing; a connection without a recorder pays one null check.
+ * <pre>
+ * connection.setFlightRecorder(new FlightRecorder(FlightRecorder.DEFAULT_CAPACITY));
+ * ...
+ * connection.getFlightRecorder().dump(new PrintWriter(System.err, true));
+ * </pre>
+ * Only the I/O thread of the connection records. {@link #dump(PrintWriter)} is exact
+ * once the connection has closed or from the I/O thread; from elsewhere the newest
+ * events may be half written.
+ */
+public final class FlightRecorder {
+
+	//Noin 130 kt, tuhansia paketteja taaksepäin
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	public enum Event {
+		//Datapaketti lähti ensimmäistä kertaa, tai uudelleen
+		SEND,
+		RETRANSMIT,
+		//Erillinen kuittaus lähti: sequence 0, ack ja SACK-bitit omissa kentissään
+		ACK_SENT,
+		//Datapaketti, mahdollisesti kuittauksen kanssa, tai pelkkä kuittaus saapui
+		RECEIVE,
+		RECEIVE_ACK,
+		//Lähetetty paketti kuitattiin
+		ACKED,
+		//Uudelleenlähetysajastin laukesi, tai kaksoiskuittaukset laukaisivat nopean uudelleenlähetyksen
+		TIMEOUT,
+		FAST_RETRANSMIT,
+		//Tarkastuksessa hylätty datagrammi, vain pituus
+		DROP,
+		DUPLICATE,
+		OUT_OF_ORDER,
+		//Paketin sisältö annettiin sovellukselle
+		DELIVER
+	}
+
+	private static final Event[] EVENTS = Event.values();
+	private static final int SLOTS = 4;
+	private static final int MAX_CAPACITY = 1 << 24;
+
+	//Tapahtuma i on kohdissa (i & mask) * SLOTS ...: aika, tyyppi ja pituus, järjestysnumero ja ack, sack
+	private final long[] ring;
+	private final int mask;
+	private long recorded = 0;
+
+	//Kapasiteetti tapahtumina pyöristetään ylös kahden potenssiin
+	public FlightRecorder(int capacity) {
+		if (capacity < 1 || capacity > MAX_CAPACITY) throw new IllegalArgumentException("Kapasiteetti ei kelpaa: " + capacity);
+		int size = SerialNumber.ringSize(capacity);
+		ring = new long[size * SLOTS];
+		mask = size - 1;
+	}
+
+	void record(Event event, int sequence, int ack, int sack, int length) {
+		int base = (int) (recorded & mask) * SLOTS;
+		ring[base] = TimingWheel.now();
+		ring[base + 1] = (long) event.ordinal() << 32 | (length & 0xFFFFFFFFL);
+		ring[base + 2] = (long) sequence << 32 | (ack & 0xFFFFFFFFL);
+		ring[base + 3] = sack;
+		recorded++;
+	}
+
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	//Kaikki koskaan kirjatut, renkaassa on näistä viimeiset getCapacity()
+	public long getRecordedEvents() {
+		return recorded;
+	}
+
+	/**
+	 * Writes the events in the ring, oldest first, one per line: time relative to the
+	 * newest event, the event and its numbers.
+	 */
+	public void dump(PrintWriter out) {
+		long end = recorded;
+		long start = Math.max(0, end - (mask + 1));
+		if (end == start) return;
+		long newest = ring[(int) ((end - 1) & mask) * SLOTS];
+		for (long i = start; i < end; i++) {
+			int base = (int) (i & mask) * SLOTS;
+			long age = newest - ring[base];
+			Event event = EVENTS[(int) (ring[base + 1] >>> 32)];
+			int length = (int) ring[base + 1];
+			int sequence = (int) (ring[base + 2] >>> 32);
+			int ack = (int) ring[base + 2];
+			out.printf("%12.3f ms %-15s seq=%d ack=%d sack=%s len=%d%n",
+					-age / (double) TimeUnit.MILLISECONDS.toNanos(1), event, sequence, ack, Integer.toBinaryString((int) ring[base + 3]), length);
+		}
+		out.flush();
+	}
+
+	@Override
+	public String toString() {
+		StringWriter text = new StringWriter();
+		dump(new PrintWriter(text));
+		return text.toString();
+	}
+
+}
@@ -0,0 +1,168 @@
+package com.olemassa.chat.impl;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.olemassa.chat.impl.util.MpscQueue;
+
+/**
+ * One end of a pair of in-process transports: what one end sends, the other receives,
+ * without sockets or system calls. Two connections on a pair exercise the whole
+ * protocol, windows, timers and all, so its CPU cost can be measured apart from the
+ * kernel's.
+ * <pre>
+ * InMemoryTransport[] pair = InMemoryTransport.pair();
+ * SelectiveRepeat a = new SelectiveRepeat(pair[0], 64, 200);
+ * SelectiveRepeat b = new SelectiveRepeat(pair[1], 64, 200);
+ * </pre>
+ * Like UDP, a datagram that does not fit in the receiving end's queue, or is sent to a
+ * closed end, is dropped. Datagram buffers travel back to the sender once read, so the
+ * steady state allocates nothing.
+ */
+public final class InMemoryTransport extends Transport {
+
+	static final Logger logger = LoggerFactory.getLogger(InMemoryTransport.class);
+
+	//Jonoon mahtuvat datagrammit, vastaa käyttöjärjestelmän vastaanottopuskuria
+	static final int CAPACITY = 1024;
+
+	private static final AtomicInteger nextId = new AtomicInteger();
+
+	//Osoite, jonka vastaanottaja näkee lähettäjänä
+	private static final class Address extends SocketAddress {
+
+		private static final long serialVersionUID = 1L;
+		private final int id;
+
+		private Address(int id) {
+			this.id = id;
+		}
+
+		@Override
+		public String toString() {
+			return "memory:" + id;
+		}
+
+	}
+
+	private final Address address = new Address(nextId.getAndIncrement());
+	private InMemoryTransport peer;
+	//Vastapuolen lähettämät, vain tämän pään silmukka lukee
+	private final MpscQueue<ByteBuffer> inbound;
+	//Luetut puskurit palaavat lähettäjälle, vain vastapuolen silmukka ottaa niitä
+	private final MpscQueue<ByteBuffer> recycled;
+	//Onko silmukalle jo ilmoitettu saapuneista
+	private final AtomicBoolean signalled = new AtomicBoolean();
+	private volatile Session session;
+	private volatile boolean closed = false;
+	private volatile long dropped = 0;
+
+	private InMemoryTransport(int capacity) {
+		inbound = new MpscQueue<ByteBuffer>(capacity);
+		recycled = new MpscQueue<ByteBuffer>(capacity);
+	}
+
+	public static InMemoryTransport[] pair() {
+		return pair(CAPACITY);
+	}
+
+	//capacity datagrammia kumpaankin suuntaan
+	public static InMemoryTransport[] pair(int capacity) {
+		logger.debug("pair({})", capacity);
+		InMemoryTransport first = new InMemoryTransport(capacity);
+		InMemoryTransport second = new InMemoryTransport(capacity);
+		first.peer = second;
+		second.peer = first;
+		return new InMemoryTransport[] {first, second};
+	}
+
+	public InMemoryTransport getPeer() {
+		return peer;
+	}
+
+	//Täyteen jonoon tai suljettuun päähän lähetetyt, laskettu vastaanottavalle päälle
+	public long getDroppedDatagrams() {
+		return dropped;
+	}
+
+	@Override
+	SocketAddress receive(ByteBuffer buffer) throws IOException {
+		ByteBuffer datagram = inbound.poll();
+		if (datagram == null) {
+			//Ilmoitus nollataan ennen viimeistä tarkistusta, joten sen jälkeen saapuva herättää silmukan uudelleen
+			signalled.set(false);
+			datagram = inbound.poll();
+			if (datagram == null) return null;
+		}
+		if (datagram.remaining() > buffer.remaining()) datagram.limit(datagram.position() + buffer.remaining());
+		buffer.put(datagram);
+		peer.recycled.offer(datagram);
+		return peer.address;
+	}
+
+	@Override
+	void send(ByteBuffer datagram, SocketAddress target) throws IOException {
+		if (closed) throw new ClosedChannelException();
+		InMemoryTransport receiver = peer;
+		if (receiver.closed) {
+			receiver.dropped++;
+			return;
+		}
+		int length = datagram.remaining();
+		ByteBuffer copy = recycled.poll();
+		if (copy == null || copy.capacity() < length) copy = ByteBuffer.allocate(Math.max(length, WirePacket.MAX_PACKET_LENGTH));
+		copy.clear();
+		copy.put(datagram).flip();
+		if (!receiver.inbound.offer(copy)) {
+			receiver.dropped++;
+			return;
+		}
+		receiver.signal();
+	}
+
+	private void signal() {
+		Session current = session;
+		if (current == null || signalled.getAndSet(true)) return;
+		EventLoop loop = current.loop;
+		if (loop != null) loop.ready(current);
+	}
+
+	@Override
+	void register(Selector selector, Session session) throws IOException {
+		if (closed) throw new ClosedChannelException();
+		this.session = session;
+		//Ennen rekisteröintiä saapuneet
+		if (!inbound.isEmpty()) signal();
+	}
+
+	@Override
+	void deregister(Selector selector) {
+		session = null;
+	}
+
+	@Override
+	public SocketAddress getLocalAddress() {
+		return address;
+	}
+
+	@Override
+	public void close() {
+		logger.debug("close()");
+		closed = true;
+		session = null;
+	}
+
+	@Override
+	public String toString() {
+		return "InMemoryTransport(" + address + " -> " + peer.address + ")";
+	}
+
+}
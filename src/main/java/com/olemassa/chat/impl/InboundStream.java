@@ -0,0 +1,45 @@
+package com.olemassa.chat.impl;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Delivery order within one stream of a connection. A packet is delivered as soon as
+ * every earlier packet of the same stream has been delivered, whatever happened to the
+ * packets of other streams in between. Stream sequences are 16-bit serial numbers, see
+ * {@link WirePacket#STREAM_SEQUENCE_OFFSET}. Used only from the I/O thread.
+ */
+final class InboundStream {
+
+	private int nextSequence = 0;
+	//Oman edeltäjänsä odottajat, korkeintaan ikkunallinen koska ikkuna ei ohita puuttuvaa pakettia
+	private final HashMap<Integer, Packet> pending = new HashMap<Integer, Packet>();
+
+	/**
+	 * Adds the packets that can now be delivered to <code>ready</code>, in order. A packet
+	 * that has to wait for its predecessor is retained until it is handed out; the caller
+	 * releases the handed out packets other than <code>packet</code> after delivering them.
+	 */
+	void offer(Packet packet, List<Packet> ready) {
+		int sequence = packet.getStreamSequence();
+		int distance = (short) (sequence - nextSequence);
+		if (distance < 0) return;
+		if (distance > 0) {
+			if (!pending.containsKey(sequence)) pending.put(sequence, packet.retain());
+			return;
+		}
+		nextSequence = (nextSequence + 1) & 0xFFFF;
+		ready.add(packet);
+		if (pending.isEmpty()) return;
+		Packet next;
+		while ((next = pending.remove(nextSequence)) != null) {
+			ready.add(next);
+			nextSequence = (nextSequence + 1) & 0xFFFF;
+		}
+	}
+
+	int getPendingPackets() {
+		return pending.size();
+	}
+
+}
@@ -1,114 +1,231 @@
 package com.olemassa.chat.impl;
 
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.lang3.ArrayUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.olemassa.chat.impl.util.VerySimpleTimer;
-
-import jonelo.jacksum.JacksumAPI;
-import jonelo.jacksum.algorithm.AbstractChecksum;
+import com.olemassa.chat.impl.util.TimingWheel;
 
 class Packet {
 
 	static final Logger logger = LoggerFactory.getLogger(Packet.class);
-	
-	static AbstractChecksum jacksum;
-	static {
-		try {
-			jacksum = JacksumAPI.getChecksumInstance("crc8");
-		} catch (NoSuchAlgorithmException e) {
-			logger.error("Ei saada jacksummia toimiin..", e);
-		}
-		jacksum.setEncoding(AbstractChecksum.BASE16);
-	}
-
-	public static byte getChecksumValue(byte sequence, byte[] payload) {
-		logger.debug("getChecksumValue({}, {})", sequence, payload);
-		jacksum.reset();
-		jacksum.update(ArrayUtils.addAll(new byte[] {sequence}, payload));
-		return (byte) jacksum.getValue();
-	}
-	
-	public static byte[] trim(byte[] bytes) {
-	    int nonEmptyIndex = bytes.length - 1;
-	    while (nonEmptyIndex >= 0 && bytes[nonEmptyIndex] == 0) nonEmptyIndex--;
-	    return ArrayUtils.subarray(bytes, 0, nonEmptyIndex + 1);
-	}
-
-	public static Packet readPacket(byte[] packetBytes) {
-		logger.debug("readPacket({})", packetBytes);
-		byte sequence = packetBytes[0];
-		byte[] payload = ArrayUtils.subarray(packetBytes, 1, packetBytes.length - 1);
-		byte checksum = getChecksumValue(sequence, payload);
-		logger.debug("Sequence: {} Payload: {} Checksum from packet: {} Counted checksum: {}",
-				sequence,
-				payload,
-				packetBytes[packetBytes.length - 1],
-				checksum);
-		if (checksum != packetBytes[packetBytes.length - 1])
-			throw new IllegalArgumentException("Paketin tarkaste ei ole oikein");
-		return new Packet(sequence, payload);
-	}
-
-	private byte sequence;
-	private byte[] payload;
-	long timeout;
-	
-	private VerySimpleTimer timer = null;
 
-	public Packet(byte sequence, byte[] payload) {
+	private int sequence;
+	private byte[] payload;
+	private int payloadLength;
+	private int stream = 0;
+	private int streamSequence = 0;
+
+	private TimingWheel.Timeout<Packet> resendTimeout = null;
+	private long sendTime;
+	private boolean retransmitted = false;
+	private boolean inFlight = false;
+	private boolean fragment = false;
+	private boolean batch = false;
+	//Viestin kaikkien fragmenttien yhteinen laskuri, null jos viesti mahtui yhteen pakettiin
+	private AtomicInteger unackedFragments = null;
+	private CompletableFuture<Void> future = null;
+	//Koosteen viestien futuret, lista käytetään uudelleen
+	private final List<CompletableFuture<Void>> batchFutures = new ArrayList<CompletableFuture<Void>>();
+
+	//Poolista tulleella paketilla on oma puskuri, muuten null
+	private final PacketPool pool;
+	private final byte[] buffer;
+	private int references = 0;
+
+	public Packet(int sequence, byte[] payload) {
 		logger.debug("Packet({}, {})", sequence, payload);
 		this.sequence = sequence;
 		this.payload = payload;
+		this.payloadLength = payload.length;
+		this.pool = null;
+		this.buffer = null;
+		this.references = 1;
 	}
-	
-	public byte getSequence() {
+
+	Packet(PacketPool pool) {
+		this.pool = pool;
+		this.buffer = new byte[WirePacket.MAX_PAYLOAD_LENGTH];
+	}
+
+	//Vastaanotetun datapaketin kopio omaan puskuriin, jotta sen voi säilöä vastaanottobufferiin
+	Packet copyFrom(WirePacket packet) {
+		setSequence(packet.getSequence());
+		setPayload(buffer, packet.getPayload(buffer, 0));
+		setStream(packet.getStream());
+		setStreamSequence(packet.getStreamSequence());
+		setFragment(packet.isFragment());
+		setBatch(packet.isBatch());
+		return this;
+	}
+
+	Packet retain() {
+		references++;
+		return this;
+	}
+
+	//Viimeinen vapautus palauttaa poolista tulleen paketin pooliin
+	void release() {
+		if (references <= 0) throw new IllegalStateException("Paketti on jo vapautettu: " + this);
+		if (--references == 0 && pool != null) pool.recycle(this);
+	}
+
+	int getReferences() {
+		return references;
+	}
+
+	//Ajastin ja puskuri jäävät seuraavalle käytölle
+	void reset() {
+		sequence = 0;
+		payload = null;
+		payloadLength = 0;
+		stream = 0;
+		streamSequence = 0;
+		sendTime = 0;
+		retransmitted = false;
+		inFlight = false;
+		fragment = false;
+		batch = false;
+		unackedFragments = null;
+		future = null;
+		batchFutures.clear();
+	}
+
+	public int getSequence() {
 		return sequence;
 	}
 
-	public void setSequence(byte sequence) {
+	public void setSequence(int sequence) {
 		this.sequence = sequence;
 	}
 
+	public int getStream() {
+		return stream;
+	}
+
+	public void setStream(int stream) {
+		this.stream = stream;
+	}
+
+	//16-bittinen järjestysnumero virran sisällä
+	public int getStreamSequence() {
+		return streamSequence;
+	}
+
+	public void setStreamSequence(int streamSequence) {
+		this.streamSequence = streamSequence;
+	}
+
+	//Voi olla pidempi kuin payload, ks. getPayloadLength()
 	public byte[] getPayload() {
 		return payload;
 	}
 
+	public int getPayloadLength() {
+		return payloadLength;
+	}
+
 	public void setPayload(byte[] payload) {
+		setPayload(payload, payload.length);
+	}
+
+	public void setPayload(byte[] payload, int length) {
 		this.payload = payload;
+		this.payloadLength = length;
 	}
 
-	public byte[] getPacketBytes() {
-		logger.debug("getPacketBytes()");
-		return ArrayUtils.addAll(ArrayUtils.addAll(new byte[] {sequence} ,payload), new byte[] {getChecksumValue(sequence, payload)});
+	//Poolista tulleen paketin oma puskuri koosteille, fragmenteille ja vastaanotetuille
+	byte[] getBuffer() {
+		return buffer;
 	}
 
-	public boolean isAck() {
-		return "ACK".equalsIgnoreCase(new String(payload));
+	//Kirjoittaa datapaketin suoraan lähetyspuskuriin kuittauksen kanssa, palauttaa pituuden
+	public int writeTo(ByteBuffer buffer, int offset, int ack, int sack) {
+		int flags = WirePacket.FLAG_DATA | WirePacket.FLAG_ACK | (fragment ? WirePacket.FLAG_FRAGMENT : 0) | (batch ? WirePacket.FLAG_BATCH : 0);
+		return WirePacket.encode(buffer, offset, flags, sequence, ack, sack, stream, streamSequence, payload, 0, payloadLength);
 	}
-	
-	public void initializeTimer(long timeout) {
-		timer = new VerySimpleTimer(timeout);
+
+	public TimingWheel.Timeout<Packet> getResendTimeout() {
+		return resendTimeout;
+	}
+
+	public void setResendTimeout(TimingWheel.Timeout<Packet> resendTimeout) {
+		this.resendTimeout = resendTimeout;
+	}
+
+	public long getSendTime() {
+		return sendTime;
+	}
+
+	public void setSendTime(long sendTime) {
+		this.sendTime = sendTime;
+	}
+
+	public boolean isRetransmitted() {
+		return retransmitted;
+	}
+
+	public void setRetransmitted(boolean retransmitted) {
+		this.retransmitted = retransmitted;
+	}
+
+	public boolean isInFlight() {
+		return inFlight;
+	}
+
+	public void setInFlight(boolean inFlight) {
+		this.inFlight = inFlight;
+	}
+
+	public boolean isFragment() {
+		return fragment;
+	}
+
+	public void setFragment(boolean fragment) {
+		this.fragment = fragment;
+	}
+
+	public boolean isBatch() {
+		return batch;
+	}
+
+	public void setBatch(boolean batch) {
+		this.batch = batch;
+	}
+
+	public AtomicInteger getUnackedFragments() {
+		return unackedFragments;
+	}
+
+	public void setUnackedFragments(AtomicInteger unackedFragments) {
+		this.unackedFragments = unackedFragments;
+	}
+
+	//Valmistuu kun paketti on kuitattu, null jos lähettäjä ei odota kuittausta
+	public CompletableFuture<Void> getFuture() {
+		return future;
 	}
 
-	public void resetTimer() {
-		if (timer != null) timer.reset();
+	public void setFuture(CompletableFuture<Void> future) {
+		this.future = future;
 	}
 
-	public boolean needsResend() {
-		if (timer != null) return timer.timeOver();
-		return false; 
+	//Koosteen jokaisen viestin future, null-futureja ei lisätä
+	public List<CompletableFuture<Void>> getBatchFutures() {
+		return batchFutures;
 	}
 
 	@Override
 	public String toString() {
-		return String.format("Sequence: " + sequence + " Payload: " + Arrays.toString(payload) + " Checksum: " + getChecksumValue(sequence, payload) + " Needs Resend: " + needsResend());
+		return "Sequence: " + sequence + " Stream: " + stream + "/" + streamSequence + " Payload: " + (payload == null ? null : Arrays.toString(Arrays.copyOf(payload, payloadLength))) + " Resend Armed: " + (resendTimeout != null && resendTimeout.isArmed());
 	}
 	
 	
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,56 @@
+package com.olemassa.chat.impl;
+
+import java.util.ArrayDeque;
+
+/**
+ * Free list of {@link Packet}s for one connection. A pooled packet owns a payload buffer
+ * of {@link WirePacket#MAX_PAYLOAD_LENGTH} bytes, so copying a received payload or
+ * building a batch or a fragment needs no new arrays, and it keeps its retransmission
+ * timer between uses.
+ * <p>
+ * Packets are reference counted. {@link #acquire()} hands out a packet with one
+ * reference; whoever keeps the packet beyond the call that handed it over takes another
+ * with {@link Packet#retain()}, and the last {@link Packet#release()} brings it back
+ * here. A sent packet is released once its ACK has cleared the window slot, a received
+ * one once it has been delivered and has left the receive window. Used only from the
+ * I/O thread.
+ */
+final class PacketPool {
+
+	//Tätä useampaa vapaata pakettia ei säilötä, ylimääräiset jäävät roskienkeruulle
+	static final int MAX_POOLED = 1024;
+
+	private final ArrayDeque<Packet> free = new ArrayDeque<Packet>();
+	private final int maxPooled;
+	private long allocated = 0;
+
+	PacketPool(int maxPooled) {
+		this.maxPooled = maxPooled;
+	}
+
+	Packet acquire() {
+		Packet packet = free.pollFirst();
+		if (packet == null) {
+			packet = new Packet(this);
+			allocated++;
+		}
+		packet.retain();
+		return packet;
+	}
+
+	//Viimeisen viittauksen vapautus, ks. Packet.release()
+	void recycle(Packet packet) {
+		packet.reset();
+		if (free.size() < maxPooled) free.addFirst(packet);
+	}
+
+	int getPooledPackets() {
+		return free.size();
+	}
+
+	//Koskaan luodut paketit, tasaisessa tilassa tämä ei enää kasva
+	long getAllocatedPackets() {
+		return allocated;
+	}
+
+}
@@ -0,0 +1,314 @@
+package com.olemassa.chat.impl;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.olemassa.chat.EpavarmaSocket;
+import com.olemassa.chat.Impairment;
+import com.olemassa.chat.ReliableDataTransfer;
+import com.olemassa.chat.impl.util.TimingWheel;
+
+/**
+ * Server mode: one local port and one thread for many peers. Inbound datagrams are
+ * demultiplexed by their source address, and every peer gets its own connection with
+ * its own window, timers and receivers. A connection is created lazily on the first
+ * data packet from a new address, or by {@link #connect(SocketAddress)}.
+ * <p>
+ * Usage, the factory decides the protocol and attaches the receivers:
+ * <pre>
+ * PeerServer server = new PeerServer("localhost", 7777, (srv, remote) -&gt; {
+ *     SelectiveRepeat connection = new SelectiveRepeat(srv, remote, 10, 1000);
+ *     connection.addReceiver(message -&gt; ...);
+ *     return connection;
+ * });
+ * new Thread(server).start();
+ * </pre>
+ * Instead of a thread of its own, the server can run on an {@link EventLoopGroup}
+ * together with other sessions.
+ * <p>
+ * Like the sessions of a loop, the connections are polled only when they read, are woken
+ * or have a timer due, through a {@link SessionScheduler} of the server's own, so a
+ * datagram does not cost a poll of every connection.
+ */
+public class PeerServer extends Session implements Runnable {
+
+	static final Logger logger = LoggerFactory.getLogger(PeerServer.class);
+
+	//Yhteyksien enimmäismäärä, tämän yli uusien vastapuolten paketit hylätään
+	static final int MAX_CONNECTIONS = 4096;
+	//Millisekunnit ilman yhtään saapunutta datagrammia, joiden jälkeen yhteys suljetaan
+	static final long IDLE_TIMEOUT = 300000;
+
+	/**
+	 * Creates the connection for a new peer. Must return a windowed protocol built with
+	 * its <code>(PeerServer, SocketAddress, ...)</code> constructor.
+	 */
+	public interface ConnectionFactory {
+		ReliableDataTransfer newConnection(PeerServer server, SocketAddress remote);
+	}
+
+	private final DatagramTransport transport;
+	private final ConnectionFactory factory;
+	private volatile boolean listening = true;
+	private volatile int maxConnections = MAX_CONNECTIONS;
+	private volatile long idleTimeout = IDLE_TIMEOUT;
+	private volatile long expired = 0;
+
+	private final ConcurrentHashMap<SocketAddress, WindowedTransfer> connections = new ConcurrentHashMap<SocketAddress, WindowedTransfer>();
+	//Suljetut yhteydet, jotka serverithread vielä sulkee loppuun
+	private final Queue<WindowedTransfer> removed = new ConcurrentLinkedQueue<WindowedTransfer>();
+	private volatile long rejected = 0;
+	//Yhteyksien ajastukset, vain serverithread
+	private final SessionScheduler scheduler = new SessionScheduler();
+
+	//Vain serverithread, puskurit käytetään uudelleen jokaiselle paketille
+	private final ByteBuffer inboundBuffer = ByteBuffer.allocate(WirePacket.MAX_PACKET_LENGTH);
+	private final WirePacket packet = new WirePacket();
+
+	//Kaikkien vastapuolten yhteinen emuloitu verkko ennen jakoa yhteyksille, null päästää suoraan
+	private volatile Impairment inboundImpairment = EpavarmaSocket.newImpairment();
+	private final Impairment.Sink inboundSink = this::dispatch;
+
+	public PeerServer(String localhost, int localport, ConnectionFactory factory) throws SocketException {
+		logger.info("PeerServer({}, {})", localhost, localport);
+		this.factory = factory;
+		this.transport = DatagramTransport.bind(localhost, localport);
+	}
+
+	/**
+	 * Returns the connection to <code>remote</code>, creating it if needed. Throws
+	 * {@link IllegalStateException} if the server is full.
+	 */
+	public ReliableDataTransfer connect(SocketAddress remote) throws IllegalStateException {
+		logger.debug("connect({})", remote);
+		WindowedTransfer connection = connection(remote);
+		if (connection == null) throw new IllegalStateException("Yhteyksiä on jo " + connections.size());
+		requestPoll(connection);
+		return connection;
+	}
+
+	//Yhteys vastapuoleen, null jos sitä ei ole
+	public ReliableDataTransfer getConnection(SocketAddress remote) {
+		return connections.get(remote);
+	}
+
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		logger.debug("setMaxConnections({})", maxConnections);
+		this.maxConnections = maxConnections;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Closes a connection once nothing has arrived from its peer for this many
+	 * milliseconds, so dead or spoofed peers do not hold a place for good. A peer heard
+	 * from again gets a new connection starting from sequence 0. 0 keeps connections
+	 * until they are stopped.
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		logger.debug("setIdleTimeout({})", idleTimeout);
+		if (idleTimeout < 0) throw new IllegalArgumentException("Aikakatkaisu ei voi olla negatiivinen: " + idleTimeout);
+		this.idleTimeout = idleTimeout;
+		//Yhteydet laskevat seuraavan tarkistuksensa uudelleen
+		for (WindowedTransfer connection : connections.values()) {
+			requestPoll(connection);
+		}
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	//Joutilaina suljetut yhteydet
+	public long getExpiredConnections() {
+		return expired;
+	}
+
+	//Tuntemattomilta vastapuolilta hylätyt paketit, esim. kun palvelin on täynnä
+	public long getRejectedPackets() {
+		return rejected;
+	}
+
+	public void stopListening() {
+		logger.debug("stopListening()");
+		listening = false;
+		EventLoop current = loop;
+		if (current != null) current.deregister(this);
+	}
+
+	@Override
+	Transport transport() {
+		return transport;
+	}
+
+	@Override
+	boolean isListening() {
+		return listening;
+	}
+
+	//Yhteys poistetaan heti, mutta sen futuret epäonnistuvat vasta serverithreadissa
+	void remove(WindowedTransfer connection) {
+		logger.debug("remove({})", connection.getRemoteAddress());
+		if (connections.remove(connection.getRemoteAddress(), connection)) {
+			removed.add(connection);
+			wakeup();
+		}
+	}
+
+	//Yhteyden poll() toteaa sen joutilaaksi, serverithread
+	void expire(WindowedTransfer connection) {
+		logger.info("Yhteys {} suljetaan, vastapuolelta ei ole kuulunut mitään {} ms", connection.getRemoteAddress(), idleTimeout);
+		expired++;
+		remove(connection);
+	}
+
+	//Yhteydellä on uutta työtä, mistä tahansa säikeestä
+	void requestPoll(WindowedTransfer connection) {
+		if (scheduler.request(connection)) wakeup();
+	}
+
+	//Raja tarkistetaan ennen luontia, joten samanaikaiset luonnit voivat ylittää sen hieman
+	private WindowedTransfer connection(SocketAddress remote) {
+		WindowedTransfer connection = connections.get(remote);
+		if (connection != null) return connection;
+		if (connections.size() >= maxConnections) return null;
+		return connections.computeIfAbsent(remote, address -> {
+			ReliableDataTransfer created = factory.newConnection(this, address);
+			if (!(created instanceof WindowedTransfer))
+				throw new IllegalArgumentException("Protokolla ei tue palvelintilaa: " + created);
+			logger.info("Uusi yhteys {}", address);
+			return (WindowedTransfer) created;
+		});
+	}
+
+	/**
+	 * Emulated network for all datagrams arriving at the server, before they are
+	 * demultiplexed, null for none. Each connection can have impairments of its own on
+	 * top of this, see {@link WindowedTransfer#setInboundImpairment(Impairment)}.
+	 */
+	public void setInboundImpairment(Impairment impairment) {
+		logger.debug("setInboundImpairment({})", impairment);
+		this.inboundImpairment = impairment;
+		wakeup();
+	}
+
+	public Impairment getInboundImpairment() {
+		return inboundImpairment;
+	}
+
+	private void closeRemoved() {
+		WindowedTransfer connection;
+		while ((connection = removed.poll()) != null) {
+			connection.close();
+			scheduler.remove(connection);
+		}
+	}
+
+	@Override
+	void readable() throws IOException {
+		SocketAddress source;
+		while (true) {
+			inboundBuffer.clear();
+			if ((source = transport.receive(inboundBuffer)) == null) return;
+			Impairment impairment = inboundImpairment;
+			if (impairment == null) {
+				dispatch(inboundBuffer, inboundBuffer.position(), source);
+			} else {
+				long now = TimingWheel.now();
+				impairment.offer(inboundBuffer, inboundBuffer.position(), source, now);
+				impairment.release(now, Integer.MAX_VALUE, inboundSink);
+			}
+		}
+	}
+
+	//Antaa emuloidun verkon läpäisseen datagrammin lähettäjänsä yhteydelle
+	private void dispatch(ByteBuffer datagram, int length, SocketAddress source) {
+		try {
+			WindowedTransfer connection = connections.get(source);
+			//Uusi yhteys syntyy vain datapaketista, irrallinen kuittaus ei avaa yhteyttä
+			if (connection == null && packet.wrap(datagram, 0, length).isData()) connection = connection(source);
+			if (connection == null) {
+				logger.debug("Hylätään paketti vastapuolelta {}", source);
+				rejected++;
+				return;
+			}
+			connection.arrived(datagram, length);
+			scheduler.mark(connection);
+		} catch (IllegalArgumentException ignore) {
+			logger.debug("Pakettia ei voitu lukea {}", ignore.getMessage());
+		}
+	}
+
+	@Override
+	long poll() {
+		closeRemoved();
+		long waitMillis = WindowedTransfer.NO_DEADLINE;
+		long now = TimingWheel.now();
+		Impairment impairment = inboundImpairment;
+		if (impairment != null) {
+			try {
+				impairment.release(now, Integer.MAX_VALUE, inboundSink);
+			} catch (IOException e) {
+				logger.error("Datagrammia ei voitu päästää läpi", e);
+			}
+			long nanos = impairment.nanosUntilNext(now);
+			if (nanos != Impairment.NO_DATAGRAM) waitMillis = (nanos + 999999) / 1000000;
+		}
+		return Math.min(waitMillis, scheduler.poll(now));
+	}
+
+	@Override
+	void close() {
+		listening = false;
+		for (WindowedTransfer connection : connections.values()) {
+			remove(connection);
+		}
+		closeRemoved();
+		try {
+			transport.close();
+		} catch (IOException e) {
+			logger.error("Kuljetuksen sulkeminen ei onnistu", e);
+		}
+		logger.debug("Listening stopped");
+	}
+
+	/**
+	 * Runs the server on a loop of its own in the calling thread until
+	 * {@link #stopListening()}. Not for a server registered with an {@link EventLoopGroup}.
+	 */
+	@Override
+	public void run() {
+		if (loop != null) throw new IllegalStateException("Palvelin on jo rekisteröity silmukkaan");
+
+		logger.debug("run()");
+		try {
+			logger.debug("transport.getLocalAddress() {}", transport.getLocalAddress());
+		} catch (IOException ignore) {}
+
+		EventLoop own;
+		try {
+			own = new EventLoop(true);
+		} catch (IOException e) {
+			logger.error("Silmukkaa ei saatu auki", e);
+			close();
+			return;
+		}
+		own.register(this);
+		own.run();
+	}
+
+}
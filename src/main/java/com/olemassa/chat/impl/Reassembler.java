@@ -0,0 +1,175 @@
+package com.olemassa.chat.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.olemassa.chat.impl.util.TimingWheel;
+
+/**
+ * Collects fragments (see {@link WirePacket#FLAG_FRAGMENT}) back into whole messages.
+ * <p>
+ * Fragments of one message may arrive in any order and interleaved with other
+ * messages. Partial messages together may hold at most <code>maxBytes</code>; the
+ * oldest partial message is dropped to make room, and any partial message that has not
+ * received a fragment within the timeout is dropped as abandoned, by the next fragment
+ * or by {@link #expire(long)} at the time {@link #nanosUntilExpiry(long)} gives. Used
+ * only from the I/O thread.
+ */
+final class Reassembler {
+
+	static final Logger logger = LoggerFactory.getLogger(Reassembler.class);
+
+	//Ei keskeneräisiä viestejä
+	static final long NO_EXPIRY = Long.MAX_VALUE;
+
+	private final long maxBytes;
+	private final long timeoutNanos;
+
+	//Lisäysjärjestyksessä, joten vanhin keskeneräinen on ensimmäisenä
+	private final LinkedHashMap<Integer, PartialMessage> partials = new LinkedHashMap<Integer, PartialMessage>();
+	//Vain I/O-säie kirjoittaa, muut voivat lukea
+	private volatile long bytes = 0;
+	private volatile long dropped = 0;
+
+	private static final class PartialMessage {
+
+		private final byte[][] fragments;
+		private int received = 0;
+		private int length = 0;
+		private long lastUpdate;
+
+		private PartialMessage(int count) {
+			fragments = new byte[count][];
+		}
+
+	}
+
+	Reassembler(long maxBytes, long timeout, TimeUnit unit) {
+		this.maxBytes = maxBytes;
+		this.timeoutNanos = unit.toNanos(timeout);
+	}
+
+	/**
+	 * Adds one fragment, the first <code>fragmentLength</code> bytes of the array, header
+	 * included. Returns the whole message once its last missing fragment arrives,
+	 * otherwise null. The fragment is copied, so the array may be reused afterwards.
+	 */
+	byte[] add(byte[] fragment, int fragmentLength) {
+		long now = TimingWheel.now();
+		expire(now);
+		if (fragmentLength < WirePacket.FRAGMENT_HEADER_LENGTH) {
+			logger.debug("Fragmentti on liian lyhyt: {} tavua", fragmentLength);
+			return null;
+		}
+		ByteBuffer header = ByteBuffer.wrap(fragment);
+		int messageId = header.getInt(WirePacket.FRAGMENT_ID_OFFSET);
+		int index = header.getShort(WirePacket.FRAGMENT_INDEX_OFFSET) & 0xFFFF;
+		int count = header.getShort(WirePacket.FRAGMENT_COUNT_OFFSET) & 0xFFFF;
+		int length = fragmentLength - WirePacket.FRAGMENT_HEADER_LENGTH;
+		if (index >= count) {
+			logger.debug("Viestin {} fragmentti {}/{} ei kelpaa", messageId, index, count);
+			return null;
+		}
+		if ((long) count * WirePacket.MAX_FRAGMENT_LENGTH > maxBytes) {
+			logger.warn("Viesti {} on liian suuri koottavaksi: {} fragmenttia", messageId, count);
+			dropped++;
+			return null;
+		}
+
+		PartialMessage partial = partials.get(messageId);
+		if (partial == null) {
+			partial = new PartialMessage(count);
+			partials.put(messageId, partial);
+		} else if (partial.fragments.length != count) {
+			logger.debug("Viestin {} fragmenttien määrä ei täsmää", messageId);
+			return null;
+		}
+		partial.lastUpdate = now;
+		if (partial.fragments[index] != null) return null;
+
+		while (bytes + length > maxBytes && partials.size() > 1) {
+			evictOldest(messageId);
+		}
+		byte[] data = new byte[length];
+		System.arraycopy(fragment, WirePacket.FRAGMENT_HEADER_LENGTH, data, 0, length);
+		partial.fragments[index] = data;
+		partial.received++;
+		partial.length += length;
+		bytes += length;
+		if (partial.received < count) return null;
+
+		partials.remove(messageId);
+		bytes -= partial.length;
+		byte[] message = new byte[partial.length];
+		int offset = 0;
+		for (byte[] part : partial.fragments) {
+			System.arraycopy(part, 0, message, offset, part.length);
+			offset += part.length;
+		}
+		logger.debug("Viesti {} koottu {} fragmentista, {} tavua", messageId, count, message.length);
+		return message;
+	}
+
+	//Vapauttaa keskeneräiset, joihin ei ole tullut fragmenttia aikakatkaisun aikana
+	int expire(long now) {
+		if (partials.isEmpty()) return 0;
+		int expired = 0;
+		Iterator<PartialMessage> iterator = partials.values().iterator();
+		while (iterator.hasNext()) {
+			PartialMessage partial = iterator.next();
+			if (now - partial.lastUpdate >= timeoutNanos) {
+				iterator.remove();
+				bytes -= partial.length;
+				expired++;
+			}
+		}
+		if (expired > 0) {
+			logger.debug("Hylättiin {} keskeneräistä viestiä", expired);
+			dropped += expired;
+		}
+		return expired;
+	}
+
+	//Nanosekunnit siihen, kun seuraava keskeneräinen vanhenee, tai NO_EXPIRY
+	long nanosUntilExpiry(long now) {
+		if (partials.isEmpty()) return NO_EXPIRY;
+		long nanos = NO_EXPIRY;
+		for (PartialMessage partial : partials.values()) {
+			nanos = Math.min(nanos, partial.lastUpdate + timeoutNanos - now);
+		}
+		return Math.max(0, nanos);
+	}
+
+	private void evictOldest(int keep) {
+		Iterator<Map.Entry<Integer, PartialMessage>> iterator = partials.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Integer, PartialMessage> entry = iterator.next();
+			if (entry.getKey() != keep) {
+				logger.warn("Koontimuisti täynnä, hylätään viesti {}", entry.getKey());
+				iterator.remove();
+				bytes -= entry.getValue().length;
+				dropped++;
+				return;
+			}
+		}
+	}
+
+	long getBufferedBytes() {
+		return bytes;
+	}
+
+	int getPartialMessages() {
+		return partials.size();
+	}
+
+	long getDroppedMessages() {
+		return dropped;
+	}
+
+}
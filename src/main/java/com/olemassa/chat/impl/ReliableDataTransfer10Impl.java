@@ -68,11 +68,13 @@ public class ReliableDataTransfer10Impl implements ReliableDataTransfer {
 
 		try {
 			listening = true;
+			//Vastaanottopuskuri käytetään uudelleen, payload kopioidaan siitä aina ennen toimitusta
+			byte[] inbound = new byte[1024];
+			DatagramPacket receivedPacket = new DatagramPacket(inbound, inbound.length);
 			while (listening) try {
 
 
-				byte[] inbound = new byte[1024];
-				DatagramPacket receivedPacket = new DatagramPacket(inbound, inbound.length);
+				receivedPacket.setLength(inbound.length);
 				socket.receive(receivedPacket);
 				logger.trace("Notifying receivers {}", receivers);
 				for (Receiver receiver : receivers) {
@@ -26,6 +26,10 @@ public class ReliableDataTransfer20Impl implements ReliableDataTransfer {
 
 	final Logger logger = LoggerFactory.getLogger(ReliableDataTransfer20Impl.class);
 
+	//Kuittausten sisältö ei muutu, joten sama taulukko kelpaa jokaiseen
+	private static final byte[] ACK = "ACK".getBytes();
+	private static final byte[] NAK = "NAK".getBytes();
+
 	private DatagramSocket socket = null;
 	private List<Receiver> receivers = new ArrayList<Receiver>();
 	private State state = State.WAIT_FOR_REQUEST;
@@ -79,10 +83,12 @@ public class ReliableDataTransfer20Impl implements ReliableDataTransfer {
 
 		try {
 			listening = true;	
+			//Vastaanottopuskuri käytetään uudelleen, payload kopioidaan siitä aina ennen toimitusta
+			byte[] inbound = new byte[1024];
+			DatagramPacket receivedPacket = new DatagramPacket(inbound, inbound.length);
 			while (listening) try {
 
-				byte[] inbound = new byte[1024];
-				DatagramPacket receivedPacket = new DatagramPacket(inbound, inbound.length);
+				receivedPacket.setLength(inbound.length);
 				socket.receive(receivedPacket);
 				logger.debug("{}.receive({})", socket, receivedPacket.getData());
 
@@ -99,7 +105,7 @@ public class ReliableDataTransfer20Impl implements ReliableDataTransfer {
 
 				if (State.WAIT_FOR_REQUEST.equals(this.state)) {
 					if (isValid) {
-						sendBytes("ACK".getBytes());
+						sendBytes(ACK);
 						logger.trace("Notifying receivers {}", receivers);
 						for (Receiver receiver : receivers) {
 							logger.trace("Notify receiver {}", receiver);
@@ -107,7 +113,7 @@ public class ReliableDataTransfer20Impl implements ReliableDataTransfer {
 						}
 					} else {
 						logger.debug("Ei tullu viesti oikein");
-						sendBytes("NAK".getBytes());
+						sendBytes(NAK);
 					}
 				} else if (State.WAIT_FOR_ACK.equals(this.state)) {
 					if ("ACK".equals(new String(payload)) && isValid) {
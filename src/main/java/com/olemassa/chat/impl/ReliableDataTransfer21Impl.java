@@ -27,6 +27,10 @@ public class ReliableDataTransfer21Impl implements ReliableDataTransfer {
 
 	final Logger logger = LoggerFactory.getLogger(ReliableDataTransfer21Impl.class);
 
+	//Kuittausten sisältö ei muutu, joten sama taulukko kelpaa jokaiseen
+	private static final byte[] ACK = "ACK".getBytes();
+	private static final byte[] NAK = "NAK".getBytes();
+
 	private DatagramSocket socket = null;
 	private List<Receiver> receivers = new ArrayList<Receiver>();
 	private AbstractChecksum checksum;
@@ -102,36 +106,38 @@ public class ReliableDataTransfer21Impl implements ReliableDataTransfer {
 
 		try {
 			listening = true;	
+			//Vastaanottopuskuri käytetään uudelleen, payload kopioidaan siitä aina ennen toimitusta
+			byte[] inbound = new byte[1024];
+			DatagramPacket receivedPacket = new DatagramPacket(inbound, inbound.length);
 			while (listening) try {
 
-				byte[] inbound = new byte[1024];
-				DatagramPacket receivedPacket = new DatagramPacket(inbound, inbound.length);
+				receivedPacket.setLength(inbound.length);
 				socket.receive(receivedPacket);
 				logger.debug("{}.receive({})", socket, receivedPacket.getData());
 
-				Packet packet = new Packet(receivedPacket.getData());
+				Packet packet = new Packet(receivedPacket.getData(), receivedPacket.getLength());
 				logger.debug("State: {} Sequence: {}", state.getState(), state.getSequence());
 				logger.debug("Sequence: {} Payload: {} CheckByte {}", packet.getSequence(), packet.getPayload(), packet.getCheckByte());
 
 				if (State.WAIT_FOR_REQUEST.equals(this.state)) {
 					if (!packet.isValid()) {
 						logger.debug("Paketissa bittivirheitä");
-						sendPacket(new Packet(null, "NAK".getBytes()));
+						sendPacket(new Packet(null, NAK));
 					} else if (packet.isValid() && !packet.getSequence().equals(state.getSequence())) {
 						logger.debug("Paketti validi, mutta sequence ei ole sama");
-						sendPacket(new Packet(null, "ACK".getBytes()));
+						sendPacket(new Packet(null, ACK));
 					} else {
 						logger.trace("Notifying receivers {}", receivers);
 						for (Receiver receiver : receivers) {
 							logger.trace("Notify receiver {}", receiver);
 							receiver.receive(packet.getPayload());
 						}
-						sendPacket(new Packet(null, "ACK".getBytes()));
+						sendPacket(new Packet(null, ACK));
 					}
 				} else if (State.WAIT_FOR_ACK.equals(this.state)) {
-					if (!packet.isValid() || Arrays.equals("NAK".getBytes(), packet.getPayload())) {
+					if (!packet.isValid() || Arrays.equals(NAK, packet.getPayload())) {
 						sendPacket(lastSent);
-					} else if (packet.isValid() && Arrays.equals("ACK".getBytes(), packet.getPayload())) {
+					} else if (packet.isValid() && Arrays.equals(ACK, packet.getPayload())) {
 						state.addSequence();
 						setState(State.WAIT_FOR_REQUEST);
 					} else {
@@ -171,20 +177,21 @@ public class ReliableDataTransfer21Impl implements ReliableDataTransfer {
 			checkByte = (byte) checksum.getValue();
 		}
 
-		public Packet(byte[] receivedPacket) {
-			logger.debug("Packet({})", receivedPacket);
-			if (Arrays.equals("ACK".getBytes(), ArrayUtils.subarray(receivedPacket, 0, ArrayUtils.indexOf(receivedPacket, (byte) 0) - 1))) {
+		//Datagrammin pituus kertoo paketin lopun, joten nollaan loppuva payload säilyy
+		public Packet(byte[] receivedPacket, int length) {
+			logger.debug("Packet({}, {})", receivedPacket, length);
+			if (Arrays.equals(ACK, ArrayUtils.subarray(receivedPacket, 0, length - 1))) {
 				logger.debug("ACK");
-				payload = ArrayUtils.subarray(receivedPacket, 0, ArrayUtils.indexOf(receivedPacket, (byte) 0) - 1);
-			} else if (Arrays.equals("NAK".getBytes(), ArrayUtils.subarray(receivedPacket, 0, ArrayUtils.indexOf(receivedPacket, (byte) 0) - 1))) {
+				payload = ArrayUtils.subarray(receivedPacket, 0, length - 1);
+			} else if (Arrays.equals(NAK, ArrayUtils.subarray(receivedPacket, 0, length - 1))) {
 				logger.debug("NAK");
-				payload = ArrayUtils.subarray(receivedPacket, 0, ArrayUtils.indexOf(receivedPacket, (byte) 0) - 1);
+				payload = ArrayUtils.subarray(receivedPacket, 0, length - 1);
 			} else {
 				logger.debug("Tavallinen viesti");
 				sequence = receivedPacket[0];
-				payload = ArrayUtils.subarray(receivedPacket, 1, ArrayUtils.indexOf(receivedPacket, (byte) 0, 1) - 1);
+				payload = ArrayUtils.subarray(receivedPacket, 1, length - 1);
 			}
-			checkByte = receivedPacket[ArrayUtils.indexOf(receivedPacket, (byte) 0, 1) - 1];			 
+			checkByte = receivedPacket[length - 1];
 		}
 
 		public Byte getSequence() {
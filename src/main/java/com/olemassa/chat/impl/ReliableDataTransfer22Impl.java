@@ -27,6 +27,9 @@ public class ReliableDataTransfer22Impl implements ReliableDataTransfer {
 
 	final Logger logger = LoggerFactory.getLogger(ReliableDataTransfer22Impl.class);
 
+	//Kuittausten sisältö ei muutu, joten sama taulukko kelpaa jokaiseen
+	private static final byte[] ACK = "ACK".getBytes();
+
 	private DatagramSocket socket = null;
 	private List<Receiver> receivers = new ArrayList<Receiver>();
 	private AbstractChecksum checksum;
@@ -103,14 +106,16 @@ public class ReliableDataTransfer22Impl implements ReliableDataTransfer {
 		
 		try {
 			listening = true;	
+			//Vastaanottopuskuri käytetään uudelleen, payload kopioidaan siitä aina ennen toimitusta
+			byte[] inbound = new byte[1024];
+			DatagramPacket receivedPacket = new DatagramPacket(inbound, inbound.length);
 			while (listening) try {
 
-				byte[] inbound = new byte[1024];
-				DatagramPacket receivedPacket = new DatagramPacket(inbound, inbound.length);
+				receivedPacket.setLength(inbound.length);
 				socket.receive(receivedPacket);
 				logger.debug("{}.receive({})", socket, receivedPacket.getData());
 
-				Packet packet = new Packet(receivedPacket.getData());
+				Packet packet = new Packet(receivedPacket.getData(), receivedPacket.getLength());
 				logger.debug("State: {} Sequence: {}", state.getState(), state.getSequence());
 				logger.debug("Sequence: {} Payload: {} CheckByte {}", packet.getSequence(), packet.getPayload(), packet.getCheckByte());
 
@@ -121,13 +126,13 @@ public class ReliableDataTransfer22Impl implements ReliableDataTransfer {
 							logger.trace("Notify receiver {}", receiver);
 							receiver.receive(packet.getPayload());
 						}
-						sendPacket(new Packet(state.getSequence(), "ACK".getBytes()));
+						sendPacket(new Packet(state.getSequence(), ACK));
 						State.WAIT_FOR_REQUEST.addSequence();
 					} else {
-						sendPacket(new Packet((byte) ((Math.floorMod(state.getSequence() - 1, 2))), "ACK".getBytes()));
+						sendPacket(new Packet((byte) ((Math.floorMod(state.getSequence() - 1, 2))), ACK));
 					}
 				} else if (State.WAIT_FOR_ACK.equals(state)) {
-					if (!packet.isValid() || (Arrays.equals("ACK".getBytes(), packet.getPayload()) && !packet.getSequence().equals(state.getSequence()))) {
+					if (!packet.isValid() || (Arrays.equals(ACK, packet.getPayload()) && !packet.getSequence().equals(state.getSequence()))) {
 						logger.debug("We are waiting sequence {} Resending Packet because response is valid {}, payload {} and state {}",
 								new Object[] {
 										state.getSequence(),
@@ -135,7 +140,7 @@ public class ReliableDataTransfer22Impl implements ReliableDataTransfer {
 										new String(packet.getPayload()),
 										packet.getSequence()});
 						sendPacket(lastSent);
-					} else if (packet.isValid() && Arrays.equals("ACK".getBytes(), packet.getPayload())) {
+					} else if (packet.isValid() && Arrays.equals(ACK, packet.getPayload())) {
 						setState(State.WAIT_FOR_REQUEST);
 						State.WAIT_FOR_ACK.addSequence();
 					} else {
@@ -171,11 +176,12 @@ public class ReliableDataTransfer22Impl implements ReliableDataTransfer {
 			checkByte = (byte) checksum.getValue();
 		}
 
-		public Packet(byte[] receivedPacket) {
-			logger.debug("Packet({})", receivedPacket);
+		//Datagrammin pituus kertoo paketin lopun, joten nollaan loppuva payload säilyy
+		public Packet(byte[] receivedPacket, int length) {
+			logger.debug("Packet({}, {})", receivedPacket, length);
 			sequence = receivedPacket[0];
-			payload = ArrayUtils.subarray(receivedPacket, 1, ArrayUtils.indexOf(receivedPacket, (byte) 0, 1) - 1);
-			checkByte = receivedPacket[ArrayUtils.indexOf(receivedPacket, (byte) 0, 1) - 1];			 
+			payload = ArrayUtils.subarray(receivedPacket, 1, length - 1);
+			checkByte = receivedPacket[length - 1];
 		}
 
 		public Byte getSequence() {
@@ -10,6 +10,7 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.slf4j.Logger;
@@ -19,7 +20,8 @@ import com.olemassa.chat.EpavarmaSocket;
 import com.olemassa.chat.Receiver;
 import com.olemassa.chat.ReliableDataTransfer;
 import com.olemassa.chat.State;
-import com.olemassa.chat.impl.util.VerySimpleTimer;
+import com.olemassa.chat.impl.util.RttEstimator;
+import com.olemassa.chat.impl.util.TimingWheel;
 
 import jonelo.jacksum.JacksumAPI;
 import jonelo.jacksum.algorithm.AbstractChecksum;
@@ -28,6 +30,9 @@ public class ReliableDataTransfer30Impl implements ReliableDataTransfer {
 
 	final Logger logger = LoggerFactory.getLogger(ReliableDataTransfer30Impl.class);
 
+	//Kuittausten sisältö ei muutu, joten sama taulukko kelpaa jokaiseen
+	private static final byte[] ACK = "ACK".getBytes();
+
 	private DatagramSocket socket = null;
 	private List<Receiver> receivers = new ArrayList<Receiver>();
 	private AbstractChecksum checksum;
@@ -37,7 +42,13 @@ public class ReliableDataTransfer30Impl implements ReliableDataTransfer {
 
 	private boolean listening;
 	
-	private VerySimpleTimer timer = new VerySimpleTimer(3000);
+	private RttEstimator rttEstimator = new RttEstimator(3000, 200, 60000, TimeUnit.MILLISECONDS);
+	private long lastSentTime;
+	private boolean lastSentRetransmitted;
+	//Ajastinpyörä on yhden säikeen käyttöön, send() ajastaa sovelluksen säikeessä, joten käyttö lukitaan
+	private final TimingWheel<Packet> timers = new TimingWheel<Packet>(10, TimeUnit.MILLISECONDS, 512);
+	private TimingWheel.Timeout<Packet> resendTimeout = null;
+	private List<Packet> expiredPackets = new ArrayList<Packet>();
 
 	public ReliableDataTransfer30Impl(String localhost, int localport, String remotehost, int remoteport) throws SocketException {
 		logger.info("ReliableDataTransfer30Impl({}, {}, {}, {})", localhost, localport, remotehost, remoteport);
@@ -79,7 +90,11 @@ public class ReliableDataTransfer30Impl implements ReliableDataTransfer {
 		lastSent = new Packet(State.WAIT_FOR_ACK.getSequence(), outbound);
 		sendPacket(lastSent);
 		setState(State.WAIT_FOR_ACK);
-		timer.reset();
+		lastSentTime = TimingWheel.now();
+		lastSentRetransmitted = false;
+		synchronized (timers) {
+			resendTimeout = timers.schedule(lastSent, rttEstimator.getRto(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+		}
 	}
 
 	private void sendPacket(Packet packet) {
@@ -95,6 +110,20 @@ public class ReliableDataTransfer30Impl implements ReliableDataTransfer {
 		}
 	}
 
+	//Jokainen lastSentin uudelleenlähetys tekee sen kuittauksesta kelvottoman RTT-mittaukseen
+	private void resendLastSent() {
+		sendPacket(lastSent);
+		lastSentRetransmitted = true;
+	}
+
+	public long getRetransmissionTimeout(TimeUnit unit) {
+		return rttEstimator.getRto(unit);
+	}
+
+	public long getSmoothedRtt(TimeUnit unit) {
+		return rttEstimator.getSrtt(unit);
+	}
+
 	public void run() {
 
 		logger.debug("run()");
@@ -108,14 +137,16 @@ public class ReliableDataTransfer30Impl implements ReliableDataTransfer {
 		
 		try {
 			listening = true;	
+			//Vastaanottopuskuri käytetään uudelleen, payload kopioidaan siitä aina ennen toimitusta
+			byte[] inbound = new byte[1024];
+			DatagramPacket receivedPacket = new DatagramPacket(inbound, inbound.length);
 			while (listening) try {
 
-				byte[] inbound = new byte[1024];
-				DatagramPacket receivedPacket = new DatagramPacket(inbound, inbound.length);
+				receivedPacket.setLength(inbound.length);
 				socket.receive(receivedPacket);
 				logger.debug("{}.receive({})", socket, receivedPacket.getData());
 
-				Packet packet = new Packet(receivedPacket.getData());
+				Packet packet = new Packet(receivedPacket.getData(), receivedPacket.getLength());
 				logger.debug("State: {} Sequence: {}", state.getState(), state.getSequence());
 				logger.debug("Sequence: {} Payload: {} CheckByte {}", packet.getSequence(), packet.getPayload(), packet.getCheckByte());
 
@@ -126,16 +157,25 @@ public class ReliableDataTransfer30Impl implements ReliableDataTransfer {
 							logger.trace("Notify receiver {}", receiver);
 							receiver.receive(packet.getPayload());
 						}
-						sendPacket(new Packet(state.getSequence(), "ACK".getBytes()));
+						sendPacket(new Packet(state.getSequence(), ACK));
 						State.WAIT_FOR_REQUEST.addSequence();
 					} else {
-						sendPacket(new Packet((byte) ((Math.floorMod(state.getSequence() - 1, 2))), "ACK".getBytes()));
+						sendPacket(new Packet((byte) ((Math.floorMod(state.getSequence() - 1, 2))), ACK));
 					}
 				} else if (State.WAIT_FOR_ACK.equals(state)) {
 					if (!packet.isValid()) {
 						logger.debug("Packet is invalid, let's resend");
-						sendPacket(lastSent);
+						resendLastSent();
 					} else if (packet.isAck() && packet.getSequence().equals(state.getSequence())) {
+						synchronized (timers) {
+							timers.cancel(resendTimeout);
+						}
+						//Karnin sääntö: uudelleenlähetetyn kuittauksesta ei mitata, mutta uusi kuittaus kumoaa kaksinkertaistukset
+						if (lastSentRetransmitted) {
+							rttEstimator.resetBackoff();
+						} else {
+							rttEstimator.sample(TimingWheel.now() - lastSentTime, TimeUnit.NANOSECONDS);
+						}
 						setState(State.WAIT_FOR_REQUEST);
 						State.WAIT_FOR_ACK.addSequence();
 					} else if (packet.isAck()) {
@@ -145,22 +185,28 @@ public class ReliableDataTransfer30Impl implements ReliableDataTransfer {
 										packet.isValid(),
 										new String(packet.getPayload()),
 										packet.getSequence()});
-						sendPacket(lastSent);
+						resendLastSent();
 					} else {
 						logger.debug("Ei vastaanoteta nyt muuta kuin ACK viestejä");
 					}
 				}
 			} catch (SocketTimeoutException ignore) {
 				//Tämä ja timeout siksi, että saadaan socketti nätisti lopettaan kuuntelu.
-				//Ja nyttenhän tänne on näppärä tehhä myös timeoutin jälkeinen lähetys jos ackia dotellaan :)
-				if (timer.timeOver() && state.equals(State.WAIT_FOR_ACK)) {
-					logger.debug("Time over ja tila on odotellaan ACK:a => Uudelleenlähetys");
-					sendPacket(lastSent);
-					timer.reset();
-				}
 				continue;
 			} catch (IOException e) {
 				logger.error("Serverithreadissa ongelmia", e);
+			} finally {
+				//Erääntynyt ajastin tarkoittaa, että ACK:ia odotellaan yhä => Uudelleenlähetys
+				expiredPackets.clear();
+				//Ajastimessa on vain lastSent
+				synchronized (timers) {
+					if (timers.expire(TimingWheel.now(), expiredPackets) > 0) {
+						logger.debug("Time over ja tila on odotellaan ACK:a => Uudelleenlähetys");
+						resendLastSent();
+						rttEstimator.backoff();
+						timers.reschedule(resendTimeout, rttEstimator.getRto(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+					}
+				}
 			}
 		} finally {
 			if (socket != null) if (!socket.isClosed()) socket.close();
@@ -185,11 +231,12 @@ public class ReliableDataTransfer30Impl implements ReliableDataTransfer {
 			checkByte = (byte) checksum.getValue();
 		}
 
-		public Packet(byte[] receivedPacket) {
-			logger.debug("Packet({})", receivedPacket);
+		//Datagrammin pituus kertoo paketin lopun, joten nollaan loppuva payload säilyy
+		public Packet(byte[] receivedPacket, int length) {
+			logger.debug("Packet({}, {})", receivedPacket, length);
 			sequence = receivedPacket[0];
-			payload = ArrayUtils.subarray(receivedPacket, 1, ArrayUtils.indexOf(receivedPacket, (byte) 0, 1) - 1);
-			checkByte = receivedPacket[ArrayUtils.indexOf(receivedPacket, (byte) 0, 1) - 1];			 
+			payload = ArrayUtils.subarray(receivedPacket, 1, length - 1);
+			checkByte = receivedPacket[length - 1];
 		}
 
 		public Byte getSequence() {
@@ -209,7 +256,7 @@ public class ReliableDataTransfer30Impl implements ReliableDataTransfer {
 		}
 		
 		public boolean isAck() {
-			return Arrays.equals("ACK".getBytes(), payload);
+			return Arrays.equals(ACK, payload);
 		}
 
 		public boolean isValid() {
@@ -1,11 +1,7 @@
 package com.olemassa.chat.impl;
 
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -13,198 +9,195 @@ import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.olemassa.chat.EpavarmaSocket;
-import com.olemassa.chat.Receiver;
-import com.olemassa.chat.ReliableDataTransfer;
+import com.olemassa.chat.impl.util.SerialNumber;
 
-public class SelectiveRepeat implements ReliableDataTransfer {
+public class SelectiveRepeat extends WindowedTransfer {
 
 	static final Logger logger = LoggerFactory.getLogger(SelectiveRepeat.class);
 
-	private DatagramSocket socket = null;
 	private int bufferSize = 10;
-	long timeout = 10000;
-	private List<Receiver> receivers = new ArrayList<Receiver>();
-
-	private boolean listening;
 
 	private SelectiveRepeatBuffer selectiveRepeatBuffer;
 
 	public SelectiveRepeat(String localhost, int localport, String remotehost, int remoteport, int bufferSize, int timeout) throws SocketException {
+		super(localhost, localport, remotehost, remoteport);
 		logger.info("SelectiveRepeat({}, {}, {}, {}, {}, {})", localhost, localport, remotehost, remoteport, bufferSize, timeout);
-		socket = new EpavarmaSocket(new InetSocketAddress(localhost, localport));
-		socket.connect(new InetSocketAddress(remotehost, remoteport));
-		socket.setSoTimeout(100);
 		this.bufferSize = bufferSize;
 		this.selectiveRepeatBuffer = new SelectiveRepeatBuffer(this.bufferSize);
-		this.timeout = timeout;		
+		setInitialTimeout(timeout);
+		reserveReceiveBuffer(this.bufferSize);
 	}
 
-	@Override
-	public void send(byte[] outbound) throws IllegalStateException {
-		logger.info("send({})", outbound);
-		Packet sendPacket = new Packet((byte) 0, outbound);
-		sendPacket.initializeTimer(timeout);
-		selectiveRepeatBuffer.send(sendPacket);
+	//Oma kuljetus, esimerkiksi InMemoryTransport-pari samassa JVM:ssä
+	public SelectiveRepeat(Transport transport, int bufferSize, int timeout) {
+		super(transport);
+		logger.info("SelectiveRepeat({}, {}, {})", transport, bufferSize, timeout);
+		this.bufferSize = bufferSize;
+		this.selectiveRepeatBuffer = new SelectiveRepeatBuffer(this.bufferSize);
+		setInitialTimeout(timeout);
+		reserveReceiveBuffer(this.bufferSize);
+	}
+
+	//Palvelimen yhteys vastapuoleen remote, ks. PeerServer
+	public SelectiveRepeat(PeerServer server, SocketAddress remote, int bufferSize, int timeout) {
+		super(server, remote);
+		logger.info("SelectiveRepeat({}, {}, {})", remote, bufferSize, timeout);
+		this.bufferSize = bufferSize;
+		this.selectiveRepeatBuffer = new SelectiveRepeatBuffer(this.bufferSize);
+		setInitialTimeout(timeout);
+		reserveReceiveBuffer(this.bufferSize);
 	}
 
 	@Override
-	public void addReceiver(Receiver receiver) {
-		logger.info("addReceiver({})", receiver);
-		receivers.add(receiver);
+	public int getWindowSize() {
+		return bufferSize;
 	}
 
 	@Override
-	public void stopListening() {
-		logger.info("stopListening()");
-		listening = false;
-		receivers.clear();
+	void setInitialSequence(int sequence) {
+		selectiveRepeatBuffer.sendBaseSequence = sequence;
+		selectiveRepeatBuffer.sendNextSequence = sequence;
+		selectiveRepeatBuffer.receiveBaseSequence = sequence;
 	}
 
 	@Override
-	public void run() {
-
-		logger.info("run()", socket.getLocalSocketAddress());
-		logger.debug("socket.getLocalSocketAddress() {}", socket.getLocalSocketAddress());
-		logger.debug("Receivers: {}", receivers);
-
-		try {
-			listening = true;	
-			while (listening) try {
-
-				byte[] inbound = new byte[1024];
-				DatagramPacket receivedPacket = new DatagramPacket(inbound, inbound.length);
-				socket.receive(receivedPacket);
-				logger.debug("{}.receive({})", socket, receivedPacket.getData());
-
-				Packet packet = Packet.readPacket(Packet.trim(receivedPacket.getData()));
-				logger.debug("Sequence: {} Payload: {} ChecksumValue {}",
-						packet.getSequence(),
-						packet.getPayload(),
-						Packet.getChecksumValue(packet.getSequence(), packet.getPayload()));
-
-
-				logger.debug("PacketBuffer: {}", selectiveRepeatBuffer);
-				Packet[] pckts = selectiveRepeatBuffer.receive(packet);
-				logger.debug("PacketBuffer: {}", selectiveRepeatBuffer);
-				logger.trace("Huomautetaan vastaanottajia {}", receivers);
-				for (Packet pckt : pckts)
-					for (Receiver receiver : receivers) {
-						logger.trace("Huomautetaan vastaanottajaa {} paketista {}", receiver, pckt);
-						receiver.receive(packet.getPayload());
-					}
+	protected boolean trySend(Packet packet) {
+		return selectiveRepeatBuffer.send(packet);
+	}
 
-			} catch (SocketTimeoutException ignore) {
-			} catch (IllegalArgumentException ignore) {
-				logger.debug("Pakettia ei voitu lukea {}", ignore.getMessage());
-			}  catch (IOException e) {
-				logger.error("Serverithreadissa ongelmia", e);
-			} finally {
-				selectiveRepeatBuffer.resendUnsent();
-			}
-		} finally {
-			if (socket != null) if (!socket.isClosed()) socket.close();
-			logger.debug("Listening stopped");
-		}
+	@Override
+	protected List<Packet> unacknowledgedPackets() {
+		return selectiveRepeatBuffer.unacknowledged();
 	}
 
-	private void sendPacket(Packet packet) {
-		logger.info("sendPacket({})", packet);
-		byte [] packetBytes = packet.getPacketBytes();
-		try {
-			logger.debug("{}.send({})", socket, packetBytes);
-			socket.send(new DatagramPacket(
-					packetBytes,
-					packetBytes.length,
-					socket.getRemoteSocketAddress()));
-		} catch (IOException e) {
-			logger.error("Cannot send bytes", e);
+	@Override
+	protected void receivePacket(WirePacket packet) {
+		if (packet.isAck()) {
+			selectiveRepeatBuffer.receiveAck(packet.getAck(), packet.getSack(), !packet.isData());
+		}
+		if (packet.isData()) {
+			//Toimitetaan heti, kun saman virran aiemmat on toimitettu, muiden virtojen aukot eivät pidättele
+			Packet received = received(packet);
+			if (selectiveRepeatBuffer.receive(received)) deliver(received);
+			received.release();
 		}
 	}
 
+	//Lähetys- ja vastaanottoikkunat kahden potenssin kokoisilla renkailla, indeksi on järjestysnumero & mask
 	private class SelectiveRepeatBuffer {
 
+		private int windowSize;
+		private int mask;
+
 		private Packet[] sendBuffer;
 		private int sendBaseSequence;
 		private int sendNextSequence;
+		private int newlyAcked;
 
 		private Packet[] receiveBuffer;
 		private int receiveBaseSequence;
 
 		public SelectiveRepeatBuffer(int bufferSize) {
-			sendBuffer = new Packet[bufferSize];
+			windowSize = bufferSize;
+			sendBuffer = new Packet[SerialNumber.ringSize(bufferSize)];
+			mask = sendBuffer.length - 1;
 			sendBaseSequence = 0;
 			sendNextSequence = 0;
-			receiveBuffer = new Packet[bufferSize];
+			receiveBuffer = new Packet[sendBuffer.length];
 			receiveBaseSequence = 0;
 		}
 
-		public void send(Packet packet) {
-			logger.info("addToBuffer({})", packet);
-			if (traverseSequence(sendNextSequence, 1) != sendBaseSequence) {
-				packet.setSequence((byte) sendNextSequence);
-				packet.resetTimer();
-				sendBuffer[sendNextSequence] = packet;
-				sendPacket(packet);
-				sendNextSequence = traverseSequence(sendNextSequence, 1);
-			} else {
-				throw new IllegalStateException("Viestibufferi on täynnä");
+		public boolean send(Packet packet) {
+			if (SerialNumber.distance(sendBaseSequence, sendNextSequence) >= windowSize || !congestionWindowOpen()) {
+				return false;
+			}
+			packet.setSequence(sendNextSequence);
+			sendBuffer[sendNextSequence & mask] = packet;
+			sendAndArm(packet);
+			sendNextSequence++;
+			return true;
+		}
+
+		public List<Packet> unacknowledged() {
+			List<Packet> packets = new ArrayList<Packet>();
+			for (int sequence = sendBaseSequence; sequence != sendNextSequence; sequence++) {
+				if (sendBuffer[sequence & mask] != null) packets.add(sendBuffer[sequence & mask]);
 			}
+			return packets;
 		}
 
-		public void resendUnsent() {
-			if (sendBuffer != null && sendBuffer.length != 0) {
-				int seq = sendBaseSequence;
-				while (seq != sendNextSequence) {
-					if (sendBuffer[seq] != null)
-						if (sendBuffer[seq].needsResend()) {
-							sendPacket(sendBuffer[seq]);
-							sendBuffer[seq].resetTimer();
-						}
-					seq = traverseSequence(seq, 1);
+		//Kumulatiivinen ack kuittaa kaikki sitä edeltävät, SACK-bitit sen jälkeen saadut yksittäiset paketit
+		public void receiveAck(int ack, int sack, boolean pureAck) {
+			int outstanding = SerialNumber.distance(sendBaseSequence, sendNextSequence);
+			int cumulative = SerialNumber.distance(sendBaseSequence, ack);
+			//Vanhentunut kuittaus
+			if (cumulative < 0 || cumulative > outstanding) return;
+			newlyAcked = 0;
+			for (int i = 0; i < cumulative; i++) {
+				acknowledge(sendBaseSequence + i);
+			}
+			for (int bit = 0; bit < WirePacket.SACK_BITS && cumulative + 1 + bit < outstanding; bit++) {
+				if ((sack & (1 << bit)) != 0) {
+					acknowledge(ack + 1 + bit);
 				}
 			}
+			while (sendBaseSequence != sendNextSequence && sendBuffer[sendBaseSequence & mask] == null) {
+				sendBaseSequence++;
+			}
+			Packet firstUnacked = sendBaseSequence != sendNextSequence ? sendBuffer[sendBaseSequence & mask] : null;
+			if (cumulative > 0) {
+				windowAdvanced(ack, newlyAcked, firstUnacked);
+			} else if (pureAck && firstUnacked != null) {
+				duplicateAck(sendNextSequence - 1, firstUnacked, newlyAcked > 0);
+			}
+		}
+
+		private void acknowledge(int sequence) {
+			Packet packet = sendBuffer[sequence & mask];
+			if (packet == null) return;
+			packetAcked(packet);
+			sendBuffer[sequence & mask] = null;
+			newlyAcked++;
+		}
+
+		//Bitti i: vastaanottopohjaa seuraava paketti 1 + i on jo bufferissa
+		private int sackBitmap() {
+			int sack = 0;
+			for (int bit = 0; bit < WirePacket.SACK_BITS && bit + 1 < windowSize; bit++) {
+				if (receiveBuffer[(receiveBaseSequence + 1 + bit) & mask] != null) sack |= 1 << bit;
+			}
+			return sack;
 		}
 
-		public Packet[] receive(Packet packet) {
-			logger.info("receive({})", packet);
-			ArrayList<Packet> readyPackets = new ArrayList<Packet>();
-			if (packet.isAck()) {
-				logger.debug("ACK järjestysnumerolla {}, lähetysbufferissa tilanne on Pohja: {} Seuraava: {}", (int) packet.getSequence(), sendBaseSequence, sendNextSequence);
-				if (sendBuffer != null) {
-					logger.debug("Kuitataan paketti lähetysbufferista kohdasta {}", packet.getSequence());
-					sendBuffer[(int) packet.getSequence()] = null;
-					if (sendBaseSequence == (byte) packet.getSequence()) {
-						logger.debug("Paketti oli kuittaus lähetyspohjaan, siirretään lähetyspohja eteenpäin");
-						while (sendBuffer[sendBaseSequence] == null && sendBaseSequence < sendNextSequence) {
-							sendBaseSequence = traverseSequence(sendBaseSequence, 1);
-						}
-						logger.debug("Lähetysbufferissa tilanne on Pohja: {} Seuraava: {}", sendBaseSequence, sendNextSequence);
+		//Palauttaa true, jos paketti oli uusi. Vastaanottobufferi pitää kirjaa kuittauksia varten ja pitää
+		//paketista oman viittauksen kunnes pohja ohittaa sen, toimitusjärjestyksestä huolehtii virta
+		public boolean receive(Packet packet) {
+			boolean accepted = false;
+			boolean advanced = false;
+			int sequence = packet.getSequence();
+			if (SerialNumber.inWindow(sequence, receiveBaseSequence, windowSize) && receiveBuffer[sequence & mask] == null) {
+				receiveBuffer[sequence & mask] = packet.retain();
+				accepted = true;
+				//Paketti oli vastaanottopohja, siirretään vastaanoton pohja eteenpäin
+				if (receiveBaseSequence == sequence) {
+					while (receiveBuffer[receiveBaseSequence & mask] != null) {
+						receiveBuffer[receiveBaseSequence & mask].release();
+						receiveBuffer[receiveBaseSequence & mask] = null;
+						receiveBaseSequence++;
 					}
+					advanced = true;
+				} else {
+					getMetrics().outOfOrderPacket();
+					trace(FlightRecorder.Event.OUT_OF_ORDER, sequence, receiveBaseSequence, 0, packet.getPayloadLength());
 				}
 			} else {
-				logger.debug("Tavallinen paketti järjestysnumerolla {}, vastaanottobufferin tilanne on Pohja: {}", (int) packet.getSequence(), receiveBaseSequence);
-				if (receiveBuffer != null) {
-					logger.trace("Pistetään paketti vastaanottobufferiin kohtaan {}", packet.getSequence());
-					receiveBuffer[(int) packet.getSequence()] = packet;
-					if (receiveBaseSequence == (byte) packet.getSequence()) {
-						logger.debug("Paketti oli vastaanottopohja aetaan palautettavat paketit ja siirretään vastaanoton pohja eteenpäin");
-						while (receiveBuffer[receiveBaseSequence] != null) {
-							readyPackets.add(receiveBuffer[receiveBaseSequence]);
-							receiveBuffer[receiveBaseSequence] = null;
-							receiveBaseSequence = traverseSequence(receiveBaseSequence, 1);
-						}
-						logger.debug("Vastaanottobufferin tilanne on Pohja: {}", receiveBaseSequence);
-					}
-				}
-				logger.debug("Lähetetään ACK");
-				sendPacket(
-						new Packet(
-								packet.getSequence(),
-								"ACK".getBytes()));
+				//Jo saatu kaksoiskappale tai ikkunan ulkopuolelta, kuitataan uudelleen
+				getMetrics().duplicatePacket();
+				trace(FlightRecorder.Event.DUPLICATE, sequence, receiveBaseSequence, 0, packet.getPayloadLength());
 			}
-			logger.trace("Palautetaan paketit, jotka saatiin poimittua järjetykssä vastaanottopohjasta eteenpäin");
-			return readyPackets.toArray(new Packet[readyPackets.size()]);
+			//Järjestyksestä poikkeava tai jo saatu paketti kuitataan heti, muuten kuittaus voi odottaa
+			scheduleAck(receiveBaseSequence, sackBitmap(), !advanced);
+			return accepted;
 		}
 
 		public String toString() {
@@ -215,11 +208,6 @@ public class SelectiveRepeat implements ReliableDataTransfer {
 			return string;
 		}
 
-		private int traverseSequence(int sequence, int steps) {
-			logger.trace("getSequenceAtLocation({}, {})", sequence, steps);
-			return (sequence + steps) % sendBuffer.length;
-		}
-
 	}
 
 }
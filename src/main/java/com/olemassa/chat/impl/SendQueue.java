@@ -0,0 +1,331 @@
+package com.olemassa.chat.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.olemassa.chat.impl.util.MpscQueue;
+import com.olemassa.chat.impl.util.TimingWheel;
+
+/**
+ * Outgoing messages of one {@link WindowedTransfer} connection on their way into the
+ * window. Application threads only put messages into a bounded lock-free queue
+ * ({@link MpscQueue}); the I/O thread moves them from there into the send queue, as
+ * packets, batching small ones, and from the send queue into the window as far as the
+ * window and the congestion window allow.
+ * <p>
+ * Apart from the submitting methods and the settings, used only from the I/O thread.
+ */
+final class SendQueue {
+
+	static final Logger logger = LoggerFactory.getLogger(SendQueue.class);
+
+	//Ikkunaan mahtumattomat viestit jonotetaan, oletuksena korkeintaan näin monta
+	static final int SEND_QUEUE_CAPACITY = 1024;
+	//Sovellussäikeiltä serverithreadille välitettävät viestit, kahden potenssi
+	static final int HANDOFF_CAPACITY = 1024;
+
+	//Pienten viestien koostamisen enimmäisviive
+	static final long BATCH_DELAY = 5;
+
+	//Sovelluksen lähettämä viesti matkalla serverithreadille
+	private static final class Outbound {
+
+		private final int stream;
+		private final byte[] payload;
+		private final CompletableFuture<Void> future;
+
+		private Outbound(int stream, byte[] payload, CompletableFuture<Void> future) {
+			this.stream = stream;
+			this.payload = payload;
+			this.future = future;
+		}
+
+	}
+
+	private final WindowedTransfer connection;
+	private final Streams streams;
+	private final PacketPool packetPool;
+
+	//Ainoa sovellussäikeiden ja serverithreadin jakama lähetystila. Kaikki muu on vain serverithreadin
+	private final MpscQueue<Outbound> handoff = new MpscQueue<Outbound>(HANDOFF_CAPACITY);
+	//Täyttä välitysjonoa odottavat lähettäjät, muutetaan vain lukolla handoff
+	private volatile int blockedSenders = 0;
+	private volatile boolean closed = false;
+	private final ArrayDeque<Packet> sendQueue = new ArrayDeque<Packet>();
+	private volatile int capacity = SEND_QUEUE_CAPACITY;
+	private volatile int length = 0;
+	//Viesti, jonka fragmentteja on jo annettu ikkunaan, sitä ei voi enää perua
+	private CompletableFuture<Void> sendingMessage = null;
+	//Keskeneräinen kooste pienistä viesteistä
+	private final List<byte[]> batchMessages = new ArrayList<byte[]>();
+	private final List<CompletableFuture<Void>> batchFutures = new ArrayList<CompletableFuture<Void>>();
+	private int batchBytes = 0;
+	private int batchStream;
+	private long batchDeadline;
+	private volatile long batchDelay = BATCH_DELAY;
+	private volatile int maxBatchSize = WirePacket.MAX_PAYLOAD_LENGTH;
+
+	SendQueue(WindowedTransfer connection, Streams streams, PacketPool packetPool) {
+		this.connection = connection;
+		this.streams = streams;
+		this.packetPool = packetPool;
+	}
+
+	void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	//Jonossa odottavat paketit ja serverithreadille vielä välittämättömät viestit
+	int getLength() {
+		return length + handoff.size();
+	}
+
+	void setBatchDelay(long batchDelay) {
+		this.batchDelay = batchDelay;
+	}
+
+	long getBatchDelay() {
+		return batchDelay;
+	}
+
+	void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize > WirePacket.MAX_PAYLOAD_LENGTH)
+			throw new IllegalArgumentException("Kooste ei mahdu pakettiin: " + maxBatchSize + " tavua");
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	//Sovellussäikeen puoli: viesti välitysjonoon ilman lukkoja, kaikki muu tehdään serverithreadissa
+	void submit(int stream, byte[] outbound, CompletableFuture<Void> future) {
+		Outbound message = newOutbound(stream, outbound, future);
+		if (!handoff.offer(message)) {
+			connection.getMetrics().rejectedMessage();
+			throw new IllegalStateException("Viestibufferi on täynnä");
+		}
+		offered(message);
+	}
+
+	//Kuten submit, mutta odottaa tilaa välitysjonossa System.nanoTime()-hetkeen deadline asti
+	void submit(int stream, byte[] outbound, CompletableFuture<Void> future, long deadline) throws InterruptedException, TimeoutException {
+		Outbound message = newOutbound(stream, outbound, future);
+		if (!handoff.offer(message)) {
+			//Hidas polku: vain täyttä jonoa odottava lähettäjä ottaa lukon
+			synchronized (handoff) {
+				blockedSenders++;
+				try {
+					while (!handoff.offer(message)) {
+						if (closed) throw new IllegalStateException("Yhteys on suljettu");
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0) throw new TimeoutException("Lähetysjonossa ei ollut tilaa");
+						TimeUnit.NANOSECONDS.timedWait(handoff, remaining);
+					}
+				} finally {
+					blockedSenders--;
+				}
+			}
+		}
+		offered(message);
+	}
+
+	private Outbound newOutbound(int stream, byte[] outbound, CompletableFuture<Void> future) {
+		Streams.checkStream(stream);
+		if (Streams.packetCount(outbound) > WirePacket.MAX_FRAGMENTS)
+			throw new IllegalArgumentException("Viesti on liian pitkä: " + outbound.length + " tavua");
+		if (closed) throw new IllegalStateException("Yhteys on suljettu");
+		return new Outbound(stream, outbound, future);
+	}
+
+	//Jos sulkeminen ehti väliin, serverithread ei ehkä enää näe viestiä, joten lähettäjä hylkää sen itse
+	private void offered(Outbound message) {
+		if (closed) {
+			IllegalStateException closedException = new IllegalStateException("Yhteys on suljettu");
+			if (message.future == null) throw closedException;
+			message.future.completeExceptionally(closedException);
+			return;
+		}
+		connection.wakeup();
+	}
+
+	/**
+	 * Moves what fits into the window, takes new messages from the application threads
+	 * and sends a batch that is due. Returns milliseconds until the pending batch is
+	 * due, 0 if more messages are waiting to be taken, or {@link WindowedTransfer#NO_DEADLINE}.
+	 */
+	long poll() {
+		pump();
+		drainHandoff();
+		long batchMillis = flushBatchIfDue();
+		pump();
+		length = sendQueue.size();
+		if (!handoff.isEmpty() && sendQueue.size() < capacity) return 0;
+		return batchMillis;
+	}
+
+	//Siirtää välitysjonon viestit lähetysjonoon niin kauan kuin siinä on tilaa
+	private void drainHandoff() {
+		boolean drained = false;
+		Outbound message;
+		while (sendQueue.size() < capacity && (message = handoff.poll()) != null) {
+			queue(message);
+			drained = true;
+		}
+		if (drained && blockedSenders > 0) {
+			synchronized (handoff) {
+				handoff.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Nagle-style coalescing: while earlier packets are still unacknowledged, small
+	 * messages are collected as length-prefixed records into one packet for at most
+	 * {@link #getBatchDelay()} milliseconds or until {@link #getMaxBatchSize()} bytes.
+	 * With nothing in flight a message is sent right away. A batch holds messages of one
+	 * stream only. Messages cancelled while they wait for the batch are left out of it.
+	 */
+	private void queue(Outbound message) {
+		int record = WirePacket.BATCH_RECORD_HEADER_LENGTH + message.payload.length;
+		boolean idle = batchMessages.isEmpty() && sendQueue.isEmpty() && connection.getPacketsInFlight() == 0;
+		if (batchDelay <= 0 || record > maxBatchSize || idle) {
+			flushBatch();
+			streams.split(message.stream, message.payload, message.future, sendQueue);
+			pump();
+			return;
+		}
+		if (batchBytes + record > maxBatchSize || message.stream != batchStream) flushBatch();
+		if (batchMessages.isEmpty()) {
+			batchStream = message.stream;
+			batchDeadline = TimingWheel.now() + TimeUnit.MILLISECONDS.toNanos(batchDelay);
+		}
+		batchMessages.add(message.payload);
+		batchFutures.add(message.future);
+		batchBytes += record;
+	}
+
+	//Lähettää erääntyneen koosteen ja palauttaa millisekunnit seuraavaan, tai NO_DEADLINE
+	private long flushBatchIfDue() {
+		if (batchMessages.isEmpty()) return WindowedTransfer.NO_DEADLINE;
+		long nanos = batchDeadline - TimingWheel.now();
+		if (nanos > 0) return (nanos + 999999) / 1000000;
+		flushBatch();
+		return WindowedTransfer.NO_DEADLINE;
+	}
+
+	//Kooste menee jonoon kapasiteetista välittämättä, sillä sen viestit on jo hyväksytty.
+	//Perutut viestit jätetään pois, koosteeseen päätynyttä ei voi enää perua
+	private void flushBatch() {
+		dropCancelledFromBatch();
+		if (batchMessages.isEmpty()) return;
+		if (batchMessages.size() == 1) {
+			streams.split(batchStream, batchMessages.get(0), batchFutures.get(0), sendQueue);
+		} else {
+			//Tietueet kirjoitetaan suoraan poolin paketin puskuriin, maxBatchSize mahtuu aina siihen
+			Packet packet = packetPool.acquire();
+			byte[] payload = packet.getBuffer();
+			int offset = 0;
+			for (int i = 0; i < batchMessages.size(); i++) {
+				byte[] message = batchMessages.get(i);
+				payload[offset] = (byte) (message.length >>> 8);
+				payload[offset + 1] = (byte) message.length;
+				System.arraycopy(message, 0, payload, offset + WirePacket.BATCH_RECORD_HEADER_LENGTH, message.length);
+				offset += WirePacket.BATCH_RECORD_HEADER_LENGTH + message.length;
+				CompletableFuture<Void> future = batchFutures.get(i);
+				if (future != null) packet.getBatchFutures().add(future);
+			}
+			packet.setPayload(payload, offset);
+			packet.setStream(batchStream);
+			packet.setBatch(true);
+			sendQueue.add(packet);
+			if (logger.isDebugEnabled()) logger.debug("Koottiin {} viestiä yhteen pakettiin, {} tavua", batchMessages.size(), batchBytes);
+		}
+		batchMessages.clear();
+		batchFutures.clear();
+		batchBytes = 0;
+	}
+
+	private void dropCancelledFromBatch() {
+		int kept = 0;
+		for (int i = 0; i < batchMessages.size(); i++) {
+			CompletableFuture<Void> future = batchFutures.get(i);
+			if (future != null && future.isCancelled()) {
+				batchBytes -= WirePacket.BATCH_RECORD_HEADER_LENGTH + batchMessages.get(i).length;
+				continue;
+			}
+			batchMessages.set(kept, batchMessages.get(i));
+			batchFutures.set(kept, future);
+			kept++;
+		}
+		for (int i = batchMessages.size() - 1; i >= kept; i--) {
+			batchMessages.remove(i);
+			batchFutures.remove(i);
+		}
+	}
+
+	//Siirtää jonosta ikkunaan niin monta kuin mahtuu. Perutut jätetään pois, ellei viestin lähetys ole jo alkanut
+	private void pump() {
+		while (!sendQueue.isEmpty()) {
+			Packet packet = sendQueue.peek();
+			boolean cancelled = packet.getFuture() != null && packet.getFuture().isCancelled() && packet.getFuture() != sendingMessage;
+			if (!cancelled && !handOver(packet)) break;
+			sendQueue.poll();
+			if (cancelled) packet.release();
+		}
+	}
+
+	private boolean handOver(Packet packet) {
+		streams.assignSequence(packet);
+		if (!connection.trySend(packet)) return false;
+		streams.sequenceUsed(packet);
+		if (packet.isFragment()) sendingMessage = packet.getFuture();
+		return true;
+	}
+
+	/**
+	 * Fails every message not yet in the window and wakes up blocked senders. From now on
+	 * submitting throws or fails the future. Only from the I/O thread.
+	 */
+	void close(IllegalStateException closedException) {
+		closed = true;
+		List<Packet> pending = new ArrayList<Packet>(sendQueue);
+		sendQueue.clear();
+		//Varattu mutta vielä julkaisematon paikka odotetaan, muuten sen lähettäjä näkee sulkemisen itse
+		while (!handoff.isEmpty()) {
+			Outbound message = handoff.poll();
+			if (message == null) {
+				Thread.yield();
+			} else if (message.future != null) {
+				message.future.completeExceptionally(closedException);
+			}
+		}
+		for (CompletableFuture<Void> future : batchFutures) {
+			if (future != null) future.completeExceptionally(closedException);
+		}
+		batchMessages.clear();
+		batchFutures.clear();
+		batchBytes = 0;
+		synchronized (handoff) {
+			handoff.notifyAll();
+		}
+		for (Packet packet : pending) {
+			if (packet.getFuture() != null) packet.getFuture().completeExceptionally(closedException);
+			for (CompletableFuture<Void> future : packet.getBatchFutures()) {
+				future.completeExceptionally(closedException);
+			}
+		}
+	}
+
+}
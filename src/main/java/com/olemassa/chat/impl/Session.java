@@ -0,0 +1,49 @@
+package com.olemassa.chat.impl;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Something an {@link EventLoop} drives: one {@link Transport}, read when datagrams
+ * arrive, and timed work polled after a read, after {@link #wakeup()} or when the
+ * deadline it last returned has come, see {@link SessionScheduler}. All methods except
+ * {@link #wakeup()} are called only from the loop thread.
+ */
+abstract class Session {
+
+	//Silmukka, johon istunto on rekisteröity, null ennen rekisteröintiä
+	volatile EventLoop loop;
+	//Valmistuu kun silmukka on sulkenut istunnon
+	final CompletableFuture<Void> terminated = new CompletableFuture<Void>();
+
+	//SessionSchedulerin kirjanpito: seuraava poll nanosekunteina ja paikka kasassa, -1 jos ei ajastettu
+	long deadline = WindowedTransfer.NO_DEADLINE;
+	int deadlineIndex = -1;
+	boolean pollPending = false;
+	final AtomicBoolean pollRequested = new AtomicBoolean();
+
+	abstract Transport transport();
+
+	//Lukee kaikki saapuneet datagrammit
+	abstract void readable() throws IOException;
+
+	/**
+	 * Runs whatever is due and returns milliseconds until something is due again, or
+	 * {@link WindowedTransfer#NO_DEADLINE}.
+	 */
+	abstract long poll();
+
+	//Istunto poistettiin silmukasta, vapautetaan kaikki
+	abstract void close();
+
+	//false kun stopListening() on kutsuttu
+	abstract boolean isListening();
+
+	//Sovellussäikeen uusi työ, silmukka pollaa istunnon ja herätetään jos se nukkuu
+	void wakeup() {
+		EventLoop current = loop;
+		if (current != null) current.requestPoll(this);
+	}
+
+}
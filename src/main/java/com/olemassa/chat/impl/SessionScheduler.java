@@ -0,0 +1,146 @@
+package com.olemassa.chat.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which sessions of one {@link EventLoop}, or connections of one
+ * {@link PeerServer}, get {@link Session#poll()} and when: those that just read
+ * datagrams, those another thread asked for with {@link #request(Session)}, and those
+ * whose deadline has come. Deadlines are kept in a binary heap indexed from the sessions
+ * themselves, so a round costs O(log n) per polled session instead of a poll of every
+ * session, and rescheduling allocates nothing.
+ * <p>
+ * Apart from {@link #request(Session)}, only the owner's thread calls these methods. A
+ * session that is no longer listening is dropped the next time it comes up.
+ */
+final class SessionScheduler {
+
+	private Session[] heap = new Session[16];
+	private int size = 0;
+	//Tällä kierroksella pollattavat, Session.pollPending estää kaksoiskappaleet
+	private final List<Session> pending = new ArrayList<Session>();
+	//Muiden säikeiden pyynnöt, Session.pollRequested estää kaksoiskappaleet
+	private final Queue<Session> requests = new ConcurrentLinkedQueue<Session>();
+
+	/**
+	 * Asks for a poll of the session from any thread. Returns true if the request is new
+	 * and the owner has to be woken up.
+	 */
+	boolean request(Session session) {
+		if (session.pollRequested.getAndSet(true)) return false;
+		requests.add(session);
+		return true;
+	}
+
+	//Istunto pollataan tämän kierroksen lopussa
+	void mark(Session session) {
+		if (session.pollPending) return;
+		session.pollPending = true;
+		pending.add(session);
+	}
+
+	void remove(Session session) {
+		if (session.deadlineIndex >= 0) removeAt(session.deadlineIndex);
+		session.deadline = WindowedTransfer.NO_DEADLINE;
+	}
+
+	/**
+	 * Polls the marked, requested and due sessions and schedules their next deadlines.
+	 * Returns milliseconds until the earliest deadline, or {@link WindowedTransfer#NO_DEADLINE}.
+	 */
+	long poll(long now) {
+		Session session;
+		while ((session = requests.poll()) != null) {
+			//Nollataan ennen pollia, joten sen aikana tuleva pyyntö pollaa uudelleen
+			session.pollRequested.set(false);
+			mark(session);
+		}
+		while (size > 0 && heap[0].deadline - now <= 0) {
+			mark(removeAt(0));
+		}
+		for (int i = 0; i < pending.size(); i++) {
+			session = pending.get(i);
+			session.pollPending = false;
+			if (!session.isListening()) {
+				remove(session);
+				continue;
+			}
+			long millis = session.poll();
+			schedule(session, millis == WindowedTransfer.NO_DEADLINE ? WindowedTransfer.NO_DEADLINE : now + TimeUnit.MILLISECONDS.toNanos(millis));
+		}
+		pending.clear();
+		if (size == 0) return WindowedTransfer.NO_DEADLINE;
+		long nanos = heap[0].deadline - now;
+		return nanos <= 0 ? 0 : (nanos + 999999) / 1000000;
+	}
+
+	int size() {
+		return size;
+	}
+
+	//Ajastamaton istunto ei ole kasassa lainkaan
+	private void schedule(Session session, long deadline) {
+		if (deadline == WindowedTransfer.NO_DEADLINE) {
+			remove(session);
+			return;
+		}
+		session.deadline = deadline;
+		int index = session.deadlineIndex;
+		if (index < 0) {
+			if (size == heap.length) heap = Arrays.copyOf(heap, size * 2);
+			index = size++;
+			heap[index] = session;
+			session.deadlineIndex = index;
+		}
+		siftDown(siftUp(index));
+	}
+
+	private Session removeAt(int index) {
+		Session removed = heap[index];
+		Session last = heap[--size];
+		heap[size] = null;
+		removed.deadlineIndex = -1;
+		if (index < size) {
+			heap[index] = last;
+			last.deadlineIndex = index;
+			siftDown(siftUp(index));
+		}
+		return removed;
+	}
+
+	private int siftUp(int index) {
+		Session session = heap[index];
+		while (index > 0) {
+			int parent = (index - 1) >>> 1;
+			if (heap[parent].deadline - session.deadline <= 0) break;
+			place(heap[parent], index);
+			index = parent;
+		}
+		place(session, index);
+		return index;
+	}
+
+	private void siftDown(int index) {
+		Session session = heap[index];
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= size) break;
+			if (child + 1 < size && heap[child + 1].deadline - heap[child].deadline < 0) child++;
+			if (session.deadline - heap[child].deadline <= 0) break;
+			place(heap[child], index);
+			index = child;
+		}
+		place(session, index);
+	}
+
+	private void place(Session session, int index) {
+		heap[index] = session;
+		session.deadlineIndex = index;
+	}
+
+}
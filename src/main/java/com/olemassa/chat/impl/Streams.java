@@ -0,0 +1,224 @@
+package com.olemassa.chat.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.olemassa.chat.Receiver;
+
+/**
+ * The streams of one {@link WindowedTransfer} connection. Going out, a message too
+ * large for one packet is split into fragments and every packet gets the next sequence
+ * of its stream as it enters the window. Coming in, each stream delivers in its own
+ * order (see {@link InboundStream}), fragments are reassembled and batches split before
+ * the message is handed to the receivers.
+ * <p>
+ * Receivers may be added from any thread; everything else is used only from the I/O
+ * thread of the connection.
+ */
+final class Streams {
+
+	static final Logger logger = LoggerFactory.getLogger(Streams.class);
+
+	//Keskeneräisten fragmentoitujen viestien yhteiskoko ja hylkäysaika
+	static final long REASSEMBLY_MAX_BYTES = 4 * 1024 * 1024;
+	static final long REASSEMBLY_TIMEOUT = 30000;
+
+	//Kopioidaan kirjoitettaessa: sovellussäikeet vaihtavat kokonaan uuden taulukon lukon this alla, serverithread
+	//lukee viitteen kerran viestiä kohden eikä koskaan näe puolivalmista muutosta
+	private static final Receiver[] NO_RECEIVERS = new Receiver[0];
+	private volatile Receiver[] receivers = NO_RECEIVERS;
+	//Vain yhden virran viestit saavat vastaanottajat, kartta kopioidaan samoin
+	private volatile Map<Integer, Receiver[]> streamReceivers = Collections.emptyMap();
+
+	private final WindowedTransfer connection;
+	private final PacketPool packetPool;
+	private final AtomicInteger nextMessageId = new AtomicInteger();
+	//Seuraava järjestysnumero kullekin virralle, annetaan vasta ikkunaan siirrettäessä jottei perutuista jää aukkoja.
+	//Yksialkioinen taulukko, jotta kasvattaminen ei pakkaa uutta Integeriä
+	private final Map<Integer, int[]> nextStreamSequences = new HashMap<Integer, int[]>();
+	//Vain serverithread
+	private final Map<Integer, InboundStream> inboundStreams = new HashMap<Integer, InboundStream>();
+	private final List<Packet> readyPackets = new ArrayList<Packet>();
+	private volatile Reassembler reassembler = new Reassembler(REASSEMBLY_MAX_BYTES, REASSEMBLY_TIMEOUT, TimeUnit.MILLISECONDS);
+
+	Streams(WindowedTransfer connection, PacketPool packetPool) {
+		this.connection = connection;
+		this.packetPool = packetPool;
+	}
+
+	static void checkStream(int stream) {
+		if (stream < 0 || stream >= WirePacket.MAX_STREAMS)
+			throw new IllegalArgumentException("Virtaa " + stream + " ei ole");
+	}
+
+	static int packetCount(byte[] outbound) {
+		if (outbound.length <= WirePacket.MAX_PAYLOAD_LENGTH) return 1;
+		return (outbound.length + WirePacket.MAX_FRAGMENT_LENGTH - 1) / WirePacket.MAX_FRAGMENT_LENGTH;
+	}
+
+	synchronized void addReceiver(Receiver receiver) {
+		receivers = append(receivers, receiver);
+	}
+
+	synchronized void addReceiver(int stream, Receiver receiver) {
+		checkStream(stream);
+		Map<Integer, Receiver[]> byStream = new HashMap<Integer, Receiver[]>(streamReceivers);
+		Receiver[] receiversOfStream = byStream.get(stream);
+		byStream.put(stream, append(receiversOfStream == null ? NO_RECEIVERS : receiversOfStream, receiver));
+		streamReceivers = byStream;
+	}
+
+	private static Receiver[] append(Receiver[] receivers, Receiver receiver) {
+		Receiver[] appended = Arrays.copyOf(receivers, receivers.length + 1);
+		appended[receivers.length] = receiver;
+		return appended;
+	}
+
+	synchronized void removeReceivers() {
+		receivers = NO_RECEIVERS;
+		streamReceivers = Collections.emptyMap();
+	}
+
+	Receiver[] getReceivers() {
+		return receivers;
+	}
+
+	void setReassemblyLimits(long maxBytes, long timeout) {
+		reassembler = new Reassembler(maxBytes, timeout, TimeUnit.MILLISECONDS);
+	}
+
+	Reassembler getReassembler() {
+		return reassembler;
+	}
+
+	//Yhteen pakettiin mahtumaton viesti pilkotaan fragmentteihin, jotka kulkevat ikkunan läpi peräkkäin
+	void split(int stream, byte[] outbound, CompletableFuture<Void> future, Collection<Packet> packets) {
+		if (outbound.length <= WirePacket.MAX_PAYLOAD_LENGTH) {
+			//Sovelluksen taulukko lähetetään sellaisenaan, sitä ei kopioida
+			Packet packet = packetPool.acquire();
+			packet.setPayload(outbound);
+			packet.setStream(stream);
+			packet.setFuture(future);
+			packets.add(packet);
+			return;
+		}
+		int count = packetCount(outbound);
+		int messageId = nextMessageId.getAndIncrement();
+		AtomicInteger unackedFragments = new AtomicInteger(count);
+		for (int index = 0; index < count; index++) {
+			int offset = index * WirePacket.MAX_FRAGMENT_LENGTH;
+			int length = Math.min(WirePacket.MAX_FRAGMENT_LENGTH, outbound.length - offset);
+			Packet packet = packetPool.acquire();
+			byte[] payload = packet.getBuffer();
+			WirePacket.encodeFragmentHeader(payload, messageId, index, count);
+			System.arraycopy(outbound, offset, payload, WirePacket.FRAGMENT_HEADER_LENGTH, length);
+			packet.setPayload(payload, WirePacket.FRAGMENT_HEADER_LENGTH + length);
+			packet.setStream(stream);
+			packet.setFragment(true);
+			packet.setFuture(future);
+			packet.setUnackedFragments(unackedFragments);
+			packets.add(packet);
+		}
+		if (logger.isDebugEnabled()) logger.debug("Viesti {} pilkottiin {} fragmenttiin", messageId, count);
+	}
+
+	//Antaa paketille virtansa seuraavan järjestysnumeron, joka otetaan käyttöön vasta sequenceUsed:lla
+	void assignSequence(Packet packet) {
+		int[] next = nextStreamSequences.get(packet.getStream());
+		packet.setStreamSequence(next == null ? 0 : next[0]);
+	}
+
+	//Paketti mahtui ikkunaan
+	void sequenceUsed(Packet packet) {
+		int[] next = nextStreamSequences.get(packet.getStream());
+		if (next == null) {
+			next = new int[1];
+			nextStreamSequences.put(packet.getStream(), next);
+		}
+		next[0] = (next[0] + 1) & 0xFFFF;
+	}
+
+	/**
+	 * Delivers a received data packet once every earlier packet of its stream has been
+	 * delivered; packets of other streams are not waited for. A packet that has to wait
+	 * is retained by its stream, the caller keeps its own reference either way.
+	 */
+	void deliver(Packet packet) {
+		InboundStream stream = inboundStreams.get(packet.getStream());
+		if (stream == null) {
+			stream = new InboundStream();
+			inboundStreams.put(packet.getStream(), stream);
+		}
+		stream.offer(packet, readyPackets);
+		for (int i = 0; i < readyPackets.size(); i++) {
+			Packet ready = readyPackets.get(i);
+			connection.trace(FlightRecorder.Event.DELIVER, ready.getSequence(), 0, 0, ready.getPayloadLength());
+			deliver(ready.getStream(), ready.getPayload(), ready.getPayloadLength(), ready.isFragment(), ready.isBatch());
+			if (ready != packet) ready.release();
+		}
+		readyPackets.clear();
+	}
+
+	/**
+	 * Hands the message to the receivers; fragments are first reassembled and batches
+	 * split. The array a receiver gets is its own, so this is the one allocation per
+	 * delivered message.
+	 */
+	private void deliver(int stream, byte[] payload, int length, boolean fragment, boolean batch) {
+		if (fragment) {
+			payload = reassembler.add(payload, length);
+			if (payload == null) return;
+			length = payload.length;
+		}
+		if (batch) {
+			int offset = 0;
+			while (length - offset >= WirePacket.BATCH_RECORD_HEADER_LENGTH) {
+				int recordLength = ((payload[offset] & 0xFF) << 8) | (payload[offset + 1] & 0xFF);
+				offset += WirePacket.BATCH_RECORD_HEADER_LENGTH;
+				if (recordLength > length - offset) {
+					logger.warn("Koosteen tietue on liian pitkä: {} tavua", recordLength);
+					return;
+				}
+				notifyReceivers(stream, Arrays.copyOfRange(payload, offset, offset + recordLength));
+				offset += recordLength;
+			}
+			return;
+		}
+		notifyReceivers(stream, fragment ? payload : Arrays.copyOf(payload, length));
+	}
+
+	private void notifyReceivers(int stream, byte[] payload) {
+		Receiver[] all = receivers;
+		for (int i = 0; i < all.length; i++) {
+			all[i].receive(payload);
+		}
+		Map<Integer, Receiver[]> byStream = streamReceivers;
+		if (byStream.isEmpty()) return;
+		Receiver[] receiversOfStream = byStream.get(stream);
+		if (receiversOfStream == null) return;
+		for (int i = 0; i < receiversOfStream.length; i++) {
+			receiversOfStream[i].receive(payload);
+		}
+	}
+
+	//Hylkää keskeneräiset viestit, joiden fragmentteja ei enää kuulu, ja palauttaa millisekunnit seuraavaan, tai NO_DEADLINE
+	long expireReassembly(long now) {
+		Reassembler current = reassembler;
+		current.expire(now);
+		long nanos = current.nanosUntilExpiry(now);
+		if (nanos == Reassembler.NO_EXPIRY) return WindowedTransfer.NO_DEADLINE;
+		return (nanos + 999999) / 1000000;
+	}
+
+}
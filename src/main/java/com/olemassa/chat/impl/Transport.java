@@ -0,0 +1,39 @@
+package com.olemassa.chat.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+
+/**
+ * Where the datagrams of a connection or server come from and where they go:
+ * {@link DatagramTransport} is a UDP socket, {@link InMemoryTransport} one end of an
+ * in-process pair. The {@link EventLoop} driving the session reads the transport
+ * whenever it reports datagrams, so the protocol code never sees which one it runs on.
+ * <p>
+ * Except for {@link #close()}, only the I/O thread of the session calls these methods.
+ */
+public abstract class Transport implements Closeable {
+
+	/**
+	 * Reads the next datagram into the buffer from its position and returns the sender,
+	 * or null if nothing has arrived. A datagram longer than the space left is truncated.
+	 */
+	abstract SocketAddress receive(ByteBuffer buffer) throws IOException;
+
+	//Lähettää puskurin positionista limitiin, kohde null on kytketty vastapuoli
+	abstract void send(ByteBuffer datagram, SocketAddress target) throws IOException;
+
+	//Silmukka alkaa kutsua istunnon readable(), kun datagrammeja on saapunut
+	abstract void register(Selector selector, Session session) throws IOException;
+
+	abstract void deregister(Selector selector);
+
+	//Vastaanottopuskuriin pitää mahtua ainakin bytes tavua, jos kuljetuksella sellainen on
+	void reserveReceiveBuffer(int bytes) throws IOException {
+	}
+
+	public abstract SocketAddress getLocalAddress() throws IOException;
+
+}
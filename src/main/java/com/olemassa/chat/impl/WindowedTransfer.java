@@ -0,0 +1,817 @@
+package com.olemassa.chat.impl;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.olemassa.chat.EpavarmaSocket;
+import com.olemassa.chat.Impairment;
+import com.olemassa.chat.Receiver;
+import com.olemassa.chat.ReliableDataTransfer;
+import com.olemassa.chat.impl.util.CongestionController;
+import com.olemassa.chat.impl.util.NewReno;
+import com.olemassa.chat.impl.util.RttEstimator;
+import com.olemassa.chat.impl.util.SerialNumber;
+import com.olemassa.chat.impl.util.TimingWheel;
+
+/**
+ * Common part of the windowed protocols: retransmission timers, RTT estimation,
+ * congestion control and the datagrams in and out. The non-blocking {@link Transport}
+ * is driven by an {@link EventLoop}, which wakes up either when datagrams arrive or when
+ * the next retransmission is due, so there is no polling tick while idle. {@link #run()}
+ * runs a loop of its own for this connection only; an {@link EventLoopGroup} instead
+ * hosts many connections on a few threads.
+ * <p>
+ * The protocol state has a single writer, the I/O thread. Application threads only
+ * put messages into the {@link SendQueue}, which also batches them on their way into
+ * the window, so any number of threads may send concurrently without taking locks.
+ * {@link Streams} fragments and orders messages per stream and delivers them, and
+ * {@link AckScheduler} decides when an ACK goes out on its own.
+ * <p>
+ * A connection created for a {@link PeerServer} has no transport or loop of its own: it
+ * sends to its peer through the server's socket and the server's thread drives it.
+ */
+abstract class WindowedTransfer extends Session implements ReliableDataTransfer {
+
+	static final Logger logger = LoggerFactory.getLogger(WindowedTransfer.class);
+
+	//Ei uudelleenlähetettävää
+	static final long NO_DEADLINE = Long.MAX_VALUE;
+
+	//RTO:n rajat millisekunteina
+	static final long MIN_RTO = 200;
+	static final long MAX_RTO = 60000;
+
+	//Virta, jota käytetään kun virtaa ei anneta
+	public static final int DEFAULT_STREAM = 0;
+
+	//Hävinneet lähetetään järjestysnumeron mukaan, ajastinkehän järjestys on mielivaltainen
+	private static final Comparator<Packet> SEQUENCE_ORDER = new Comparator<Packet>() {
+		@Override
+		public int compare(Packet a, Packet b) {
+			return Integer.signum(SerialNumber.distance(b.getSequence(), a.getSequence()));
+		}
+	};
+
+	protected RttEstimator rttEstimator = new RttEstimator(1000, MIN_RTO, MAX_RTO, TimeUnit.MILLISECONDS);
+	protected volatile CongestionController congestionController = new NewReno();
+
+	private final Transport transport;
+	private volatile boolean listening = true;
+	//Palvelintilassa kuljetus on PeerServerin ja datagrammit osoitetaan vastapuolelle remote, muuten null
+	private final PeerServer server;
+	private final SocketAddress remote;
+
+	//Puskurit käytetään uudelleen jokaiselle paketille, ikkunan paketit kierrätetään poolin kautta
+	private final PacketPool packetPool = new PacketPool(PacketPool.MAX_POOLED);
+	private final Streams streams = new Streams(this, packetPool);
+	private final SendQueue sendQueue = new SendQueue(this, streams, packetPool);
+	private final AckScheduler acks = new AckScheduler();
+	//Kuitatut paketit, joiden futuret valmistetaan vasta paketin käsittelyn jälkeen. Vain serverithread
+	private final List<Packet> ackedPackets = new ArrayList<Packet>();
+	private final ByteBuffer inboundBuffer = ByteBuffer.allocate(WirePacket.MAX_PACKET_LENGTH);
+	private final WirePacket packet = new WirePacket();
+	private final ByteBuffer outboundBuffer = ByteBuffer.allocate(WirePacket.MAX_PACKET_LENGTH);
+
+	//Emuloitu verkko kumpaankin suuntaan, null päästää datagrammit suoraan. Jonoja käyttää vain serverithread
+	private volatile Impairment inboundImpairment;
+	private volatile Impairment outboundImpairment = null;
+	private final Impairment.Sink inboundSink = (datagram, length, address) -> process(datagram, length);
+	private final Impairment.Sink outboundSink = (datagram, length, address) -> transmit(datagram, length);
+
+	//Uudelleenlähetysajastimet, millisekunnin tick ja noin sekunnin kierros
+	private final TimingWheel<Packet> resendTimers = new TimingWheel<Packet>(1, TimeUnit.MILLISECONDS, 1024);
+	private final List<Packet> expiredPackets = new ArrayList<Packet>();
+	private long lastBackoff = TimingWheel.now() - TimeUnit.MILLISECONDS.toNanos(MAX_RTO);
+	//RTT mitataan yhdestä paketista kerrallaan, BSD:n tapaan. Vain serverithread
+	private boolean timing = false;
+	private int timedSequence;
+	private long timedSendTime;
+
+	//Matkalla olevat ja hävinneiksi todetut paketit, jotka odottavat tilaa ruuhkaikkunassa. Vain serverithread
+	//kirjoittaa, laskurit ovat volatile muita lukijoita varten
+	private volatile int packetsInFlight = 0;
+	private final TreeSet<Packet> lostPackets = new TreeSet<Packet>(SEQUENCE_ORDER);
+	private final ConnectionMetrics metrics = new ConnectionMetrics(this);
+	//Pakettien elinkaari, null ei kirjaa mitään
+	private volatile FlightRecorder flightRecorder = null;
+	//Kuljetuksen datagrammit tiedostoon, null ei tallenna mitään
+	private volatile DatagramCapture capture = null;
+
+	//Viimeksi saapunut datagrammi, palvelimen yhteyden joutilaisuutta varten. Vain serverithread
+	private long lastActivity = TimingWheel.now();
+
+	protected WindowedTransfer(String localhost, int localport, String remotehost, int remoteport) throws SocketException {
+		this(DatagramTransport.connect(localhost, localport, remotehost, remoteport));
+		inboundImpairment = EpavarmaSocket.newImpairment();
+	}
+
+	//Oma kuljetus, esimerkiksi InMemoryTransport. Emulointia ei oletuksena ole kumpaankaan suuntaan
+	protected WindowedTransfer(Transport transport) {
+		server = null;
+		remote = null;
+		this.transport = transport;
+	}
+
+	//Yksi palvelimen monesta yhteydestä, PeerServer lukee kuljetusta ja ajaa ajastimet
+	protected WindowedTransfer(PeerServer server, SocketAddress remote) {
+		this.server = server;
+		this.remote = remote;
+		transport = server.transport();
+		//Palvelimen oma emulointi koskee jo kaikkia sen yhteyksiä
+		inboundImpairment = null;
+	}
+
+	//Käsittelee yhden tarkastetun paketin
+	protected abstract void receivePacket(WirePacket packet);
+
+	//Lisää paketin lähetysikkunaan ja lähettää sen, false jos ikkuna tai ruuhkaikkuna on täynnä
+	protected abstract boolean trySend(Packet packet);
+
+	//Lähetetyt mutta kuittaamattomat paketit, suljettaessa niiden futuret epäonnistuvat
+	protected abstract List<Packet> unacknowledgedPackets();
+
+	//Ensimmäinen lähetettävä ja odotettava järjestysnumero, molempiin päihin sama ennen käynnistystä
+	abstract void setInitialSequence(int sequence);
+
+	/**
+	 * Sends the message, or queues it if the window is full. Throws
+	 * {@link IllegalStateException} only when the send queue is full as well.
+	 */
+	@Override
+	public void send(byte[] outbound) throws IllegalStateException {
+		send(DEFAULT_STREAM, outbound);
+	}
+
+	//Kuten send(byte[]), mutta virtaan stream. Eri virtojen viestit eivät odota toisiaan
+	public void send(int stream, byte[] outbound) throws IllegalStateException {
+		sendQueue.submit(stream, outbound, null);
+	}
+
+	/**
+	 * Queues the message and returns a future that completes when the message is
+	 * acknowledged, or fails when the queue is full or the connection is closed first.
+	 */
+	@Override
+	public CompletableFuture<Void> sendAsync(byte[] outbound) {
+		return sendAsync(DEFAULT_STREAM, outbound);
+	}
+
+	public CompletableFuture<Void> sendAsync(int stream, byte[] outbound) {
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		try {
+			sendQueue.submit(stream, outbound, future);
+		} catch (RuntimeException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Waits for room in the send queue and then for the acknowledgement, both within
+	 * the same timeout.
+	 */
+	@Override
+	public void send(byte[] outbound, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+		send(DEFAULT_STREAM, outbound, timeout, unit);
+	}
+
+	public void send(int stream, byte[] outbound, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		sendQueue.submit(stream, outbound, future, deadline);
+		try {
+			future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			//Jonossa odottava viesti jätetään lähettämättä
+			future.cancel(false);
+			throw e;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IllegalStateException("Viestiä ei saatu lähetettyä", e.getCause());
+		}
+	}
+
+	//Ikkunaan mahtumattomien pakettien jono, välitysjonon viestit siirretään siihen kun tilaa on
+	public void setSendQueueCapacity(int sendQueueCapacity) {
+		logger.debug("setSendQueueCapacity({})", sendQueueCapacity);
+		sendQueue.setCapacity(sendQueueCapacity);
+	}
+
+	public int getSendQueueCapacity() {
+		return sendQueue.getCapacity();
+	}
+
+	//Jonossa odottavat paketit ja serverithreadille vielä välittämättömät viestit
+	public int getSendQueueLength() {
+		return sendQueue.getLength();
+	}
+
+	//0 lähettää jokaisen viestin heti omana pakettinaan
+	public void setBatchDelay(long batchDelay) {
+		logger.debug("setBatchDelay({})", batchDelay);
+		sendQueue.setBatchDelay(batchDelay);
+	}
+
+	public long getBatchDelay() {
+		return sendQueue.getBatchDelay();
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		logger.debug("setMaxBatchSize({})", maxBatchSize);
+		sendQueue.setMaxBatchSize(maxBatchSize);
+	}
+
+	public int getMaxBatchSize() {
+		return sendQueue.getMaxBatchSize();
+	}
+
+	public void setReassemblyLimits(long maxBytes, long timeout) {
+		logger.debug("setReassemblyLimits({}, {})", maxBytes, timeout);
+		streams.setReassemblyLimits(maxBytes, timeout);
+	}
+
+	Reassembler getReassembler() {
+		return streams.getReassembler();
+	}
+
+	//Pilkotun viestin future valmistuu vasta kun kaikki fragmentit on kuitattu. Kuitattu paketti palaa pooliin
+	private void completeAcked() {
+		for (int i = 0; i < ackedPackets.size(); i++) {
+			Packet packet = ackedPackets.get(i);
+			List<CompletableFuture<Void>> futures = packet.getBatchFutures();
+			for (int j = 0; j < futures.size(); j++) {
+				futures.get(j).complete(null);
+			}
+			AtomicInteger unackedFragments = packet.getUnackedFragments();
+			if (packet.getFuture() != null && (unackedFragments == null || unackedFragments.decrementAndGet() == 0)) {
+				packet.getFuture().complete(null);
+			}
+			packet.release();
+		}
+		ackedPackets.clear();
+	}
+
+	//Vastaanotettu datapaketti poolin paketiksi, kutsuja vapauttaa sen käsittelyn jälkeen
+	protected Packet received(WirePacket packet) {
+		return packetPool.acquire().copyFrom(packet);
+	}
+
+	//Toimitetaan heti, kun saman virran aiemmat on toimitettu, ks. Streams.deliver
+	protected void deliver(Packet packet) {
+		streams.deliver(packet);
+	}
+
+	private void failPending() {
+		IllegalStateException closedException = new IllegalStateException("Yhteys suljettiin ennen kuittausta");
+		sendQueue.close(closedException);
+		for (Packet packet : unacknowledgedPackets()) {
+			if (packet.getFuture() != null) packet.getFuture().completeExceptionally(closedException);
+			for (CompletableFuture<Void> future : packet.getBatchFutures()) {
+				future.completeExceptionally(closedException);
+			}
+		}
+	}
+
+	@Override
+	public void addReceiver(Receiver receiver) {
+		logger.debug("addReceiver({})", receiver);
+		streams.addReceiver(receiver);
+	}
+
+	//Vastaanottaja vain virran stream viesteille, addReceiver(Receiver) saa kaikkien virtojen viestit
+	public void addReceiver(int stream, Receiver receiver) {
+		logger.debug("addReceiver({}, {})", stream, receiver);
+		streams.addReceiver(stream, receiver);
+	}
+
+	@Override
+	public void stopListening() {
+		logger.debug("stopListening()");
+		listening = false;
+		streams.removeReceivers();
+		if (server != null) {
+			server.remove(this);
+		} else if (loop != null) {
+			loop.deregister(this);
+		}
+	}
+
+	//Vastapuoli, jolle palvelimen yhteys lähettää, tai null jos yhteydellä on oma kanava
+	public SocketAddress getRemoteAddress() {
+		return remote;
+	}
+
+	//Aloitus-RTO ennen ensimmäistä RTT-mittausta
+	protected void setInitialTimeout(long timeout) {
+		rttEstimator = new RttEstimator(timeout, Math.min(MIN_RTO, timeout), MAX_RTO, TimeUnit.MILLISECONDS);
+	}
+
+	public long getRetransmissionTimeout(TimeUnit unit) {
+		return rttEstimator.getRto(unit);
+	}
+
+	public long getSmoothedRtt(TimeUnit unit) {
+		return rttEstimator.getSrtt(unit);
+	}
+
+	public void setCongestionController(CongestionController congestionController) {
+		logger.debug("setCongestionController({})", congestionController);
+		this.congestionController = congestionController;
+	}
+
+	public CongestionController getCongestionController() {
+		return congestionController;
+	}
+
+	public int getCongestionWindow() {
+		return congestionController.getWindow();
+	}
+
+	public int getSlowStartThreshold() {
+		return congestionController.getSlowStartThreshold();
+	}
+
+	public int getPacketsInFlight() {
+		return packetsInFlight;
+	}
+
+	//Lähetetyt datapaketit uudelleenlähetykset mukaan lukien
+	public long getPacketsSent() {
+		return metrics.getPacketsSent();
+	}
+
+	public long getRetransmissions() {
+		return metrics.getRetransmissions();
+	}
+
+	public long getFastRetransmissions() {
+		return metrics.getFastRetransmissions();
+	}
+
+	//Lähetysikkunan koko paketteina
+	public abstract int getWindowSize();
+
+	//Yhteyden laskurit ja RTT-jakauma, JMX:ään ConnectionMetrics.register()
+	public ConnectionMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Records the packet lifecycle of this connection into the given recorder from now
+	 * on, or stops recording with null. See {@link FlightRecorder}.
+	 */
+	public void setFlightRecorder(FlightRecorder flightRecorder) {
+		logger.debug("setFlightRecorder({})", flightRecorder == null ? null : flightRecorder.getCapacity());
+		this.flightRecorder = flightRecorder;
+	}
+
+	public FlightRecorder getFlightRecorder() {
+		return flightRecorder;
+	}
+
+	//Kirjaa tapahtuman, jos nauhuri on käytössä. Vain serverithread
+	void trace(FlightRecorder.Event event, int sequence, int ack, int sack, int length) {
+		FlightRecorder recorder = flightRecorder;
+		if (recorder != null) recorder.record(event, sequence, ack, sack, length);
+	}
+
+	/**
+	 * Appends every datagram this connection reads or writes to the given capture from
+	 * now on, or stops capturing with null. The connection does not close the capture.
+	 * See {@link DatagramCapture}.
+	 */
+	public void setCapture(DatagramCapture capture) {
+		logger.debug("setCapture({})", capture);
+		this.capture = capture;
+	}
+
+	public DatagramCapture getCapture() {
+		return capture;
+	}
+
+	//0 kuittaa jokaisen paketin heti erillisellä kuittauksella
+	public void setAckDelay(long ackDelay) {
+		logger.debug("setAckDelay({})", ackDelay);
+		acks.setAckDelay(ackDelay);
+	}
+
+	public long getAckDelay() {
+		return acks.getAckDelay();
+	}
+
+	public void setAckEvery(int ackEvery) {
+		logger.debug("setAckEvery({})", ackEvery);
+		acks.setAckEvery(ackEvery);
+	}
+
+	public int getAckEvery() {
+		return acks.getAckEvery();
+	}
+
+	/**
+	 * Emulated network for datagrams arriving on this connection, null for none. A
+	 * standalone connection starts with {@link EpavarmaSocket#newImpairment()}, a
+	 * connection of a {@link PeerServer} with none of its own. Datagrams still queued in
+	 * the previous impairment are lost.
+	 */
+	public void setInboundImpairment(Impairment impairment) {
+		logger.debug("setInboundImpairment({})", impairment);
+		this.inboundImpairment = impairment;
+		wakeup();
+	}
+
+	public Impairment getInboundImpairment() {
+		return inboundImpairment;
+	}
+
+	//Emuloitu verkko lähteville datagrammeille, oletuksena ei mitään
+	public void setOutboundImpairment(Impairment impairment) {
+		logger.debug("setOutboundImpairment({})", impairment);
+		this.outboundImpairment = impairment;
+		wakeup();
+	}
+
+	public Impairment getOutboundImpairment() {
+		return outboundImpairment;
+	}
+
+	//Vastaanottopuskuriin pitää mahtua koko ikkunallinen
+	protected void reserveReceiveBuffer(int packets) {
+		int bytes = (int) Math.min(Integer.MAX_VALUE, (long) packets * WirePacket.MAX_PACKET_LENGTH);
+		try {
+			transport.reserveReceiveBuffer(bytes);
+		} catch (IOException e) {
+			logger.warn("Vastaanottopuskuria ei saatu kasvatettua", e);
+		}
+	}
+
+	/**
+	 * Marks the packets whose timers expired as lost and retransmits lost packets in
+	 * sequence order as far as the congestion window allows.
+	 */
+	protected void resendUnsent() {
+		expiredPackets.clear();
+		long now = TimingWheel.now();
+		if (resendTimers.expire(now, expiredPackets) > 0) {
+			int flightSize = packetsInFlight;
+			for (int i = 0; i < expiredPackets.size(); i++) {
+				Packet packet = expiredPackets.get(i);
+				trace(FlightRecorder.Event.TIMEOUT, packet.getSequence(), 0, 0, packet.getPayloadLength());
+				if (packet.isInFlight()) {
+					packet.setInFlight(false);
+					packetsInFlight--;
+				}
+				lostPackets.add(packet);
+			}
+			//Jokaisella paketilla on oma ajastin, joten RTO tuplataan korkeintaan kerran RTO:n aikana
+			if (now - lastBackoff >= rttEstimator.getRto(TimeUnit.NANOSECONDS)) {
+				lastBackoff = now;
+				rttEstimator.backoff();
+				congestionController.onTimeout(flightSize);
+				logger.debug("Aikakatkaisu {} paketille, {}, {}", expiredPackets.size(), rttEstimator, congestionController);
+			}
+		}
+		while (!lostPackets.isEmpty() && packetsInFlight < congestionController.getWindow()) {
+			Packet packet = lostPackets.pollFirst();
+			packet.setInFlight(true);
+			packetsInFlight++;
+			retransmit(packet);
+		}
+	}
+
+	//Millisekunnit seuraavaan uudelleenlähetysajastimeen, tai NO_DEADLINE
+	private long millisUntilNextResend() {
+		long nanos = resendTimers.nanosUntilNextExpiry(TimingWheel.now());
+		if (nanos == TimingWheel.NO_EXPIRY) return NO_DEADLINE;
+		return (nanos + 999999) / 1000000;
+	}
+
+	//Uuden paketin saa lähettää vasta kun hävinneet on lähetetty ja ruuhkaikkunassa on tilaa
+	protected boolean congestionWindowOpen() {
+		return lostPackets.isEmpty() && packetsInFlight < congestionController.getWindow();
+	}
+
+	//Ensimmäinen lähetys. Ajastetaan, ellei jokin paketti ole jo mitattavana
+	protected void sendAndArm(Packet packet) {
+		packet.setSendTime(TimingWheel.now());
+		if (!timing) {
+			timing = true;
+			timedSequence = packet.getSequence();
+			timedSendTime = packet.getSendTime();
+		}
+		packet.setInFlight(true);
+		packetsInFlight++;
+		sendPacket(packet);
+		armResendTimer(packet);
+	}
+
+	//Mikä tahansa uudelleenlähetys hylkää käynnissä olevan mittauksen, ks. packetAcked
+	private void retransmit(Packet packet) {
+		timing = false;
+		packet.setRetransmitted(true);
+		metrics.retransmission();
+		sendPacket(packet);
+		armResendTimer(packet);
+	}
+
+	private void armResendTimer(Packet packet) {
+		long rto = rttEstimator.getRto(TimeUnit.NANOSECONDS);
+		if (packet.getResendTimeout() == null) {
+			packet.setResendTimeout(resendTimers.schedule(packet, rto, TimeUnit.NANOSECONDS));
+		} else {
+			resendTimers.reschedule(packet.getResendTimeout(), rto, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	//Kuittaus perui ajastimen, O(1), ja paketti ei ole enää matkalla.
+	//Karnin sääntö koko ikkunalle: mitattu paketti kelpaa vain, jos mitään ei lähetetty uudelleen sen jälkeen
+	//kun se lähti. Aukon täyttävä uudelleenlähetys viivästää myös myöhemmin lähetettyjen kumulatiivista kuittausta,
+	//joten pelkän paketin oman uudelleenlähetyksen tarkistaminen ei riitä
+	protected void packetAcked(Packet packet) {
+		trace(FlightRecorder.Event.ACKED, packet.getSequence(), 0, 0, packet.getPayloadLength());
+		if (timing && packet.getSequence() == timedSequence) {
+			timing = false;
+			long rtt = TimingWheel.now() - timedSendTime;
+			rttEstimator.sample(rtt, TimeUnit.NANOSECONDS);
+			metrics.rtt(rtt);
+		}
+		resendTimers.cancel(packet.getResendTimeout());
+		if (packet.isInFlight()) {
+			packet.setInFlight(false);
+			packetsInFlight--;
+		} else {
+			lostPackets.remove(packet);
+		}
+		ackedPackets.add(packet);
+	}
+
+	//Kumulatiivinen kuittaus siirsi ikkunaa acked paketin verran. Uuden datan kuittaus kumoaa RTO:n kaksinkertaistukset.
+	//Kuitatut on jo vähennetty matkalla olevista, joten ennen kuittausta matkalla oli enintään packetsInFlight + acked
+	protected void windowAdvanced(int ack, int acked, Packet firstUnacked) {
+		rttEstimator.resetBackoff();
+		if (congestionController.onAck(ack, acked, packetsInFlight + acked) && firstUnacked != null) {
+			fastRetransmit(firstUnacked);
+		}
+	}
+
+	//Pelkkä kuittaus, joka ei siirtänyt ikkunaa: firstUnacked on todennäköisesti hävinnyt.
+	//sacked, jos kuittaus kuittasi valikoivasti uusia paketteja
+	protected void duplicateAck(int highestSent, Packet firstUnacked, boolean sacked) {
+		if (congestionController.onDuplicateAck(packetsInFlight, highestSent, sacked)) {
+			fastRetransmit(firstUnacked);
+		}
+	}
+
+	private void fastRetransmit(Packet packet) {
+		trace(FlightRecorder.Event.FAST_RETRANSMIT, packet.getSequence(), 0, 0, packet.getPayloadLength());
+		metrics.fastRetransmission();
+		if (!packet.isInFlight()) {
+			lostPackets.remove(packet);
+			packet.setInFlight(true);
+			packetsInFlight++;
+		}
+		retransmit(packet);
+	}
+
+	@Override
+	Transport transport() {
+		return transport;
+	}
+
+	@Override
+	boolean isListening() {
+		return listening;
+	}
+
+	//Palvelimen yhteyden pollaa palvelin
+	@Override
+	void wakeup() {
+		if (server != null) {
+			server.requestPoll(this);
+		} else {
+			super.wakeup();
+		}
+	}
+
+	@Override
+	void readable() throws IOException {
+		while (true) {
+			inboundBuffer.clear();
+			if (transport.receive(inboundBuffer) == null) return;
+			arrived(inboundBuffer, inboundBuffer.position());
+		}
+	}
+
+	/**
+	 * A datagram from the network, the bytes from 0 to <code>length</code>: captured if
+	 * there is a capture, then through the inbound impairment if there is one, otherwise
+	 * handled right away. Only from the I/O thread.
+	 */
+	void arrived(ByteBuffer datagram, int length) {
+		lastActivity = TimingWheel.now();
+		DatagramCapture current = capture;
+		if (current != null) current.record(DatagramCapture.Direction.INBOUND, datagram, 0, length);
+		Impairment impairment = inboundImpairment;
+		if (impairment == null) {
+			process(datagram, length);
+			return;
+		}
+		long now = TimingWheel.now();
+		impairment.offer(datagram, length, remote, now);
+		release(impairment, inboundSink, now);
+	}
+
+	//Datagrammi on läpäissyt emuloidun verkon
+	private void process(ByteBuffer datagram, int length) {
+		try {
+			packet.wrap(datagram, 0, length);
+		} catch (IllegalArgumentException ignore) {
+			metrics.checksumFailure();
+			trace(FlightRecorder.Event.DROP, 0, 0, 0, length);
+			logger.debug("Pakettia ei voitu lukea {}", ignore.getMessage());
+			return;
+		}
+		metrics.packetReceived(length);
+		if (flightRecorder != null) trace(packet.isData() ? FlightRecorder.Event.RECEIVE : FlightRecorder.Event.RECEIVE_ACK,
+				packet.getSequence(), packet.getAck(), packet.getSack(), length);
+		handle(packet);
+	}
+
+	//Käsittelee yhden vastaanotetun paketin. Vain serverithread
+	void handle(WirePacket packet) {
+		receivePacket(packet);
+		completeAcked();
+	}
+
+	/**
+	 * Runs whatever is due: retransmissions, a pending batch, the send queue and a
+	 * delayed ACK. Returns milliseconds until something is due again, or
+	 * {@link #NO_DEADLINE}. Only from the I/O thread.
+	 */
+	@Override
+	long poll() {
+		long now = TimingWheel.now();
+		long idleMillis = millisUntilIdle(now);
+		if (idleMillis <= 0) {
+			server.expire(this);
+			return NO_DEADLINE;
+		}
+		release(inboundImpairment, inboundSink, now);
+		release(outboundImpairment, outboundSink, now);
+		resendUnsent();
+		long sendMillis = sendQueue.poll();
+		long reassemblyMillis = streams.expireReassembly(now);
+		return Math.min(Math.min(Math.min(millisUntilNextResend(), flushDelayedAck()), Math.min(sendMillis, millisUntilImpaired())),
+				Math.min(idleMillis, reassemblyMillis));
+	}
+
+	//Millisekunnit siihen, kun palvelimen yhteys on ollut PeerServer.getIdleTimeout() joutilaana, tai NO_DEADLINE
+	private long millisUntilIdle(long now) {
+		if (server == null) return NO_DEADLINE;
+		long idleTimeout = server.getIdleTimeout();
+		if (idleTimeout <= 0) return NO_DEADLINE;
+		long nanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout) - (now - lastActivity);
+		return nanos <= 0 ? 0 : (nanos + 999999) / 1000000;
+	}
+
+	//Päästää erääntyneet datagrammit emuloidun verkon läpi
+	private void release(Impairment impairment, Impairment.Sink sink, long now) {
+		if (impairment == null) return;
+		try {
+			impairment.release(now, Integer.MAX_VALUE, sink);
+		} catch (IOException e) {
+			logger.error("Datagrammia ei voitu päästää läpi", e);
+		}
+	}
+
+	//Millisekunnit seuraavaan emuloidusta verkosta erääntyvään datagrammiin, tai NO_DEADLINE
+	private long millisUntilImpaired() {
+		long now = TimingWheel.now();
+		long nanos = Impairment.NO_DATAGRAM;
+		Impairment impairment = inboundImpairment;
+		if (impairment != null) nanos = impairment.nanosUntilNext(now);
+		impairment = outboundImpairment;
+		if (impairment != null) nanos = Math.min(nanos, impairment.nanosUntilNext(now));
+		if (nanos == Impairment.NO_DATAGRAM) return NO_DEADLINE;
+		return (nanos + 999999) / 1000000;
+	}
+
+	//Lähettämättömät ja kuittaamattomat epäonnistuvat, oma kuljetus suljetaan. Vain serverithread
+	@Override
+	void close() {
+		listening = false;
+		failPending();
+		metrics.unregister();
+		if (server != null) return;
+		try {
+			transport.close();
+		} catch (IOException e) {
+			logger.error("Kuljetuksen sulkeminen ei onnistu", e);
+		}
+		logger.debug("Listening stopped");
+	}
+
+	/**
+	 * Runs this connection on a loop of its own in the calling thread until
+	 * {@link #stopListening()}. Not for connections registered with an
+	 * {@link EventLoopGroup} or created for a {@link PeerServer}.
+	 */
+	@Override
+	public void run() {
+		if (server != null) throw new IllegalStateException("Palvelimen yhteyttä ajaa PeerServer");
+		if (loop != null) throw new IllegalStateException("Yhteys on jo rekisteröity silmukkaan");
+
+		logger.debug("run()");
+		try {
+			logger.debug("transport.getLocalAddress() {}", transport.getLocalAddress());
+		} catch (IOException ignore) {}
+		logger.debug("Receivers: {}", Arrays.toString(streams.getReceivers()));
+
+		EventLoop own;
+		try {
+			own = new EventLoop(true);
+		} catch (IOException e) {
+			logger.error("Silmukkaa ei saatu auki", e);
+			close();
+			return;
+		}
+		own.register(this);
+		own.run();
+	}
+
+	//Vain serverithread lähettää, joten lähetyspuskuri on sen oma.
+	//Datapaketti kuljettaa aina myös kuittauksen, joten odottava kuittaus lähtee sen mukana
+	protected void sendPacket(Packet packet) {
+		int ack = acks.getAck();
+		int sack = acks.getSack();
+		int length = packet.writeTo(outboundBuffer, 0, ack, sack);
+		sendDatagram(length);
+		metrics.packetSent(length);
+		trace(packet.isRetransmitted() ? FlightRecorder.Event.RETRANSMIT : FlightRecorder.Event.SEND, packet.getSequence(), ack, sack, length);
+		acks.sent();
+	}
+
+	/**
+	 * Records the cumulative ACK (next expected sequence) and SACK bits after a data
+	 * packet was received. The ACK goes out with the next data packet, or on its own as
+	 * {@link AckScheduler} decides. <code>immediate</code> sends it right away, e.g. for
+	 * out of order packets.
+	 */
+	protected void scheduleAck(int ack, int sack, boolean immediate) {
+		if (acks.received(ack, sack, immediate)) sendAck();
+	}
+
+	//Lähettää erääntyneen viivästetyn kuittauksen ja palauttaa millisekunnit seuraavaan, tai NO_DEADLINE
+	private long flushDelayedAck() {
+		long millis = acks.millisUntilDue(TimingWheel.now());
+		if (millis > 0) return millis;
+		sendAck();
+		return NO_DEADLINE;
+	}
+
+	private void sendAck() {
+		int length = WirePacket.encodeAck(outboundBuffer, 0, acks.getAck(), acks.getSack());
+		sendDatagram(length);
+		metrics.ackSent(length);
+		trace(FlightRecorder.Event.ACK_SENT, 0, acks.getAck(), acks.getSack(), length);
+		acks.sent();
+	}
+
+	private void sendDatagram(int length) {
+		Impairment impairment = outboundImpairment;
+		if (impairment == null) {
+			transmit(outboundBuffer, length);
+			return;
+		}
+		long now = TimingWheel.now();
+		impairment.offer(outboundBuffer, length, remote, now);
+		release(impairment, outboundSink, now);
+	}
+
+	private void transmit(ByteBuffer datagram, int length) {
+		try {
+			datagram.clear().limit(length);
+			transport.send(datagram, remote);
+			DatagramCapture current = capture;
+			if (current != null) current.record(DatagramCapture.Direction.OUTBOUND, datagram, 0, length);
+		} catch (IOException e) {
+			logger.error("Cannot send bytes", e);
+		}
+	}
+
+}
@@ -0,0 +1,204 @@
+package com.olemassa.chat.impl;
+
+import java.nio.ByteBuffer;
+
+import com.olemassa.chat.impl.util.Crc;
+
+/**
+ * Binary packet format of the windowed protocols, read and written in place on a
+ * {@link ByteBuffer}. One instance is reused (flyweight) for every received datagram.
+ * <pre>
+ * 0  version   1 byte
+ * 1  flags     1 byte   DATA and/or ACK, data packets carry the sender's ACK as well
+ * 2  length    2 bytes  payload length, unsigned
+ * 4  sequence  4 bytes  32-bit serial number, see {@link com.olemassa.chat.impl.util.SerialNumber}
+ * 8  ack       4 bytes  cumulative ACK: next expected sequence, valid with the ACK flag
+ * 12 sack      4 bytes  bit i set: sequence ack + 1 + i has been received out of order
+ * 16 stream    2 bytes  stream id, unsigned
+ * 18 stream sequence 2 bytes  16-bit serial number of the data packet within its stream
+ * 20 checksum  1 byte   CRC-8 over header bytes 0-19 and payload
+ * 21 payload   length bytes
+ * </pre>
+ * The window and the ACKs are shared by all streams of a connection; the stream
+ * sequence only orders delivery, so a loss on one stream does not hold back the others.
+ * With the FRAGMENT flag the payload is one piece of a larger message and starts with
+ * <pre>
+ * 0  message id      4 bytes
+ * 4  fragment index  2 bytes  unsigned
+ * 6  fragment count  2 bytes  unsigned
+ * </pre>
+ * With the BATCH flag the payload holds several small messages, each prefixed with
+ * its length as 2 unsigned bytes.
+ */
+final class WirePacket {
+
+	static final byte VERSION = 4;
+
+	static final int FLAG_DATA = 0x01;
+	static final int FLAG_ACK = 0x02;
+	static final int FLAG_FRAGMENT = 0x04;
+	static final int FLAG_BATCH = 0x08;
+
+	static final int VERSION_OFFSET = 0;
+	static final int FLAGS_OFFSET = 1;
+	static final int LENGTH_OFFSET = 2;
+	static final int SEQUENCE_OFFSET = 4;
+	static final int ACK_OFFSET = 8;
+	static final int SACK_OFFSET = 12;
+	static final int STREAM_OFFSET = 16;
+	static final int STREAM_SEQUENCE_OFFSET = 18;
+	static final int CHECKSUM_OFFSET = 20;
+	static final int HEADER_LENGTH = 21;
+
+	static final int SACK_BITS = 32;
+
+	static final int MAX_STREAMS = 0x10000;
+
+	static final int MAX_PACKET_LENGTH = 1024;
+	static final int MAX_PAYLOAD_LENGTH = MAX_PACKET_LENGTH - HEADER_LENGTH;
+
+	static final int FRAGMENT_ID_OFFSET = 0;
+	static final int FRAGMENT_INDEX_OFFSET = 4;
+	static final int FRAGMENT_COUNT_OFFSET = 6;
+	static final int FRAGMENT_HEADER_LENGTH = 8;
+	static final int MAX_FRAGMENT_LENGTH = MAX_PAYLOAD_LENGTH - FRAGMENT_HEADER_LENGTH;
+	static final int MAX_FRAGMENTS = 0xFFFF;
+
+	static final int BATCH_RECORD_HEADER_LENGTH = 2;
+
+	private static final byte[] NO_PAYLOAD = new byte[0];
+
+	private ByteBuffer buffer;
+	private int offset;
+
+	//Kirjoittaa paketin puskuriin kohtaan offset, palauttaa paketin pituuden
+	static int encode(ByteBuffer buffer, int offset, int flags, int sequence, int ack, int sack, int stream, int streamSequence, byte[] payload, int payloadOffset, int payloadLength) {
+		if (payloadLength > MAX_PAYLOAD_LENGTH)
+			throw new IllegalArgumentException("Viesti on liian pitkä: " + payloadLength + " tavua");
+		buffer.put(offset + VERSION_OFFSET, VERSION);
+		buffer.put(offset + FLAGS_OFFSET, (byte) flags);
+		buffer.putShort(offset + LENGTH_OFFSET, (short) payloadLength);
+		buffer.putInt(offset + SEQUENCE_OFFSET, sequence);
+		buffer.putInt(offset + ACK_OFFSET, ack);
+		buffer.putInt(offset + SACK_OFFSET, sack);
+		buffer.putShort(offset + STREAM_OFFSET, (short) stream);
+		buffer.putShort(offset + STREAM_SEQUENCE_OFFSET, (short) streamSequence);
+		if (buffer.hasArray()) {
+			System.arraycopy(payload, payloadOffset, buffer.array(), buffer.arrayOffset() + offset + HEADER_LENGTH, payloadLength);
+		} else for (int i = 0; i < payloadLength; i++) {
+			buffer.put(offset + HEADER_LENGTH + i, payload[payloadOffset + i]);
+		}
+		buffer.put(offset + CHECKSUM_OFFSET, checksum(buffer, offset, payloadLength));
+		return HEADER_LENGTH + payloadLength;
+	}
+
+	static int encodeAck(ByteBuffer buffer, int offset, int ack, int sack) {
+		return encode(buffer, offset, FLAG_ACK, 0, ack, sack, 0, 0, NO_PAYLOAD, 0, 0);
+	}
+
+	//Fragmentin otsake payloadin alkuun, ks. FRAGMENT_ID_OFFSET
+	static void encodeFragmentHeader(byte[] payload, int messageId, int index, int count) {
+		payload[FRAGMENT_ID_OFFSET] = (byte) (messageId >>> 24);
+		payload[FRAGMENT_ID_OFFSET + 1] = (byte) (messageId >>> 16);
+		payload[FRAGMENT_ID_OFFSET + 2] = (byte) (messageId >>> 8);
+		payload[FRAGMENT_ID_OFFSET + 3] = (byte) messageId;
+		payload[FRAGMENT_INDEX_OFFSET] = (byte) (index >>> 8);
+		payload[FRAGMENT_INDEX_OFFSET + 1] = (byte) index;
+		payload[FRAGMENT_COUNT_OFFSET] = (byte) (count >>> 8);
+		payload[FRAGMENT_COUNT_OFFSET + 1] = (byte) count;
+	}
+
+	private static byte checksum(ByteBuffer buffer, int offset, int payloadLength) {
+		int crc = Crc.CRC8.update(Crc.CRC8.initial(), buffer, offset, CHECKSUM_OFFSET);
+		crc = Crc.CRC8.update(crc, buffer, offset + HEADER_LENGTH, payloadLength);
+		return (byte) Crc.CRC8.finish(crc);
+	}
+
+	//Sitoo tämän olion vastaanotettuun pakettiin ja tarkastaa sen, ei kopioi mitään
+	WirePacket wrap(ByteBuffer buffer, int offset, int length) {
+		if (length < HEADER_LENGTH)
+			throw new IllegalArgumentException("Paketti on liian lyhyt: " + length + " tavua");
+		if (buffer.get(offset + VERSION_OFFSET) != VERSION)
+			throw new IllegalArgumentException("Tuntematon paketin versio " + buffer.get(offset + VERSION_OFFSET));
+		int payloadLength = buffer.getShort(offset + LENGTH_OFFSET) & 0xFFFF;
+		if (HEADER_LENGTH + payloadLength != length)
+			throw new IllegalArgumentException("Paketin pituus ei täsmää: " + (HEADER_LENGTH + payloadLength) + " != " + length);
+		if (checksum(buffer, offset, payloadLength) != buffer.get(offset + CHECKSUM_OFFSET))
+			throw new IllegalArgumentException("Paketin tarkaste ei ole oikein");
+		this.buffer = buffer;
+		this.offset = offset;
+		return this;
+	}
+
+	int getFlags() {
+		return buffer.get(offset + FLAGS_OFFSET) & 0xFF;
+	}
+
+	boolean isAck() {
+		return (getFlags() & FLAG_ACK) != 0;
+	}
+
+	boolean isData() {
+		return (getFlags() & FLAG_DATA) != 0;
+	}
+
+	boolean isFragment() {
+		return (getFlags() & FLAG_FRAGMENT) != 0;
+	}
+
+	boolean isBatch() {
+		return (getFlags() & FLAG_BATCH) != 0;
+	}
+
+	int getSequence() {
+		return buffer.getInt(offset + SEQUENCE_OFFSET);
+	}
+
+	int getAck() {
+		return buffer.getInt(offset + ACK_OFFSET);
+	}
+
+	int getSack() {
+		return buffer.getInt(offset + SACK_OFFSET);
+	}
+
+	int getStream() {
+		return buffer.getShort(offset + STREAM_OFFSET) & 0xFFFF;
+	}
+
+	int getStreamSequence() {
+		return buffer.getShort(offset + STREAM_SEQUENCE_OFFSET) & 0xFFFF;
+	}
+
+	int getPayloadLength() {
+		return buffer.getShort(offset + LENGTH_OFFSET) & 0xFFFF;
+	}
+
+	int getPayloadOffset() {
+		return offset + HEADER_LENGTH;
+	}
+
+	//Ainoa kopio: payload vastaanottajille tai vastaanottobufferiin
+	byte[] getPayload() {
+		byte[] payload = new byte[getPayloadLength()];
+		getPayload(payload, 0);
+		return payload;
+	}
+
+	//Kopioi payloadin valmiiseen taulukkoon ja palauttaa sen pituuden
+	int getPayload(byte[] destination, int destinationOffset) {
+		int length = getPayloadLength();
+		if (buffer.hasArray()) {
+			System.arraycopy(buffer.array(), buffer.arrayOffset() + getPayloadOffset(), destination, destinationOffset, length);
+		} else for (int i = 0; i < length; i++) {
+			destination[destinationOffset + i] = buffer.get(getPayloadOffset() + i);
+		}
+		return length;
+	}
+
+	@Override
+	public String toString() {
+		return "Flags: " + getFlags() + " Sequence: " + getSequence() + " Ack: " + getAck() +  " Sack: " + Integer.toBinaryString(getSack()) + " Stream: " + getStream() + "/" + getStreamSequence() + " Length: " + getPayloadLength();
+	}
+
+}
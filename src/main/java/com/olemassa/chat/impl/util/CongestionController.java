@@ -0,0 +1,37 @@
+package com.olemassa.chat.impl.util;
+
+/**
+ * Congestion window of a windowed sender, counted in packets.
+ * <p>
+ * The sender keeps at most <code>min(getWindow(), window size)</code> packets in flight
+ * and reports acknowledgements, duplicate ACKs and retransmission timeouts back here.
+ * All calls come from the sender, implementations only need to be safe for reading
+ * the window from another thread.
+ */
+public interface CongestionController {
+
+	//Kuinka monta pakettia saa olla matkalla
+	int getWindow();
+
+	int getSlowStartThreshold();
+
+	/**
+	 * New data was acknowledged: <code>acked</code> packets, cumulative ACK now <code>ack</code>,
+	 * with <code>flightSize</code> packets in flight before this ACK. Returns true if the
+	 * first unacknowledged packet should be retransmitted right away (partial ACK during
+	 * fast recovery).
+	 */
+	boolean onAck(int ack, int acked, int flightSize);
+
+	/**
+	 * A pure ACK that did not move the window. <code>highestSent</code> is the last
+	 * sequence sent so far. <code>sacked</code> is true if the ACK selectively acknowledged
+	 * new packets, which the sender has already taken out of the flight size. Returns true
+	 * to fast retransmit the first unacknowledged packet.
+	 */
+	boolean onDuplicateAck(int flightSize, int highestSent, boolean sacked);
+
+	//Uudelleenlähetysajastin laukesi, kutsutaan korkeintaan kerran RTO:n aikana
+	void onTimeout(int flightSize);
+
+}
@@ -0,0 +1,119 @@
+package com.olemassa.chat.impl.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Table driven CRC algorithms.
+ * <p>
+ * Every algorithm keeps only an immutable lookup table, so the constants can be shared
+ * between threads. The running value is passed in and returned by the caller, which
+ * lets the checksum be computed over several slices without copying them together:
+ * <pre>
+ * int crc = Crc.CRC8.update(Crc.CRC8.initial(), sequence);
+ * crc = Crc.CRC8.update(crc, payload, 0, payload.length);
+ * byte checksum = (byte) Crc.CRC8.finish(crc);
+ * </pre>
+ * <ul>
+ * <li>CRC8 - polynomial 0x07, same as Jacksum "crc8" and {@link com.olemassa.chat.obsolete.CRC8}</li>
+ * <li>CRC16 - CRC-16/ARC, same as Jacksum "crc16"</li>
+ * <li>CRC32C - Castagnoli polynomial (iSCSI, SCTP)</li>
+ * </ul>
+ */
+public enum Crc {
+
+	CRC8(8, 0x07, 0x00, false, 0x00),
+	CRC16(16, 0x8005, 0x0000, true, 0x0000),
+	CRC32C(32, 0x1EDC6F41, 0xFFFFFFFF, true, 0xFFFFFFFF);
+
+	private final int width;
+	private final int mask;
+	private final int initial;
+	private final boolean reflected;
+	private final int xorOut;
+	private final int[] table = new int[256];
+
+	private Crc(int width, int polynomial, int initial, boolean reflected, int xorOut) {
+		this.width = width;
+		this.mask = width == 32 ? 0xFFFFFFFF : (1 << width) - 1;
+		this.initial = initial;
+		this.reflected = reflected;
+		this.xorOut = xorOut;
+		if (reflected) {
+			int reflectedPolynomial = Integer.reverse(polynomial) >>> (32 - width);
+			for (int i = 0; i < 256; i++) {
+				int crc = i;
+				for (int j = 0; j < 8; j++) {
+					crc = (crc & 1) != 0 ? (crc >>> 1) ^ reflectedPolynomial : crc >>> 1;
+				}
+				table[i] = crc;
+			}
+		} else {
+			int topBit = 1 << (width - 1);
+			for (int i = 0; i < 256; i++) {
+				int crc = i << (width - 8);
+				for (int j = 0; j < 8; j++) {
+					crc = (crc & topBit) != 0 ? (crc << 1) ^ polynomial : crc << 1;
+				}
+				table[i] = crc & mask;
+			}
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	//Alkuarvo, josta laskenta aloitetaan
+	public int initial() {
+		return initial;
+	}
+
+	//Lopullinen tarkaste kesken olevasta arvosta
+	public int finish(int crc) {
+		return (crc ^ xorOut) & mask;
+	}
+
+	public int update(int crc, byte b) {
+		if (reflected) return (crc >>> 8) ^ table[(crc ^ b) & 0xFF];
+		return ((crc << 8) ^ table[((crc >>> (width - 8)) ^ b) & 0xFF]) & mask;
+	}
+
+	public int update(int crc, byte[] bytes, int offset, int length) {
+		int end = offset + length;
+		if (reflected) {
+			for (int i = offset; i < end; i++) {
+				crc = (crc >>> 8) ^ table[(crc ^ bytes[i]) & 0xFF];
+			}
+		} else {
+			int shift = width - 8;
+			for (int i = offset; i < end; i++) {
+				crc = ((crc << 8) ^ table[((crc >>> shift) ^ bytes[i]) & 0xFF]) & mask;
+			}
+		}
+		return crc;
+	}
+
+	//Laskee puskurin position ja limitin väliltä, puskurin positioon ei kosketa
+	public int update(int crc, ByteBuffer buffer) {
+		return update(crc, buffer, buffer.position(), buffer.remaining());
+	}
+
+	public int update(int crc, ByteBuffer buffer, int index, int length) {
+		if (buffer.hasArray()) {
+			return update(crc, buffer.array(), buffer.arrayOffset() + index, length);
+		}
+		for (int i = index; i < index + length; i++) {
+			crc = update(crc, buffer.get(i));
+		}
+		return crc;
+	}
+
+	public int compute(byte[] bytes, int offset, int length) {
+		return finish(update(initial, bytes, offset, length));
+	}
+
+	public int compute(ByteBuffer buffer) {
+		return finish(update(initial, buffer));
+	}
+
+}
@@ -0,0 +1,37 @@
+package com.olemassa.chat.impl.util;
+
+/**
+ * No congestion control: the window size alone limits the sender. Useful as a
+ * baseline when comparing against {@link NewReno}.
+ */
+public class FixedWindow implements CongestionController {
+
+	@Override
+	public int getWindow() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public int getSlowStartThreshold() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public boolean onAck(int ack, int acked, int flightSize) {
+		return false;
+	}
+
+	@Override
+	public boolean onDuplicateAck(int flightSize, int highestSent, boolean sacked) {
+		return false;
+	}
+
+	@Override
+	public void onTimeout(int flightSize) {}
+
+	@Override
+	public String toString() {
+		return "FixedWindow";
+	}
+
+}
@@ -0,0 +1,95 @@
+package com.olemassa.chat.impl.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size log-linear histogram of durations in microseconds: every power of two is
+ * split into {@link #SUB_BUCKETS} equal buckets, so a percentile is off by at most
+ * 1/{@link #SUB_BUCKETS} of its value. Recording is a few shifts and plain stores, without
+ * allocation, locks or memory fences.
+ * <p>
+ * One thread records, any thread may read. Readers see each bucket's count as of some
+ * recent moment, which is all monitoring needs.
+ */
+public class LatencyHistogram {
+
+	//Kahden potenssin jakoja ja niiden lukumäärän kaksikantainen logaritmi
+	public static final int SUB_BUCKETS = 8;
+	private static final int SUB_BUCKET_BITS = 3;
+	//Suurin erotteleva lokero päättyy 2^43 mikrosekuntiin, noin sataan vuorokauteen. Pidemmät menevät siihen
+	private static final int MAGNITUDES = 40;
+
+	private final AtomicLongArray counts = new AtomicLongArray((MAGNITUDES + 1) * SUB_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	//Vain yksi kirjoittaja, joten lukeminen ja kasvattaminen erikseen riittää eikä lazySet tarvitse muistiestettä
+	public void record(long duration, TimeUnit unit) {
+		long micros = Math.max(0, unit.toMicros(duration));
+		int index = index(micros);
+		counts.lazySet(index, counts.get(index) + 1);
+		sum.lazySet(sum.get() + micros);
+		if (micros > max.get()) max.lazySet(micros);
+		count.lazySet(count.get() + 1);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax(TimeUnit unit) {
+		return unit.convert(max.get(), TimeUnit.MICROSECONDS);
+	}
+
+	public double getMeanMicros() {
+		long samples = count.get();
+		return samples == 0 ? 0 : (double) sum.get() / samples;
+	}
+
+	/**
+	 * The upper bound of the bucket holding the given percentile (0 - 100), capped at the
+	 * largest recorded value, or 0 with no samples.
+	 */
+	public long getValueAtPercentile(double percentile, TimeUnit unit) {
+		long samples = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			samples += counts.get(i);
+		}
+		if (samples == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * samples));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank) return unit.convert(Math.min(upperBound(i), max.get()), TimeUnit.MICROSECONDS);
+		}
+		return getMax(unit);
+	}
+
+	//Alle SUB_BUCKETS mikrosekuntia saa oman lokeronsa, sitä suuremmista ratkaisevat ylin bitti ja sitä seuraavat
+	private static int index(long micros) {
+		if (micros < SUB_BUCKETS) return (int) micros;
+		int magnitude = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS + 1;
+		if (magnitude > MAGNITUDES) return (MAGNITUDES + 1) * SUB_BUCKETS - 1;
+		int sub = (int) (micros >>> (magnitude - 1)) & (SUB_BUCKETS - 1);
+		return magnitude * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound(int index) {
+		int magnitude = index / SUB_BUCKETS;
+		int sub = index % SUB_BUCKETS;
+		if (magnitude == 0) return sub;
+		return ((long) (SUB_BUCKETS + sub + 1) << (magnitude - 1)) - 1;
+	}
+
+	@Override
+	public String toString() {
+		return "LatencyHistogram [count=" + count.get()
+				+ ", p50=" + getValueAtPercentile(50, TimeUnit.MICROSECONDS)
+				+ ", p99=" + getValueAtPercentile(99, TimeUnit.MICROSECONDS)
+				+ ", max=" + max.get() + " µs]";
+	}
+
+}
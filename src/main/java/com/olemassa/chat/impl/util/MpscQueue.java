@@ -0,0 +1,66 @@
+package com.olemassa.chat.impl.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer, on a power-of-two
+ * ring.
+ * <p>
+ * A producer claims a slot with a CAS on the producer index and then publishes the
+ * element with an ordered write. Until then the consumer sees the slot as empty and
+ * picks the element up on a later poll, so {@link #isEmpty()} may be false while
+ * {@link #poll()} still returns null for a moment. Any thread may offer, only one
+ * thread may poll.
+ */
+public class MpscQueue<E> {
+
+	private final AtomicReferenceArray<E> slots;
+	private final int mask;
+	private final AtomicLong producerIndex = new AtomicLong();
+	//Vain kuluttaja kirjoittaa, tuottajat lukevat tilan tarkistamiseksi
+	private final AtomicLong consumerIndex = new AtomicLong();
+
+	public MpscQueue(int capacity) {
+		slots = new AtomicReferenceArray<E>(SerialNumber.ringSize(capacity));
+		mask = slots.length() - 1;
+	}
+
+	//false jos jono on täynnä
+	public boolean offer(E element) {
+		if (element == null) throw new NullPointerException();
+		while (true) {
+			long index = producerIndex.get();
+			if (index - consumerIndex.get() >= slots.length()) return false;
+			if (producerIndex.compareAndSet(index, index + 1)) {
+				slots.lazySet((int) index & mask, element);
+				return true;
+			}
+		}
+	}
+
+	//Vain kuluttaja. null jos jono on tyhjä tai seuraava alkio ei ole vielä julkaistu
+	public E poll() {
+		long index = consumerIndex.get();
+		int slot = (int) index & mask;
+		E element = slots.get(slot);
+		if (element == null) return null;
+		slots.lazySet(slot, null);
+		consumerIndex.lazySet(index + 1);
+		return element;
+	}
+
+	public boolean isEmpty() {
+		return consumerIndex.get() == producerIndex.get();
+	}
+
+	public int size() {
+		long size = producerIndex.get() - consumerIndex.get();
+		return (int) Math.max(0, Math.min(size, slots.length()));
+	}
+
+	public int capacity() {
+		return slots.length();
+	}
+
+}
@@ -0,0 +1,105 @@
+package com.olemassa.chat.impl.util;
+
+/**
+ * NewReno congestion control (RFC 5681, RFC 6582) in packets instead of bytes.
+ * <p>
+ * Slow start grows the window by one packet per acknowledged packet until the slow
+ * start threshold, after that congestion avoidance adds one packet per window. The window
+ * only grows while the sender fills it (RFC 7661): a sender held back by the application
+ * or by its window size has not shown that the path takes more. Three
+ * duplicate ACKs halve the window and enter fast recovery, which lasts until everything
+ * sent before the loss is acknowledged. A timeout drops the window to one packet.
+ * <p>
+ * In fast recovery each duplicate ACK inflates the window by one packet for the packet
+ * that left the network, except when it was selectively acknowledged: the sender has
+ * already counted that one out of the flight size.
+ */
+public class NewReno implements CongestionController {
+
+	public static final int INITIAL_WINDOW = 4;
+	public static final int DUPACK_THRESHOLD = 3;
+
+	private volatile int cwnd = INITIAL_WINDOW;
+	private volatile int ssthresh = Integer.MAX_VALUE;
+
+	//Ruuhkanvälttelyssä kuitatut paketit, ikkuna kasvaa kun koko ikkunallinen on kuitattu
+	private int avoidanceCount = 0;
+	private int duplicateAcks = 0;
+	private boolean inRecovery = false;
+	private int recover;
+
+	@Override
+	public int getWindow() {
+		return cwnd;
+	}
+
+	@Override
+	public int getSlowStartThreshold() {
+		return ssthresh;
+	}
+
+	public synchronized boolean isInRecovery() {
+		return inRecovery;
+	}
+
+	@Override
+	public synchronized boolean onAck(int ack, int acked, int flightSize) {
+		duplicateAcks = 0;
+		if (inRecovery) {
+			if (SerialNumber.after(ack, recover)) {
+				//Kaikki ennen häviötä lähetetty on kuitattu
+				inRecovery = false;
+				cwnd = ssthresh;
+				avoidanceCount = 0;
+				return false;
+			}
+			//Osittainen kuittaus: seuraavakin paketti on hävinnyt
+			cwnd = Math.max(1, cwnd - acked + 1);
+			return true;
+		}
+		//Sovellus tai ikkunan koko rajoitti lähettäjää, ikkuna ei ollut käytössä kokonaan
+		if (flightSize < cwnd) return false;
+		if (cwnd < ssthresh) {
+			cwnd = (int) Math.min(ssthresh, (long) cwnd + acked);
+		} else {
+			avoidanceCount += acked;
+			while (avoidanceCount >= cwnd) {
+				avoidanceCount -= cwnd;
+				cwnd++;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized boolean onDuplicateAck(int flightSize, int highestSent, boolean sacked) {
+		if (inRecovery) {
+			//Jokainen kaksoiskuittaus tarkoittaa että yksi paketti on poistunut verkosta.
+			//SACK vähensi sen jo matkalla olevista, joten ikkunaa ei kasvateta toiseen kertaan
+			if (!sacked) cwnd++;
+			return false;
+		}
+		if (++duplicateAcks < DUPACK_THRESHOLD) return false;
+		ssthresh = Math.max(flightSize / 2, 2);
+		cwnd = ssthresh + DUPACK_THRESHOLD;
+		inRecovery = true;
+		recover = highestSent;
+		duplicateAcks = 0;
+		return true;
+	}
+
+	@Override
+	public synchronized void onTimeout(int flightSize) {
+		ssthresh = Math.max(flightSize / 2, 2);
+		cwnd = 1;
+		avoidanceCount = 0;
+		duplicateAcks = 0;
+		inRecovery = false;
+	}
+
+	@Override
+	public String toString() {
+		return "NewReno CWND: " + cwnd + " SSTHRESH: " + (ssthresh == Integer.MAX_VALUE ? "-" : String.valueOf(ssthresh));
+	}
+
+}
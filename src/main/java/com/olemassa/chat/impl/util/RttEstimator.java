@@ -0,0 +1,89 @@
+package com.olemassa.chat.impl.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retransmission timeout from round trip samples (Jacobson/Karels, RFC 6298).
+ * <p>
+ * Callers must follow Karn's rule and only feed samples of packets that were sent once.
+ * A timeout doubles the RTO until the next valid sample, or until {@link #resetBackoff()}
+ * once new data has been acknowledged. The RTO is clamped between the given minimum and
+ * maximum.
+ */
+public class RttEstimator {
+
+	//RFC 6298: alpha = 1/8, beta = 1/4, K = 4
+	private static final int ALPHA_SHIFT = 3;
+	private static final int BETA_SHIFT = 2;
+	private static final int K = 4;
+
+	private final long minRto;
+	private final long maxRto;
+	private final long initialRto;
+
+	private volatile long srtt = 0;
+	private volatile long rttvar = 0;
+	private volatile long rto;
+	private boolean sampled = false;
+
+	public RttEstimator(long initialRto, long minRto, long maxRto, TimeUnit unit) {
+		this.minRto = unit.toNanos(minRto);
+		this.maxRto = unit.toNanos(maxRto);
+		this.initialRto = clamp(unit.toNanos(initialRto));
+		this.rto = this.initialRto;
+	}
+
+	public void sample(long rtt, TimeUnit unit) {
+		long r = unit.toNanos(rtt);
+		if (!sampled) {
+			srtt = r;
+			rttvar = r / 2;
+			sampled = true;
+		} else {
+			rttvar = rttvar - (rttvar >> BETA_SHIFT) + (Math.abs(srtt - r) >> BETA_SHIFT);
+			srtt = srtt - (srtt >> ALPHA_SHIFT) + (r >> ALPHA_SHIFT);
+		}
+		rto = estimate();
+	}
+
+	//Uudelleenlähetyksen jälkeen odotetaan kaksi kertaa pidempään
+	public void backoff() {
+		rto = clamp(rto * 2);
+	}
+
+	/**
+	 * Undoes the backoff, keeping SRTT and RTTVAR, when an ACK covers new data (RFC 6298
+	 * section 5, as Linux does). Under loss Karn's rule may reject every sample, and
+	 * without this the RTO would only ever grow.
+	 */
+	public void resetBackoff() {
+		rto = sampled ? estimate() : initialRto;
+	}
+
+	private long estimate() {
+		return clamp(srtt + Math.max(1, K * rttvar));
+	}
+
+	public long getRto(TimeUnit unit) {
+		return unit.convert(rto, TimeUnit.NANOSECONDS);
+	}
+
+	//0 ennen ensimmäistä mittausta
+	public long getSrtt(TimeUnit unit) {
+		return unit.convert(srtt, TimeUnit.NANOSECONDS);
+	}
+
+	public long getRttvar(TimeUnit unit) {
+		return unit.convert(rttvar, TimeUnit.NANOSECONDS);
+	}
+
+	private long clamp(long value) {
+		return Math.max(minRto, Math.min(maxRto, value));
+	}
+
+	@Override
+	public String toString() {
+		return "SRTT: " + getSrtt(TimeUnit.MICROSECONDS) + " us RTTVAR: " + getRttvar(TimeUnit.MICROSECONDS) + " us RTO: " + getRto(TimeUnit.MILLISECONDS) + " ms";
+	}
+
+}
@@ -0,0 +1,42 @@
+package com.olemassa.chat.impl.util;
+
+/**
+ * 32-bit sequence number arithmetic (RFC 1982).
+ * <p>
+ * Sequence numbers run over the whole <code>int</code> range and wrap around, so they
+ * are only compared through their signed difference. That is well defined as long as the
+ * numbers being compared are less than 2^31 apart, which any window is. Buffers index
+ * a power-of-two ring with <code>sequence &amp; mask</code>, which keeps working across
+ * the wrap.
+ */
+public final class SerialNumber {
+
+	private SerialNumber() {}
+
+	//Montako askelta from:sta eteenpäin on to, negatiivinen jos to on ennen from:ia
+	public static int distance(int from, int to) {
+		return to - from;
+	}
+
+	public static boolean before(int a, int b) {
+		return a - b < 0;
+	}
+
+	public static boolean after(int a, int b) {
+		return a - b > 0;
+	}
+
+	//Onko sequence välillä [base, base + size)
+	public static boolean inWindow(int sequence, int base, int size) {
+		int offset = sequence - base;
+		return offset >= 0 && offset < size;
+	}
+
+	//Pienin kahden potenssi, joka on vähintään size
+	public static int ringSize(int size) {
+		if (size < 1 || size > 1 << 30)
+			throw new IllegalArgumentException("Ikkunan koko ei kelpaa: " + size);
+		return size == 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+	}
+
+}
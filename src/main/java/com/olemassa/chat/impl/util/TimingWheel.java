@@ -0,0 +1,161 @@
+package com.olemassa.chat.impl.util;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel for retransmission timers.
+ * <p>
+ * Timers are kept in doubly linked lists, one per tick of the wheel, so scheduling and
+ * cancelling are O(1) regardless of how many timers are armed. {@link #expire(long, Collection)}
+ * only visits the buckets of the ticks that have passed and hands back all expired items
+ * in one batch. Time is measured with {@link System#nanoTime()}.
+ * <p>
+ * Not thread safe: a wheel belongs to the I/O thread of its connection, which schedules,
+ * cancels and expires every timer on it. A caller that arms timers from another thread
+ * has to lock around every call itself.
+ */
+public class TimingWheel<T> {
+
+	public static final long NO_EXPIRY = Long.MAX_VALUE;
+
+	public static final class Timeout<T> {
+
+		private final T item;
+		private long deadlineTick;
+		private Timeout<T> previous;
+		private Timeout<T> next;
+		private boolean armed;
+
+		private Timeout(T item) {
+			this.item = item;
+		}
+
+		public T getItem() {
+			return item;
+		}
+
+		public boolean isArmed() {
+			return armed;
+		}
+
+	}
+
+	private final long tickNanos;
+	private final int mask;
+	private final Timeout<T>[] buckets;
+	private final long startTime;
+
+	//Viimeisin käsitelty tick
+	private long currentTick;
+	private int size;
+
+	public TimingWheel(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+		if (Integer.bitCount(ticksPerWheel) != 1)
+			throw new IllegalArgumentException("ticksPerWheel pitää olla kahden potenssi: " + ticksPerWheel);
+		this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+		this.mask = ticksPerWheel - 1;
+		@SuppressWarnings("unchecked")
+		Timeout<T>[] buckets = (Timeout<T>[]) new Timeout<?>[ticksPerWheel];
+		this.buckets = buckets;
+		this.startTime = System.nanoTime();
+		this.currentTick = 0;
+	}
+
+	public static long now() {
+		return System.nanoTime();
+	}
+
+	public Timeout<T> schedule(T item, long delay, TimeUnit unit) {
+		Timeout<T> timeout = new Timeout<T>(item);
+		arm(timeout, now() + unit.toNanos(delay));
+		return timeout;
+	}
+
+	//Siirtää jo olemassa olevan ajastimen uuteen aikaan ilman uutta allokointia
+	public void reschedule(Timeout<T> timeout, long delay, TimeUnit unit) {
+		if (timeout.armed) unlink(timeout);
+		arm(timeout, now() + unit.toNanos(delay));
+	}
+
+	public boolean cancel(Timeout<T> timeout) {
+		if (timeout == null || !timeout.armed) return false;
+		unlink(timeout);
+		return true;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Collects the items of all timers that are due at <code>now</code> into <code>expired</code>
+	 * and disarms them. Returns the number of expired timers.
+	 */
+	public int expire(long now, Collection<? super T> expired) {
+		long nowTick = tickOf(now);
+		if (nowTick <= currentTick) return 0;
+		int count = 0;
+		long ticks = Math.min(nowTick - currentTick, buckets.length);
+		for (long tick = currentTick + 1; tick <= currentTick + ticks; tick++) {
+			Timeout<T> timeout = buckets[(int) (tick & mask)];
+			while (timeout != null) {
+				Timeout<T> next = timeout.next;
+				if (timeout.deadlineTick <= nowTick) {
+					unlink(timeout);
+					expired.add(timeout.item);
+					count++;
+				}
+				timeout = next;
+			}
+		}
+		currentTick = nowTick;
+		return count;
+	}
+
+	/**
+	 * Nanoseconds until the first non-empty bucket comes due, or {@link #NO_EXPIRY} if no
+	 * timers are armed. May be early for timers more than one rotation away.
+	 */
+	public long nanosUntilNextExpiry(long now) {
+		if (size == 0) return NO_EXPIRY;
+		for (long tick = currentTick + 1; tick <= currentTick + buckets.length; tick++) {
+			if (buckets[(int) (tick & mask)] != null) {
+				return Math.max(0, startTime + tick * tickNanos - now);
+			}
+		}
+		return 0;
+	}
+
+	private long tickOf(long time) {
+		return (time - startTime) / tickNanos;
+	}
+
+	private void arm(Timeout<T> timeout, long deadline) {
+		//Pyöristetään ylöspäin, ettei ajastin laukea etuajassa
+		long tick = (deadline - startTime + tickNanos - 1) / tickNanos;
+		timeout.deadlineTick = Math.max(tick, currentTick + 1);
+		int index = (int) (timeout.deadlineTick & mask);
+		timeout.previous = null;
+		timeout.next = buckets[index];
+		if (buckets[index] != null) buckets[index].previous = timeout;
+		buckets[index] = timeout;
+		timeout.armed = true;
+		size++;
+	}
+
+	private void unlink(Timeout<T> timeout) {
+		int index = (int) (timeout.deadlineTick & mask);
+		if (timeout.previous != null) {
+			timeout.previous.next = timeout.next;
+		} else {
+			buckets[index] = timeout.next;
+		}
+		if (timeout.next != null) timeout.next.previous = timeout.previous;
+		timeout.previous = null;
+		timeout.next = null;
+		timeout.armed = false;
+		size--;
+	}
+
+}
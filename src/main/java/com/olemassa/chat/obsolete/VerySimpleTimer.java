@@ -1,4 +1,4 @@
-package com.olemassa.chat.impl.util;
+package com.olemassa.chat.obsolete;
 
 public class VerySimpleTimer {
 	
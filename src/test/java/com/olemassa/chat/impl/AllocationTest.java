@@ -0,0 +1,121 @@
+package com.olemassa.chat.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.olemassa.chat.Receiver;
+
+/**
+ * Bytes allocated by the I/O threads per message over a warmed-up transfer on an
+ * {@link InMemoryTransport} pair, measured with the JVM's per-thread allocation counter.
+ * The sending side, data packets out and ACKs in, must allocate nothing in the steady
+ * state; the receiving side only the array each message is handed to the receiver in.
+ * A few bytes per message are allowed for the queue node the peer's loop is woken up
+ * with, once per burst, and for the completion of the test's own futures.
+ */
+public class AllocationTest {
+
+	private static final int MESSAGE_LENGTH = 100;
+	private static final int WINDOW = 64;
+	private static final int WARMUP_MESSAGES = 50000;
+	private static final int MEASURED_MESSAGES = 50000;
+	//Sallittu herätysten ja futurejen osuus viestiä kohden, tavuja
+	private static final long SLACK = 16;
+	//Vastaanottajalle annettava taulukko: otsikko ja sisältö pyöristettynä kahdeksaan tavuun
+	private static final long DELIVERED_ARRAY = 16 + MESSAGE_LENGTH;
+
+	private com.sun.management.ThreadMXBean threads;
+	private Thread senderThread;
+	private Thread receiverThread;
+	private WindowedTransfer sender;
+	private WindowedTransfer receiver;
+
+	@Before
+	public void setUp() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue("ThreadMXBean ei kerro allokointeja", bean instanceof com.sun.management.ThreadMXBean);
+		threads = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue("Allokointien mittaus ei ole käytössä", threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		if (sender != null) sender.stopListening();
+		if (receiver != null) receiver.stopListening();
+		if (senderThread != null) senderThread.join(TimeUnit.SECONDS.toMillis(5));
+		if (receiverThread != null) receiverThread.join(TimeUnit.SECONDS.toMillis(5));
+	}
+
+	@Test
+	public void selectiveRepeatSteadyStateAllocatesNothing() throws Exception {
+		InMemoryTransport[] pair = InMemoryTransport.pair();
+		measure(new SelectiveRepeat(pair[0], WINDOW, 1000), new SelectiveRepeat(pair[1], WINDOW, 1000));
+	}
+
+	@Test
+	public void goBackNSteadyStateAllocatesNothing() throws Exception {
+		InMemoryTransport[] pair = InMemoryTransport.pair();
+		measure(new GoBackNImpl(pair[0], WINDOW, 1000), new GoBackNImpl(pair[1], WINDOW, 1000));
+	}
+
+	private void measure(WindowedTransfer sender, WindowedTransfer receiver) throws Exception {
+		this.sender = sender;
+		this.receiver = receiver;
+		//Jokainen viesti omana pakettinaan
+		sender.setBatchDelay(0);
+		AtomicInteger delivered = new AtomicInteger();
+		receiver.addReceiver(new Receiver() {
+			@Override
+			public void receive(byte[] message) {
+				delivered.incrementAndGet();
+			}
+		});
+		senderThread = new Thread(sender, "allocation-sender");
+		receiverThread = new Thread(receiver, "allocation-receiver");
+		senderThread.start();
+		receiverThread.start();
+
+		byte[] message = new byte[MESSAGE_LENGTH];
+		transfer(sender, message, delivered, WARMUP_MESSAGES);
+		long senderBefore = threads.getThreadAllocatedBytes(senderThread.getId());
+		long receiverBefore = threads.getThreadAllocatedBytes(receiverThread.getId());
+		transfer(sender, message, delivered, WARMUP_MESSAGES + MEASURED_MESSAGES);
+		long senderBytes = threads.getThreadAllocatedBytes(senderThread.getId()) - senderBefore;
+		long receiverBytes = threads.getThreadAllocatedBytes(receiverThread.getId()) - receiverBefore;
+
+		assertEquals("Kaikki viestit eivät tulleet perille", WARMUP_MESSAGES + MEASURED_MESSAGES, delivered.get());
+		double senderPerMessage = (double) senderBytes / MEASURED_MESSAGES;
+		double receiverPerMessage = (double) receiverBytes / MEASURED_MESSAGES;
+		assertTrue("Lähettäjän I/O-säie allokoi " + senderPerMessage + " tavua viestiä kohden", senderPerMessage <= SLACK);
+		assertTrue("Vastaanottajan I/O-säie allokoi " + receiverPerMessage + " tavua viestiä kohden",
+				receiverPerMessage <= DELIVERED_ARRAY + SLACK);
+	}
+
+	//Lähettää ikkunallisen kerrallaan ja odottaa kuittaukset, kunnes total viestiä on toimitettu
+	private static void transfer(WindowedTransfer sender, byte[] message, AtomicInteger delivered, int total) throws Exception {
+		for (int sent = delivered.get(); sent < total;) {
+			CompletableFuture<?>[] futures = new CompletableFuture<?>[Math.min(WINDOW, total - sent)];
+			for (int i = 0; i < futures.length; i++) {
+				futures[i] = sender.sendAsync(message);
+			}
+			CompletableFuture.allOf(futures).get(10, TimeUnit.SECONDS);
+			sent += futures.length;
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (delivered.get() < total && System.nanoTime() - deadline < 0) {
+			Thread.sleep(1);
+		}
+	}
+
+}
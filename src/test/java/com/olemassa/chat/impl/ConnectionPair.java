@@ -0,0 +1,93 @@
+package com.olemassa.chat.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.olemassa.chat.Impairment;
+import com.olemassa.chat.Receiver;
+
+/**
+ * Two connections of the same protocol on an {@link InMemoryTransport} pair, each on a
+ * thread of its own, for the tests. Everything the second one delivers is collected in
+ * order. Configure both before {@link #start()}.
+ */
+final class ConnectionPair implements AutoCloseable {
+
+	final WindowedTransfer sender;
+	final WindowedTransfer receiver;
+	final List<byte[]> delivered = Collections.synchronizedList(new ArrayList<byte[]>());
+	private Thread senderThread;
+	private Thread receiverThread;
+
+	private ConnectionPair(WindowedTransfer sender, WindowedTransfer receiver) {
+		this.sender = sender;
+		this.receiver = receiver;
+		receiver.addReceiver(new Receiver() {
+			@Override
+			public void receive(byte[] message) {
+				delivered.add(message);
+			}
+		});
+	}
+
+	static ConnectionPair selectiveRepeat(int window, int timeout) {
+		InMemoryTransport[] pair = InMemoryTransport.pair();
+		return new ConnectionPair(new SelectiveRepeat(pair[0], window, timeout), new SelectiveRepeat(pair[1], window, timeout));
+	}
+
+	static ConnectionPair goBackN(int window, int timeout) {
+		InMemoryTransport[] pair = InMemoryTransport.pair();
+		return new ConnectionPair(new GoBackNImpl(pair[0], window, timeout), new GoBackNImpl(pair[1], window, timeout));
+	}
+
+	//Sama emuloitu verkko kumpaankin suuntaan, eri siemenillä
+	ConnectionPair impair(long seed, double loss, long delayMillis, double reorder) {
+		sender.setOutboundImpairment(impairment(seed, loss, delayMillis, reorder));
+		receiver.setOutboundImpairment(impairment(seed + 1, loss, delayMillis, reorder));
+		return this;
+	}
+
+	private static Impairment impairment(long seed, double loss, long delayMillis, double reorder) {
+		Impairment impairment = new Impairment(seed);
+		impairment.setLoss(loss);
+		impairment.setDelay(delayMillis, 0, TimeUnit.MILLISECONDS);
+		impairment.setReorder(reorder, 2 * delayMillis, TimeUnit.MILLISECONDS);
+		return impairment;
+	}
+
+	//Järjestysnumerot alkavat kummassakin päässä kohdasta sequence
+	ConnectionPair startingAt(int sequence) {
+		sender.setInitialSequence(sequence);
+		receiver.setInitialSequence(sequence);
+		return this;
+	}
+
+	ConnectionPair start() {
+		senderThread = new Thread(sender, "test-sender");
+		receiverThread = new Thread(receiver, "test-receiver");
+		senderThread.start();
+		receiverThread.start();
+		return this;
+	}
+
+	//true, jos vähintään count viestiä toimitettiin ajoissa
+	boolean awaitDelivered(int count, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (delivered.size() < count) {
+			if (System.nanoTime() - deadline >= 0) return false;
+			Thread.sleep(1);
+		}
+		return true;
+	}
+
+	@Override
+	public void close() throws InterruptedException {
+		sender.stopListening();
+		receiver.stopListening();
+		if (senderThread != null) senderThread.join(TimeUnit.SECONDS.toMillis(5));
+		if (receiverThread != null) receiverThread.join(TimeUnit.SECONDS.toMillis(5));
+	}
+
+}
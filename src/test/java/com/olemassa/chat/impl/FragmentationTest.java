@@ -0,0 +1,102 @@
+package com.olemassa.chat.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Messages larger than one packet, split into fragments by the sender and reassembled
+ * by the receiver, over a path that loses and reorders datagrams; and partial messages
+ * whose missing fragments never come.
+ */
+public class FragmentationTest {
+
+	//Noin 260 fragmenttia
+	private static final int MESSAGE_LENGTH = 256 * 1024;
+	private static final long DELAY_MILLIS = 5;
+	private static final long TIMEOUT_SECONDS = 30;
+
+	@Test
+	public void selectiveRepeatReassemblesUnderLossAndReordering() throws Exception {
+		try (ConnectionPair pair = ConnectionPair.selectiveRepeat(64, 200)) {
+			transfer(pair.impair(11, 0.05, DELAY_MILLIS, 0.1).start(), 3);
+		}
+	}
+
+	//Go-Back-N hylkää jokaisen epäjärjestyksessä tulevan, joten sille kevyempi häiriö
+	@Test
+	public void goBackNReassemblesUnderLossAndReordering() throws Exception {
+		try (ConnectionPair pair = ConnectionPair.goBackN(64, 200)) {
+			transfer(pair.impair(12, 0.02, DELAY_MILLIS, 0.02).start(), 1);
+		}
+	}
+
+	private static void transfer(ConnectionPair pair, int count) throws Exception {
+		Random random = new Random(MESSAGE_LENGTH);
+		byte[][] messages = new byte[count][MESSAGE_LENGTH];
+		for (byte[] message : messages) {
+			random.nextBytes(message);
+			pair.sender.send(message);
+		}
+		assertTrue("Vain " + pair.delivered.size() + "/" + count + " viestiä perillä " + TIMEOUT_SECONDS + " sekunnissa",
+				pair.awaitDelivered(count, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		assertEquals(count, pair.delivered.size());
+		for (int i = 0; i < count; i++) {
+			assertArrayEquals("Viesti " + i + " muuttui", messages[i], pair.delivered.get(i));
+		}
+		assertTrue("Häviö ei toiminut", pair.sender.getMetrics().getRetransmissions() > 0);
+		assertEquals(0, pair.receiver.getReassembler().getBufferedBytes());
+	}
+
+	//Kolmesta fragmentista tulee vain ensimmäinen, eikä muuta liikennettä ole: poll() hylkää keskeneräisen
+	@Test
+	public void abandonedReassemblyExpiresWithoutFurtherTraffic() throws Exception {
+		InMemoryTransport[] transports = InMemoryTransport.pair();
+		InMemoryTransport driver = transports[0];
+		SelectiveRepeat receiver = new SelectiveRepeat(transports[1], 16, 200);
+		receiver.setReassemblyLimits(1024 * 1024, 100);
+		Thread thread = new Thread(receiver, "test-receiver");
+		thread.start();
+		try {
+			byte[] fragment = new byte[WirePacket.FRAGMENT_HEADER_LENGTH + 100];
+			WirePacket.encodeFragmentHeader(fragment, 1, 0, 3);
+			ByteBuffer datagram = ByteBuffer.allocate(WirePacket.MAX_PACKET_LENGTH);
+			int length = WirePacket.encode(datagram, 0, WirePacket.FLAG_DATA | WirePacket.FLAG_FRAGMENT, 0, 0, 0, 0, 0,
+					fragment, 0, fragment.length);
+			datagram.limit(length);
+			driver.send(datagram, null);
+
+			Reassembler reassembler = receiver.getReassembler();
+			assertTrue("Fragmentti ei tullut koottavaksi", await(() -> reassembler.getBufferedBytes() == 100, 5000));
+			long arrived = System.nanoTime();
+			assertTrue("Keskeneräistä ei hylätty", await(() -> reassembler.getBufferedBytes() == 0, 5000));
+			long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - arrived);
+			assertEquals(1, reassembler.getDroppedMessages());
+			assertTrue("Hylkäys kesti " + waited + " ms", waited < 1000);
+		} finally {
+			receiver.stopListening();
+			thread.join(TimeUnit.SECONDS.toMillis(5));
+			driver.close();
+		}
+	}
+
+	private interface Condition {
+		boolean holds();
+	}
+
+	private static boolean await(Condition condition, long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (!condition.holds()) {
+			if (System.nanoTime() - deadline >= 0) return false;
+			Thread.sleep(1);
+		}
+		return true;
+	}
+
+}
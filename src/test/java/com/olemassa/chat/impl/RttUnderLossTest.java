@@ -0,0 +1,59 @@
+package com.olemassa.chat.impl;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Karn's rule over a lossy path: no RTT sample may include the wait for a
+ * retransmission, not even the sample of a packet that was sent only once but whose
+ * cumulative ACK waited for a lost packet before it. SRTT has to stay near the path
+ * round trip and the RTO near its minimum.
+ */
+public class RttUnderLossTest {
+
+	private static final long DELAY_MILLIS = 10;
+	private static final long PATH_RTT_MILLIS = 2 * DELAY_MILLIS;
+	private static final double LOSS = 0.05;
+	private static final int MESSAGES = 1000;
+	private static final int WINDOW = 32;
+
+	@Test
+	public void selectiveRepeatSamplesOnlyThePathRtt() throws Exception {
+		try (ConnectionPair pair = ConnectionPair.selectiveRepeat(WINDOW, 200)) {
+			transfer(pair.impair(1, LOSS, DELAY_MILLIS, 0).start());
+		}
+	}
+
+	@Test
+	public void goBackNSamplesOnlyThePathRtt() throws Exception {
+		try (ConnectionPair pair = ConnectionPair.goBackN(WINDOW, 200)) {
+			transfer(pair.impair(2, LOSS, DELAY_MILLIS, 0).start());
+		}
+	}
+
+	private static void transfer(ConnectionPair pair) throws Exception {
+		byte[] message = new byte[100];
+		for (int sent = 0; sent < MESSAGES; sent += WINDOW) {
+			CompletableFuture<?>[] futures = new CompletableFuture<?>[WINDOW];
+			for (int i = 0; i < futures.length; i++) {
+				futures[i] = pair.sender.sendAsync(message);
+			}
+			CompletableFuture.allOf(futures).get(30, TimeUnit.SECONDS);
+		}
+		ConnectionMetrics metrics = pair.sender.getMetrics();
+		long srtt = pair.sender.getSmoothedRtt(TimeUnit.MILLISECONDS);
+		long maxSample = TimeUnit.MICROSECONDS.toMillis(metrics.getRttMaxMicros());
+		assertTrue("Ei yhtään RTT-mittausta", metrics.getRttSamples() > 0);
+		assertTrue("Uudelleenlähetyksiä ei tullut, häviö ei toiminut", metrics.getRetransmissions() > 0);
+		//Kuittausviive voi lisätä mittaukseen enintään ACK_DELAY
+		assertTrue("SRTT " + srtt + " ms, polku " + PATH_RTT_MILLIS + " ms", srtt <= PATH_RTT_MILLIS + AckScheduler.ACK_DELAY);
+		assertTrue("Mittaus " + maxSample + " ms sisältää uudelleenlähetyksen odotuksen", maxSample < WindowedTransfer.MIN_RTO);
+		assertTrue("RTO " + pair.sender.getRetransmissionTimeout(TimeUnit.MILLISECONDS) + " ms",
+				pair.sender.getRetransmissionTimeout(TimeUnit.MILLISECONDS) <= 2 * WindowedTransfer.MIN_RTO);
+	}
+
+}
@@ -0,0 +1,66 @@
+package com.olemassa.chat.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Transfers whose sequence numbers start just before a wrap point, so that the window,
+ * the ACKs and the retransmissions all cross it under loss.
+ */
+public class SequenceWrapTest {
+
+	private static final int MESSAGES = 1000;
+	private static final int WINDOW = 32;
+
+	@Test
+	public void selectiveRepeatAcrossSignedOverflow() throws Exception {
+		try (ConnectionPair pair = ConnectionPair.selectiveRepeat(WINDOW, 200)) {
+			transfer(pair.startingAt(Integer.MAX_VALUE - MESSAGES / 2), 31, 0.02);
+		}
+	}
+
+	@Test
+	public void selectiveRepeatAcrossUnsignedOverflow() throws Exception {
+		try (ConnectionPair pair = ConnectionPair.selectiveRepeat(WINDOW, 200)) {
+			transfer(pair.startingAt(-MESSAGES / 2), 32, 0.02);
+		}
+	}
+
+	//Go-Back-N lähettää koko ikkunan uudelleen jokaisesta häviöstä, joten sille vähemmän häviöitä
+	@Test
+	public void goBackNAcrossSignedOverflow() throws Exception {
+		try (ConnectionPair pair = ConnectionPair.goBackN(WINDOW, 200)) {
+			transfer(pair.startingAt(Integer.MAX_VALUE - MESSAGES / 2), 33, 0.005);
+		}
+	}
+
+	@Test
+	public void goBackNAcrossUnsignedOverflow() throws Exception {
+		try (ConnectionPair pair = ConnectionPair.goBackN(WINDOW, 200)) {
+			transfer(pair.startingAt(-MESSAGES / 2), 34, 0.005);
+		}
+	}
+
+	private static void transfer(ConnectionPair pair, long seed, double loss) throws Exception {
+		pair.sender.setBatchDelay(0);
+		pair.impair(seed, loss, 2, loss).start();
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[MESSAGES];
+		for (int i = 0; i < MESSAGES; i++) {
+			futures[i] = pair.sender.sendAsync(ByteBuffer.allocate(4).putInt(i).array());
+		}
+		CompletableFuture.allOf(futures).get(30, TimeUnit.SECONDS);
+		assertTrue("Kaikki viestit eivät tulleet perille", pair.awaitDelivered(MESSAGES, 5, TimeUnit.SECONDS));
+		assertEquals(MESSAGES, pair.delivered.size());
+		for (int i = 0; i < MESSAGES; i++) {
+			assertEquals(i, ByteBuffer.wrap(pair.delivered.get(i)).getInt());
+		}
+		assertTrue("Häviöitä ei tullut, ohitus jäi testaamatta", pair.sender.getMetrics().getRetransmissions() > 0);
+	}
+
+}
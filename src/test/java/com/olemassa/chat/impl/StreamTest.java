@@ -0,0 +1,122 @@
+package com.olemassa.chat.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.olemassa.chat.Receiver;
+
+/**
+ * Delivery order per stream: every stream delivers its own messages in the order they
+ * were sent, and a stream waiting for a lost packet does not hold back the others.
+ */
+public class StreamTest {
+
+	private static final int STREAMS = 4;
+	private static final int MESSAGES_PER_STREAM = 250;
+
+	@Test
+	public void stalledStreamDoesNotBlockOthers() throws Exception {
+		InMemoryTransport[] transports = InMemoryTransport.pair();
+		InMemoryTransport driver = transports[0];
+		SelectiveRepeat receiver = new SelectiveRepeat(transports[1], 16, 200);
+		List<List<Integer>> delivered = collect(receiver, 3);
+		Thread thread = new Thread(receiver, "test-receiver");
+		thread.start();
+		try {
+			//Virran 1 ensimmäinen paketti (järjestysnumero 0) katoaa, virtojen 2 ja 3 paketit tulevat sen jälkeen
+			sendRaw(driver, 1, 1, 1);
+			for (int i = 0; i < 3; i++) {
+				sendRaw(driver, 2 + 2 * i, 2, i);
+				sendRaw(driver, 3 + 2 * i, 3, i);
+			}
+			assertTrue("Muut virrat jäivät odottamaan", await(delivered, 2, 3) && await(delivered, 3, 3));
+			assertEquals(ordered(3), delivered.get(2));
+			assertEquals(ordered(3), delivered.get(3));
+			assertEquals("Virta 1 toimitti ennen puuttuvaa pakettia", 0, delivered.get(1).size());
+
+			//Puuttuva paketti vapauttaa virran 1 odottajan
+			sendRaw(driver, 0, 1, 0);
+			assertTrue("Virta 1 ei jatkunut", await(delivered, 1, 2));
+			assertEquals(ordered(2), delivered.get(1));
+		} finally {
+			receiver.stopListening();
+			thread.join(TimeUnit.SECONDS.toMillis(5));
+			driver.close();
+		}
+	}
+
+	@Test
+	public void streamsStayInOrderUnderLossAndReordering() throws Exception {
+		try (ConnectionPair pair = ConnectionPair.selectiveRepeat(32, 200)) {
+			List<List<Integer>> delivered = collect(pair.receiver, STREAMS - 1);
+			pair.impair(21, 0.05, 5, 0.1).start();
+			List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+			for (int i = 0; i < MESSAGES_PER_STREAM; i++) {
+				for (int stream = 0; stream < STREAMS; stream++) {
+					futures.add(pair.sender.sendAsync(stream, message(i)));
+				}
+			}
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).get(30, TimeUnit.SECONDS);
+			for (int stream = 0; stream < STREAMS; stream++) {
+				assertTrue("Virta " + stream + " ei toimittanut kaikkea", await(delivered, stream, MESSAGES_PER_STREAM));
+				assertEquals("Virran " + stream + " järjestys", ordered(MESSAGES_PER_STREAM), delivered.get(stream));
+			}
+		}
+	}
+
+	//Virtojen 0..lastStream viestien numerot toimitusjärjestyksessä
+	private static List<List<Integer>> collect(WindowedTransfer receiver, int lastStream) {
+		List<List<Integer>> delivered = new ArrayList<List<Integer>>();
+		for (int stream = 0; stream <= lastStream; stream++) {
+			final List<Integer> messages = Collections.synchronizedList(new ArrayList<Integer>());
+			delivered.add(messages);
+			receiver.addReceiver(stream, new Receiver() {
+				@Override
+				public void receive(byte[] message) {
+					messages.add(ByteBuffer.wrap(message).getInt());
+				}
+			});
+		}
+		return delivered;
+	}
+
+	private static void sendRaw(InMemoryTransport driver, int sequence, int stream, int streamSequence) throws Exception {
+		byte[] payload = message(streamSequence);
+		ByteBuffer datagram = ByteBuffer.allocate(WirePacket.MAX_PACKET_LENGTH);
+		int length = WirePacket.encode(datagram, 0, WirePacket.FLAG_DATA, sequence, 0, 0, stream, streamSequence,
+				payload, 0, payload.length);
+		datagram.limit(length);
+		driver.send(datagram, null);
+	}
+
+	private static byte[] message(int number) {
+		return ByteBuffer.allocate(4).putInt(number).array();
+	}
+
+	private static List<Integer> ordered(int count) {
+		List<Integer> numbers = new ArrayList<Integer>();
+		for (int i = 0; i < count; i++) {
+			numbers.add(i);
+		}
+		return numbers;
+	}
+
+	private static boolean await(List<List<Integer>> delivered, int stream, int count) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (delivered.get(stream).size() < count) {
+			if (System.nanoTime() - deadline >= 0) return false;
+			Thread.sleep(1);
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,144 @@
+package com.olemassa.chat.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Encoding and decoding of the packet format, and the datagrams {@link WirePacket#wrap}
+ * has to reject: a wrong version, a truncated header, a length field that disagrees
+ * with the datagram and any single flipped bit.
+ */
+public class WirePacketTest {
+
+	private static final byte[] PAYLOAD = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+
+	@Test
+	public void roundTripsEveryField() {
+		int[] flagCombinations = {
+				WirePacket.FLAG_DATA,
+				WirePacket.FLAG_ACK,
+				WirePacket.FLAG_DATA | WirePacket.FLAG_ACK,
+				WirePacket.FLAG_DATA | WirePacket.FLAG_FRAGMENT,
+				WirePacket.FLAG_DATA | WirePacket.FLAG_BATCH,
+				WirePacket.FLAG_DATA | WirePacket.FLAG_ACK | WirePacket.FLAG_FRAGMENT | WirePacket.FLAG_BATCH };
+		for (int flags : flagCombinations) {
+			for (ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.allocate(64), ByteBuffer.allocateDirect(64) }) {
+				//Etu- ja takaraja-arvot: etumerkkibitit ja 16-bittisten kenttien yläpää
+				int length = WirePacket.encode(buffer, 3, flags, 0x80000001, 0xFFFFFFFE, 0xA5A5A5A5, 0xFFFF, 0xFFFE,
+						PAYLOAD, 2, 7);
+				assertEquals(WirePacket.HEADER_LENGTH + 7, length);
+
+				WirePacket packet = new WirePacket().wrap(buffer, 3, length);
+				assertEquals(flags, packet.getFlags());
+				assertEquals((flags & WirePacket.FLAG_DATA) != 0, packet.isData());
+				assertEquals((flags & WirePacket.FLAG_ACK) != 0, packet.isAck());
+				assertEquals((flags & WirePacket.FLAG_FRAGMENT) != 0, packet.isFragment());
+				assertEquals((flags & WirePacket.FLAG_BATCH) != 0, packet.isBatch());
+				assertEquals(0x80000001, packet.getSequence());
+				assertEquals(0xFFFFFFFE, packet.getAck());
+				assertEquals(0xA5A5A5A5, packet.getSack());
+				assertEquals(0xFFFF, packet.getStream());
+				assertEquals(0xFFFE, packet.getStreamSequence());
+				assertEquals(7, packet.getPayloadLength());
+				assertEquals(3 + WirePacket.HEADER_LENGTH, packet.getPayloadOffset());
+				assertArrayEquals(new byte[] { 3, 4, 5, 6, 7, 8, 9 }, packet.getPayload());
+			}
+		}
+	}
+
+	@Test
+	public void roundTripsAckAndMaximumPayload() {
+		ByteBuffer buffer = ByteBuffer.allocate(WirePacket.MAX_PACKET_LENGTH);
+		int length = WirePacket.encodeAck(buffer, 0, 42, 0x5);
+		WirePacket packet = new WirePacket().wrap(buffer, 0, length);
+		assertTrue(packet.isAck());
+		assertFalse(packet.isData());
+		assertEquals(42, packet.getAck());
+		assertEquals(0x5, packet.getSack());
+		assertEquals(0, packet.getPayloadLength());
+
+		byte[] payload = new byte[WirePacket.MAX_PAYLOAD_LENGTH];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) i;
+		}
+		length = WirePacket.encode(buffer, 0, WirePacket.FLAG_DATA, 7, 0, 0, 0, 0, payload, 0, payload.length);
+		assertEquals(WirePacket.MAX_PACKET_LENGTH, length);
+		assertArrayEquals(payload, new WirePacket().wrap(buffer, 0, length).getPayload());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsTooLongPayload() {
+		byte[] payload = new byte[WirePacket.MAX_PAYLOAD_LENGTH + 1];
+		WirePacket.encode(ByteBuffer.allocate(2048), 0, WirePacket.FLAG_DATA, 0, 0, 0, 0, 0, payload, 0, payload.length);
+	}
+
+	@Test
+	public void rejectsWrongVersion() {
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		int length = encode(buffer);
+		buffer.put(WirePacket.VERSION_OFFSET, (byte) (WirePacket.VERSION - 1));
+		assertRejected(buffer, length, "Tuntematon paketin versio");
+	}
+
+	@Test
+	public void rejectsShortBuffer() {
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		encode(buffer);
+		for (int length = 0; length < WirePacket.HEADER_LENGTH; length++) {
+			assertRejected(buffer, length, "Paketti on liian lyhyt");
+		}
+	}
+
+	@Test
+	public void rejectsLengthMismatch() {
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		int length = encode(buffer);
+		//Datagrammi katkesi tai sen perässä on ylimääräistä
+		assertRejected(buffer, length - 1, "Paketin pituus ei täsmää");
+		assertRejected(buffer, length + 1, "Paketin pituus ei täsmää");
+		//Pituuskenttä väittää muuta kuin datagrammin koko
+		buffer.putShort(WirePacket.LENGTH_OFFSET, (short) (PAYLOAD.length + 1));
+		assertRejected(buffer, length, "Paketin pituus ei täsmää");
+	}
+
+	@Test
+	public void rejectsEverySingleBitFlip() {
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		int length = encode(buffer);
+		for (int bit = 0; bit < length * 8; bit++) {
+			int index = bit / 8;
+			byte original = buffer.get(index);
+			buffer.put(index, (byte) (original ^ (1 << (bit % 8))));
+			try {
+				new WirePacket().wrap(buffer, 0, length);
+				fail("Käännetty bitti " + bit + " (tavu " + index + ") meni läpi");
+			} catch (IllegalArgumentException expected) {
+			}
+			buffer.put(index, original);
+		}
+		//Palautettuna kelpaa taas
+		new WirePacket().wrap(buffer, 0, length);
+	}
+
+	private static int encode(ByteBuffer buffer) {
+		return WirePacket.encode(buffer, 0, WirePacket.FLAG_DATA | WirePacket.FLAG_ACK, 1000, 2000, 0x3, 5, 6,
+				PAYLOAD, 0, PAYLOAD.length);
+	}
+
+	private static void assertRejected(ByteBuffer buffer, int length, String reason) {
+		try {
+			new WirePacket().wrap(buffer, 0, length);
+			fail("Hyväksyttiin, odotettiin: " + reason);
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith(reason));
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+package com.olemassa.chat.impl.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The catalogued check values of each algorithm, the CRC of "123456789", and the same
+ * checksum computed in one go and over several slices.
+ */
+public class CrcTest {
+
+	private static final byte[] CHECK = "123456789".getBytes(StandardCharsets.US_ASCII);
+
+	@Test
+	public void crc8CheckValue() {
+		assertEquals(0xF4, Crc.CRC8.compute(CHECK, 0, CHECK.length));
+	}
+
+	@Test
+	public void crc16ArcCheckValue() {
+		assertEquals(0xBB3D, Crc.CRC16.compute(CHECK, 0, CHECK.length));
+	}
+
+	@Test
+	public void crc32cCheckValue() {
+		assertEquals(0xE3069283, Crc.CRC32C.compute(CHECK, 0, CHECK.length));
+	}
+
+	@Test
+	public void checkValuesFromBuffers() {
+		for (Crc crc : Crc.values()) {
+			int expected = crc.compute(CHECK, 0, CHECK.length);
+			ByteBuffer heap = ByteBuffer.wrap(CHECK);
+			ByteBuffer direct = ByteBuffer.allocateDirect(CHECK.length);
+			direct.put(CHECK).flip();
+			assertEquals(crc.name(), expected, crc.compute(heap));
+			assertEquals(crc.name(), expected, crc.compute(direct));
+			assertEquals("Positioon ei saa koskea", 0, direct.position());
+		}
+	}
+
+	@Test
+	public void incrementalUpdatesMatchSingleShot() {
+		byte[] bytes = new byte[1000];
+		Random random = new Random(1);
+		random.nextBytes(bytes);
+		for (Crc crc : Crc.values()) {
+			int expected = crc.compute(bytes, 0, bytes.length);
+			for (int trial = 0; trial < 100; trial++) {
+				int value = crc.initial();
+				int offset = 0;
+				while (offset < bytes.length) {
+					int length = Math.min(random.nextInt(64), bytes.length - offset);
+					switch (random.nextInt(3)) {
+					case 0:
+						value = crc.update(value, bytes, offset, length);
+						break;
+					case 1:
+						value = crc.update(value, ByteBuffer.wrap(bytes, offset, length));
+						break;
+					default:
+						for (int i = offset; i < offset + length; i++) {
+							value = crc.update(value, bytes[i]);
+						}
+					}
+					offset += length;
+				}
+				assertEquals(crc.name(), expected, crc.finish(value));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,181 @@
+package com.olemassa.chat.impl.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The window of {@link NewReno} driven directly with acknowledgements, duplicate ACKs and
+ * timeouts, without a connection. The sender is assumed to keep the window full unless
+ * a test says otherwise.
+ */
+public class NewRenoTest {
+
+	private NewReno reno;
+
+	@Before
+	public void setUp() {
+		reno = new NewReno();
+	}
+
+	@Test
+	public void startsWithInitialWindow() {
+		assertEquals(NewReno.INITIAL_WINDOW, reno.getWindow());
+		assertEquals(Integer.MAX_VALUE, reno.getSlowStartThreshold());
+		assertFalse(reno.isInRecovery());
+	}
+
+	@Test
+	public void slowStartGrowsByOnePerAckUpToThreshold() {
+		//Aikakatkaisu asettaa kynnyksen: 16 matkalla, kynnys 8
+		reno.onTimeout(16);
+		assertEquals(1, reno.getWindow());
+		assertEquals(8, reno.getSlowStartThreshold());
+		for (int expected = 2; expected <= 8; expected++) {
+			assertFalse(reno.onAck(0, 1, reno.getWindow()));
+			assertEquals(expected, reno.getWindow());
+		}
+		//Usean paketin kuittaus ei vie kynnyksen yli
+		reno.onTimeout(20);
+		reno.onAck(0, 4, reno.getWindow());
+		assertEquals(5, reno.getWindow());
+		reno.onAck(0, 100, reno.getWindow());
+		assertEquals(10, reno.getWindow());
+	}
+
+	@Test
+	public void congestionAvoidanceGrowsByOnePerWindow() {
+		reno.onTimeout(16);
+		while (reno.getWindow() < reno.getSlowStartThreshold()) {
+			reno.onAck(0, 1, reno.getWindow());
+		}
+		assertEquals(8, reno.getWindow());
+		//Kahdeksan kuittausta kasvattaa yhdellä, seuraavat yhdeksän taas yhdellä
+		for (int i = 0; i < 7; i++) {
+			reno.onAck(0, 1, reno.getWindow());
+			assertEquals(8, reno.getWindow());
+		}
+		reno.onAck(0, 1, reno.getWindow());
+		assertEquals(9, reno.getWindow());
+		for (int i = 0; i < 8; i++) {
+			reno.onAck(0, 1, reno.getWindow());
+		}
+		assertEquals(9, reno.getWindow());
+		reno.onAck(0, 1, reno.getWindow());
+		assertEquals(10, reno.getWindow());
+	}
+
+	@Test
+	public void windowDoesNotGrowWhenNotFilled() {
+		for (int i = 0; i < 100; i++) {
+			reno.onAck(i, 1, NewReno.INITIAL_WINDOW - 1);
+		}
+		assertEquals(NewReno.INITIAL_WINDOW, reno.getWindow());
+	}
+
+	@Test
+	public void threeDuplicateAcksEnterFastRecovery() {
+		assertFalse(reno.onDuplicateAck(20, 100, false));
+		assertFalse(reno.onDuplicateAck(20, 100, false));
+		assertFalse(reno.isInRecovery());
+		assertTrue("Kolmas kaksoiskuittaus ei käynnistänyt nopeaa uudelleenlähetystä", reno.onDuplicateAck(20, 100, false));
+		assertTrue(reno.isInRecovery());
+		assertEquals(10, reno.getSlowStartThreshold());
+		assertEquals(10 + NewReno.DUPACK_THRESHOLD, reno.getWindow());
+
+		//Jokainen lisää kaksoiskuittaus paisuttaa ikkunaa, paitsi jos SACK laski paketin jo pois
+		assertFalse(reno.onDuplicateAck(20, 100, false));
+		assertEquals(14, reno.getWindow());
+		assertFalse(reno.onDuplicateAck(20, 100, true));
+		assertEquals(14, reno.getWindow());
+	}
+
+	@Test
+	public void newAckResetsDuplicateCount() {
+		reno.onDuplicateAck(20, 100, false);
+		reno.onDuplicateAck(20, 100, false);
+		reno.onAck(50, 1, 20);
+		assertFalse(reno.onDuplicateAck(20, 100, false));
+		assertFalse(reno.onDuplicateAck(20, 100, false));
+		assertTrue(reno.onDuplicateAck(20, 100, false));
+	}
+
+	@Test
+	public void partialAckDeflatesAndRetransmits() {
+		enterRecovery(20, 100);
+		reno.onDuplicateAck(20, 100, false);
+		assertEquals(14, reno.getWindow());
+		//Kuittaa viisi mutta ei kaikkea ennen häviötä lähetettyä: seuraavakin on hävinnyt
+		assertTrue("Osittainen kuittaus ei pyytänyt uudelleenlähetystä", reno.onAck(60, 5, 20));
+		assertTrue(reno.isInRecovery());
+		assertEquals(14 - 5 + 1, reno.getWindow());
+		assertTrue(reno.onAck(70, 20, 15));
+		assertEquals("Ikkuna ei saa mennä alle yhden", 1, reno.getWindow());
+	}
+
+	@Test
+	public void fullAckPastRecoverExitsRecovery() {
+		enterRecovery(20, 100);
+		reno.onDuplicateAck(20, 100, false);
+		reno.onAck(60, 5, 20);
+		//Kuittaus ohittaa recoverin (viimeisin ennen häviötä lähetetty)
+		assertFalse(reno.onAck(101, 41, 20));
+		assertFalse(reno.isInRecovery());
+		assertEquals(reno.getSlowStartThreshold(), reno.getWindow());
+		assertEquals(10, reno.getWindow());
+	}
+
+	@Test
+	public void ackUpToRecoverIsStillPartial() {
+		enterRecovery(20, 100);
+		assertTrue(reno.onAck(100, 40, 20));
+		assertTrue(reno.isInRecovery());
+	}
+
+	@Test
+	public void recoveryEndsAcrossSequenceWrap() {
+		enterRecovery(20, -1);
+		assertTrue(reno.onAck(-5, 5, 20));
+		assertTrue(reno.isInRecovery());
+		assertFalse(reno.onAck(0, 5, 20));
+		assertFalse(reno.isInRecovery());
+	}
+
+	@Test
+	public void timeoutResetsWindowToOne() {
+		for (int i = 0; i < 10; i++) {
+			reno.onAck(i, 1, reno.getWindow());
+		}
+		assertEquals(14, reno.getWindow());
+		reno.onTimeout(14);
+		assertEquals(1, reno.getWindow());
+		assertEquals(7, reno.getSlowStartThreshold());
+
+		//Kynnys ei laske alle kahden
+		reno.onTimeout(1);
+		assertEquals(2, reno.getSlowStartThreshold());
+	}
+
+	@Test
+	public void timeoutEndsRecovery() {
+		enterRecovery(20, 100);
+		reno.onTimeout(20);
+		assertFalse(reno.isInRecovery());
+		assertEquals(1, reno.getWindow());
+		assertEquals(10, reno.getSlowStartThreshold());
+		//Tästä eteenpäin hidas aloitus
+		reno.onAck(101, 1, 1);
+		assertEquals(2, reno.getWindow());
+	}
+
+	private void enterRecovery(int flightSize, int highestSent) {
+		for (int i = 0; i < NewReno.DUPACK_THRESHOLD; i++) {
+			reno.onDuplicateAck(flightSize, highestSent, false);
+		}
+		assertTrue(reno.isInRecovery());
+	}
+
+}
@@ -0,0 +1,85 @@
+package com.olemassa.chat.impl.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Serial number comparisons across both points where an <code>int</code> wraps: the
+ * signed overflow from 0x7FFFFFFF to 0x80000000 and the unsigned one from 0xFFFFFFFF to 0.
+ */
+public class SerialNumberTest {
+
+	@Test
+	public void distanceAcrossSignedOverflow() {
+		assertEquals(1, SerialNumber.distance(0x7FFFFFFF, 0x80000000));
+		assertEquals(-1, SerialNumber.distance(0x80000000, 0x7FFFFFFF));
+		assertEquals(10, SerialNumber.distance(0x7FFFFFFB, 0x80000005));
+	}
+
+	@Test
+	public void distanceAcrossUnsignedOverflow() {
+		assertEquals(1, SerialNumber.distance(0xFFFFFFFF, 0));
+		assertEquals(-1, SerialNumber.distance(0, 0xFFFFFFFF));
+		assertEquals(10, SerialNumber.distance(0xFFFFFFFB, 5));
+	}
+
+	@Test
+	public void afterAndBeforeAcrossWrap() {
+		int[][] pairs = { { 0x7FFFFFFF, 0x80000000 }, { 0xFFFFFFFF, 0 }, { 0xFFFFFF00, 0x100 }, { 5, 6 } };
+		for (int[] pair : pairs) {
+			int earlier = pair[0];
+			int later = pair[1];
+			assertTrue(later + " ei ole " + earlier + ":n jälkeen", SerialNumber.after(later, earlier));
+			assertTrue(SerialNumber.before(earlier, later));
+			assertFalse(SerialNumber.after(earlier, later));
+			assertFalse(SerialNumber.before(later, earlier));
+			assertFalse(SerialNumber.after(earlier, earlier));
+			assertFalse(SerialNumber.before(earlier, earlier));
+		}
+	}
+
+	@Test
+	public void windowAcrossWrap() {
+		assertTrue(SerialNumber.inWindow(0xFFFFFFFF, 0xFFFFFFF0, 32));
+		assertTrue(SerialNumber.inWindow(0, 0xFFFFFFF0, 32));
+		assertTrue(SerialNumber.inWindow(15, 0xFFFFFFF0, 32));
+		assertFalse(SerialNumber.inWindow(16, 0xFFFFFFF0, 32));
+		assertFalse(SerialNumber.inWindow(0xFFFFFFEF, 0xFFFFFFF0, 32));
+		assertTrue(SerialNumber.inWindow(0x80000000, 0x7FFFFFFF, 2));
+		assertFalse(SerialNumber.inWindow(0x80000001, 0x7FFFFFFF, 2));
+	}
+
+	@Test
+	public void ringIndexContinuesAcrossWrap() {
+		int mask = SerialNumber.ringSize(16) - 1;
+		assertEquals(15, 0xFFFFFFFF & mask);
+		assertEquals(0, 0 & mask);
+		assertEquals(15, 0x7FFFFFFF & mask);
+		assertEquals(0, 0x80000000 & mask);
+	}
+
+	@Test
+	public void ringSizeRoundsUpToPowerOfTwo() {
+		assertEquals(1, SerialNumber.ringSize(1));
+		assertEquals(2, SerialNumber.ringSize(2));
+		assertEquals(4, SerialNumber.ringSize(3));
+		assertEquals(64, SerialNumber.ringSize(64));
+		assertEquals(128, SerialNumber.ringSize(65));
+		assertEquals(1 << 30, SerialNumber.ringSize((1 << 29) + 1));
+		assertEquals(1 << 30, SerialNumber.ringSize(1 << 30));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void ringSizeRejectsZero() {
+		SerialNumber.ringSize(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void ringSizeRejectsTooLarge() {
+		SerialNumber.ringSize((1 << 30) + 1);
+	}
+
+}
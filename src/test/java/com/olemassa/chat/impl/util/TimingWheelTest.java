@@ -0,0 +1,138 @@
+package com.olemassa.chat.impl.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Timers on a wheel of 1 ms ticks and 1024 slots, the size the windowed protocols use.
+ * Expiry is driven with explicit times from the start of each test, so nothing sleeps.
+ */
+public class TimingWheelTest {
+
+	private static final int SLOTS = 1024;
+
+	private TimingWheel<String> wheel;
+	private long start;
+	private List<String> expired;
+
+	@Before
+	public void setUp() {
+		wheel = new TimingWheel<String>(1, TimeUnit.MILLISECONDS, SLOTS);
+		start = TimingWheel.now();
+		expired = new ArrayList<String>();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsSlotCountThatIsNotPowerOfTwo() {
+		new TimingWheel<String>(1, TimeUnit.MILLISECONDS, 1000);
+	}
+
+	@Test
+	public void expiresAfterDelayNotBefore() {
+		TimingWheel.Timeout<String> timeout = wheel.schedule("a", 50, TimeUnit.MILLISECONDS);
+		assertTrue(timeout.isArmed());
+		assertEquals("a", timeout.getItem());
+		assertEquals(1, wheel.size());
+
+		assertEquals(0, expireAt(40));
+		assertTrue(timeout.isArmed());
+		assertEquals(1, expireAt(60));
+		assertEquals(Arrays.asList("a"), expired);
+		assertFalse(timeout.isArmed());
+		assertEquals(0, wheel.size());
+		assertEquals("Erääntynyt ajastin laukesi uudelleen", 0, expireAt(200));
+	}
+
+	@Test
+	public void cancelledTimerDoesNotExpire() {
+		TimingWheel.Timeout<String> a = wheel.schedule("a", 10, TimeUnit.MILLISECONDS);
+		TimingWheel.Timeout<String> b = wheel.schedule("b", 10, TimeUnit.MILLISECONDS);
+		wheel.schedule("c", 10, TimeUnit.MILLISECONDS);
+		//Keskeltä ja alusta samasta lokerosta
+		assertTrue(wheel.cancel(b));
+		assertFalse("Peruttu toiseen kertaan", wheel.cancel(b));
+		assertFalse(wheel.cancel(null));
+		assertFalse(b.isArmed());
+		assertEquals(2, wheel.size());
+
+		assertEquals(2, expireAt(20));
+		assertEquals(Arrays.asList("c", "a"), expired);
+		assertFalse("Erääntynyttä ei voi perua", wheel.cancel(a));
+	}
+
+	@Test
+	public void rescheduleMovesTimer() {
+		TimingWheel.Timeout<String> timeout = wheel.schedule("a", 10, TimeUnit.MILLISECONDS);
+		wheel.reschedule(timeout, 100, TimeUnit.MILLISECONDS);
+		assertEquals(1, wheel.size());
+		assertEquals(0, expireAt(50));
+		assertEquals(1, expireAt(110));
+
+		//Erääntynyt ajastin voidaan virittää uudelleen samalla oliolla
+		wheel.reschedule(timeout, 10, TimeUnit.MILLISECONDS);
+		assertTrue(timeout.isArmed());
+		assertEquals(1, wheel.size());
+		assertEquals(1, expireAt(500));
+		assertEquals(Arrays.asList("a", "a"), expired);
+	}
+
+	@Test
+	public void expiresInDeadlineOrder() {
+		wheel.schedule("c", 30, TimeUnit.MILLISECONDS);
+		wheel.schedule("a", 10, TimeUnit.MILLISECONDS);
+		wheel.schedule("b", 20, TimeUnit.MILLISECONDS);
+		for (int millis = 0; millis <= 40; millis++) {
+			expireAt(millis);
+		}
+		assertEquals(Arrays.asList("a", "b", "c"), expired);
+	}
+
+	@Test
+	public void timerBeyondOneRotationWaitsForItsTurn() {
+		//Sama lokero kuin 100 ms:n ajastimella, mutta vasta seuraavalla kierroksella
+		wheel.schedule("far", 100 + SLOTS, TimeUnit.MILLISECONDS);
+		wheel.schedule("near", 100, TimeUnit.MILLISECONDS);
+		assertEquals(1, expireAt(110));
+		assertEquals(Arrays.asList("near"), expired);
+		assertEquals(0, expireAt(SLOTS));
+		assertEquals(1, wheel.size());
+		assertEquals(1, expireAt(SLOTS + 110));
+		assertEquals(Arrays.asList("near", "far"), expired);
+	}
+
+	@Test
+	public void longGapExpiresEveryDueTimer() {
+		//Yli kierroksen mittainen väli käy jokaisen lokeron läpi kerran
+		for (int i = 0; i < 3 * SLOTS; i += 97) {
+			wheel.schedule(String.valueOf(i), i, TimeUnit.MILLISECONDS);
+		}
+		int scheduled = wheel.size();
+		assertEquals(scheduled, expireAt(4 * SLOTS));
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void nextExpiry() {
+		assertEquals(TimingWheel.NO_EXPIRY, wheel.nanosUntilNextExpiry(start));
+		wheel.schedule("a", 100, TimeUnit.MILLISECONDS);
+		long nanos = wheel.nanosUntilNextExpiry(start);
+		assertTrue(nanos + " ns", nanos >= TimeUnit.MILLISECONDS.toNanos(99) && nanos <= TimeUnit.MILLISECONDS.toNanos(102));
+		assertEquals(0, wheel.nanosUntilNextExpiry(start + TimeUnit.MILLISECONDS.toNanos(200)));
+		expireAt(200);
+		assertEquals(TimingWheel.NO_EXPIRY, wheel.nanosUntilNextExpiry(start));
+	}
+
+	private int expireAt(long millis) {
+		return wheel.expire(start + TimeUnit.MILLISECONDS.toNanos(millis), expired);
+	}
+
+}